@@ -18,6 +18,7 @@ import java.util.Set;
 
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.openhab.core.thing.ThingTypeUID;
+import org.openhab.core.thing.type.ChannelTypeUID;
 
 /**
  * The {@link CasambiBindingConstants} class defines common constants, which are
@@ -45,6 +46,18 @@ public class CasambiSimpleBindingConstants {
     public static final String BRIDGE_CHANNEL_PEER = "peer";
     public static final String BRIDGE_CHANNEL_MESSAGE = "message";
     public static final String BRIDGE_CHANNEL_DIM = "dim";
+    public static final String BRIDGE_CHANNEL_RTT = "rtt";
+    // Bridge properties
+    public static final String BRIDGE_PROPERTY_TIME_TO_ONLINE = "timeToOnline";
+    public static final String BRIDGE_PROPERTY_RTT_HISTOGRAM = "rttHistogram";
+    public static final String BRIDGE_PROPERTY_CONNECTION_STATE = "connectionState";
+    public static final String BRIDGE_PROPERTY_THREADS = "threads";
+    public static final String BRIDGE_PROPERTY_TASK_STATS = "taskStats";
+    public static final String BRIDGE_PROPERTY_PEER_RECOVERY = "peerRecovery";
+    public static final String BRIDGE_PROPERTY_COMMAND_STATS = "remoteCommandStats";
+    public static final String BRIDGE_PROPERTY_TRANSITION_STATS = "transitionStats";
+    public static final String BRIDGE_PROPERTY_CIRCADIAN_STATS = "circadianStats";
+    public static final String BRIDGE_PROPERTY_TIMER_STATS = "timerStats";
 
     // Luminaire constants
     // Parameters
@@ -55,6 +68,7 @@ public class CasambiSimpleBindingConstants {
     public static final String LUMINAIRE_HAS_DIMMER = "hasDimmer";
     public static final String LUMINAIRE_HAS_COLOR = "hasColor";
     public static final String LUMINAIRE_HAS_CCT = "hasCCT";
+    public static final String LUMINAIRE_HAS_WHITELEVEL = "hasWhitelevel";
     public static final String LUMINAIRE_TEMPERATURE_MIN = "tempMin";
     public static final String LUMINAIRE_TEMPERATURE_MAX = "tempMax";
 
@@ -64,6 +78,15 @@ public class CasambiSimpleBindingConstants {
     public static final String LUMINAIRE_CHANNEL_DIMMER = "dim";
     public static final String LUMINAIRE_CHANNEL_COLOR = "color";
     public static final String LUMINAIRE_CHANNEL_CCT = "cct";
+    public static final String LUMINAIRE_CHANNEL_WHITELEVEL = "whitelevel";
+    public static final String LUMINAIRE_PROPERTY_CONVERGENCE_FAILURES = "convergenceFailures";
+
+    // Channel types (for channels created by the handlers)
+    public static final ChannelTypeUID CHANNEL_TYPE_ONOFF = new ChannelTypeUID(BINDING_ID, "casambiOnOff");
+    public static final ChannelTypeUID CHANNEL_TYPE_DIM = new ChannelTypeUID(BINDING_ID, "casambiDim");
+    public static final ChannelTypeUID CHANNEL_TYPE_COLOR = new ChannelTypeUID(BINDING_ID, "casambiColor");
+    public static final ChannelTypeUID CHANNEL_TYPE_CCT = new ChannelTypeUID(BINDING_ID, "casambiCCT");
+    public static final ChannelTypeUID CHANNEL_TYPE_WHITELEVEL = new ChannelTypeUID(BINDING_ID, "casambiWhitelevel");
 
     // Scene constants
     // Parameters
@@ -18,12 +18,14 @@ import java.util.Set;
 
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.binding.casambisimple.internal.driver.CasambiSimpleScheduler;
 import org.openhab.binding.casambisimple.internal.handler.CasambiSimpleBridgeHandler;
 import org.openhab.binding.casambisimple.internal.handler.CasambiSimpleGroupHandler;
 import org.openhab.binding.casambisimple.internal.handler.CasambiSimpleLuminaireHandler;
 import org.openhab.binding.casambisimple.internal.handler.CasambiSimpleSceneHandler;
 import org.openhab.core.io.net.http.HttpClientFactory;
 import org.openhab.core.io.net.http.WebSocketFactory;
+import org.openhab.core.net.NetworkAddressService;
 import org.openhab.core.thing.Bridge;
 import org.openhab.core.thing.Thing;
 import org.openhab.core.thing.ThingTypeUID;
@@ -32,6 +34,7 @@ import org.openhab.core.thing.binding.ThingHandler;
 import org.openhab.core.thing.binding.ThingHandlerFactory;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -52,20 +55,27 @@ public class CasambiSimpleHandlerFactory extends BaseThingHandlerFactory {
     // Do these need to be final? Or do we want to set them to null on deactivation?
     private @Nullable HttpClientFactory httpClientFactory;
     private @Nullable WebSocketFactory webSocketFactory;
+    private @Nullable NetworkAddressService networkAddressService;
+    // Timers and short tasks of all bridges, instead of separate threads per bridge, socket and message logger
+    private final CasambiSimpleScheduler casambiScheduler = new CasambiSimpleScheduler(2, "casambisimple");
 
     @Activate
     public CasambiSimpleHandlerFactory(@Reference WebSocketFactory webSocketFactory,
-            @Reference HttpClientFactory httpClientFactory) {
+            @Reference HttpClientFactory httpClientFactory, @Reference NetworkAddressService networkAddressService) {
         this.httpClientFactory = httpClientFactory;
         this.webSocketFactory = webSocketFactory;
+        this.networkAddressService = networkAddressService;
     }
 
     // Check if deactivate helps reduce message count during shutdown
+    @Deactivate
     public void deactivate() {
         logger.debug("handlerFactory:deactivate called.");
+        casambiScheduler.shutdown();
         // Do we actually need to do anything here?
         this.httpClientFactory = null;
         this.webSocketFactory = null;
+        this.networkAddressService = null;
     }
 
     @Override
@@ -86,7 +96,7 @@ public class CasambiSimpleHandlerFactory extends BaseThingHandlerFactory {
             final @Nullable WebSocketFactory wsf = webSocketFactory;
             if (wsf != null && htf != null) {
                 return new CasambiSimpleBridgeHandler(bridge, wsf.getCommonWebSocketClient(),
-                        htf.getCommonHttpClient());
+                        htf.getCommonHttpClient(), networkAddressService, casambiScheduler);
             } else {
                 return null;
             }
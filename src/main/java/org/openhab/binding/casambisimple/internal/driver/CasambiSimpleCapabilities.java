@@ -0,0 +1,148 @@
+/**
+ * Copyright (c) 2010-2022 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.casambisimple.internal.driver;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.binding.casambisimple.internal.driver.messages.CasambiSimpleMessageControl;
+
+/**
+ * The {@link CasambiSimpleCapabilities} describes the controls of a fixture type as a bit mask plus the color
+ * temperature range and the control ids
+ *
+ * The descriptor is decoded once from the controls of a unit (string comparisons on the control type) and shared by
+ * all units of the same fixture, so capability checks are bit tests. Instances are not changed after decoding.
+ *
+ * @author Hein Osenberg - Initial contribution
+ */
+@NonNullByDefault
+public class CasambiSimpleCapabilities {
+
+    public static final int DIMMER = 1;
+    public static final int COLOR = 2;
+    public static final int CCT = 4;
+    public static final int WHITE_LEVEL = 8;
+
+    public static final int NO_CONTROL = -1;
+
+    // Fields are not final, the descriptors are (de)serialized with gson
+    private int fixtureId;
+    private int flags;
+    private float tempMin;
+    private float tempMax;
+    private int dimmerId = NO_CONTROL;
+    private int colorId = NO_CONTROL;
+    private int cctId = NO_CONTROL;
+    private int whiteLevelId = NO_CONTROL;
+
+    private CasambiSimpleCapabilities() {
+    }
+
+    /**
+     * none returns a descriptor without any controls
+     *
+     * @param fixtureId - fixture id as defined by the Casambi system
+     * @return descriptor
+     */
+    public static CasambiSimpleCapabilities none(int fixtureId) {
+        final CasambiSimpleCapabilities capabilities = new CasambiSimpleCapabilities();
+        capabilities.fixtureId = fixtureId;
+        return capabilities;
+    }
+
+    /**
+     * decode derives the capabilities of a fixture from the controls of one of its units
+     *
+     * @param fixtureId - fixture id as defined by the Casambi system
+     * @param controls - controls of the unit (may contain nulls)
+     * @return descriptor
+     */
+    public static CasambiSimpleCapabilities decode(int fixtureId,
+            @Nullable CasambiSimpleMessageControl @Nullable [] controls) {
+        final CasambiSimpleCapabilities capabilities = none(fixtureId);
+        if (controls != null) {
+            for (CasambiSimpleMessageControl control : controls) {
+                if (control != null) {
+                    final Integer id = control.id;
+                    final int controlId = (id != null) ? id : NO_CONTROL;
+                    if (control.isDimmer()) {
+                        capabilities.flags |= DIMMER;
+                        capabilities.dimmerId = controlId;
+                    }
+                    if (control.isColor()) {
+                        capabilities.flags |= COLOR;
+                        capabilities.colorId = controlId;
+                    }
+                    if (control.isCCT()) {
+                        capabilities.flags |= CCT;
+                        capabilities.cctId = controlId;
+                        capabilities.tempMin = control.getMin();
+                        capabilities.tempMax = control.getMax();
+                    }
+                    if (control.isWhiteLevel()) {
+                        capabilities.flags |= WHITE_LEVEL;
+                        capabilities.whiteLevelId = controlId;
+                    }
+                }
+            }
+        }
+        return capabilities;
+    }
+
+    /**
+     * has tests for controls
+     *
+     * @param mask - one or more of DIMMER, COLOR, CCT, WHITE_LEVEL
+     * @return true if the fixture has all of them
+     */
+    public boolean has(int mask) {
+        return (flags & mask) == mask;
+    }
+
+    public int getFixtureId() {
+        return fixtureId;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public float getTempMin() {
+        return tempMin;
+    }
+
+    public float getTempMax() {
+        return tempMax;
+    }
+
+    public int getDimmerId() {
+        return dimmerId;
+    }
+
+    public int getColorId() {
+        return colorId;
+    }
+
+    public int getCctId() {
+        return cctId;
+    }
+
+    public int getWhiteLevelId() {
+        return whiteLevelId;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("fixture %d: flags %d, cct %.0f - %.0f", fixtureId, flags, tempMin, tempMax);
+    }
+}
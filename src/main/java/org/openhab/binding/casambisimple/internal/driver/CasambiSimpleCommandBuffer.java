@@ -0,0 +1,131 @@
+/**
+ * Copyright (c) 2010-2022 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.casambisimple.internal.driver;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * The {@link CasambiSimpleCommandBuffer} keeps the latest intended state of luminaires while the socket is down
+ *
+ * For each unit the controls (OnOff, Dimmer, RGB, ColorTemperature etc.) of the commands are merged, a later command
+ * replaces the same control of an earlier one. Controls that express the same intent (OnOff and Dimmer, RGB and
+ * ColorTemperature) replace each other as well. After reconnect, one frame per unit is enough to restore the state.
+ *
+ * The buffer is bounded: if more than maxUnits units are buffered, the unit with the oldest command is dropped.
+ * Controls older than the maximum age are dropped when the buffer is drained.
+ *
+ * @author Hein Osenberg - Initial contribution
+ */
+@NonNullByDefault
+public class CasambiSimpleCommandBuffer {
+
+    private static final int maxUnits = 512;
+
+    private static final Map<String, String> supersedes = Map.of( //
+            CasambiSimpleDriverConstants.controlOnOff, CasambiSimpleDriverConstants.controlDimmer, //
+            CasambiSimpleDriverConstants.controlDimmer, CasambiSimpleDriverConstants.controlOnOff, //
+            CasambiSimpleDriverConstants.controlRGB, CasambiSimpleDriverConstants.controlColorTemperature, //
+            CasambiSimpleDriverConstants.controlColorTemperature, CasambiSimpleDriverConstants.controlRGB);
+
+    /**
+     * Entry holds the buffered controls of one unit together with the time they were buffered
+     */
+    private static class Entry {
+        private final Map<String, JsonElement> controls = new LinkedHashMap<>();
+        private final Map<String, Long> updated = new HashMap<>();
+    }
+
+    private final Map<Integer, Entry> units = new LinkedHashMap<Integer, Entry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+            return size() > maxUnits;
+        }
+    };
+
+    private final long maxAge;
+
+    /**
+     * Constructor for the command buffer
+     *
+     * @param maxAge - maximum age of buffered commands in milliseconds
+     */
+    public CasambiSimpleCommandBuffer(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * put merges the controls of a command into the buffered state of the unit
+     *
+     * @param unitId - unit the command is for
+     * @param control - controls of the command (targetControls part of the message)
+     */
+    public synchronized void put(int unitId, JsonObject control) {
+        final long now = System.currentTimeMillis();
+        final Entry entry = units.computeIfAbsent(unitId, k -> new Entry());
+        for (Map.Entry<String, JsonElement> c : control.entrySet()) {
+            final String superseded = supersedes.get(c.getKey());
+            if (superseded != null) {
+                entry.controls.remove(superseded);
+                entry.updated.remove(superseded);
+            }
+            // Remove first, so that the latest control comes last in the frame
+            entry.controls.remove(c.getKey());
+            entry.controls.put(c.getKey(), c.getValue().deepCopy());
+            entry.updated.put(c.getKey(), now);
+        }
+    }
+
+    /**
+     * drain empties the buffer and returns the merged controls per unit. Controls older than the maximum age are
+     * dropped.
+     *
+     * @return map of unit id to controls, in the order the units were last commanded
+     */
+    public synchronized Map<Integer, JsonObject> drain() {
+        final long oldest = System.currentTimeMillis() - maxAge;
+        final Map<Integer, JsonObject> result = new LinkedHashMap<>();
+        for (Map.Entry<Integer, Entry> unit : units.entrySet()) {
+            final JsonObject control = new JsonObject();
+            final Entry entry = unit.getValue();
+            for (Map.Entry<String, JsonElement> c : entry.controls.entrySet()) {
+                final Long t = entry.updated.get(c.getKey());
+                if (t != null && t >= oldest) {
+                    control.add(c.getKey(), c.getValue());
+                }
+            }
+            if (control.size() > 0) {
+                result.put(unit.getKey(), control);
+            }
+        }
+        units.clear();
+        return result;
+    }
+
+    /**
+     * isEmpty checks if there are buffered commands
+     *
+     * @return true if no commands are buffered
+     */
+    public synchronized boolean isEmpty() {
+        return units.isEmpty();
+    }
+}
@@ -22,8 +22,7 @@ import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import org.eclipse.jdt.annotation.NonNullByDefault;
@@ -49,7 +48,8 @@ public class CasambiSimpleDriverLogger {
     private String logPath;
     private String logFile;
 
-    private final Timer timer = new Timer();
+    private final CasambiSimpleScheduler.TaskGroup tasks;
+    private @Nullable ScheduledFuture<?> rotateJob;
 
     private final Logger logger = LoggerFactory.getLogger(CasambiSimpleDriverLogger.class);
 
@@ -60,9 +60,12 @@ public class CasambiSimpleDriverLogger {
      * @param activate - logger is only set up, if active is true, otherwise the Casambi messages are not logged
      * @param logPath - directory path for the log file (must be writable by openhab)
      * @param logFile - file name for the log file
+     * @param tasks - task group on the binding's shared scheduler, used for the daily log rotation
      *            FIXME: Prevent log file from growing infinitely (e.g. daily restart of the log, allow for logrotate)
      */
-    public CasambiSimpleDriverLogger(Boolean activate, String path, String file) {
+    public CasambiSimpleDriverLogger(Boolean activate, String path, String file,
+            CasambiSimpleScheduler.TaskGroup tasks) {
+        this.tasks = tasks;
         logActive = activate;
         logPath = path;
         logFile = file;
@@ -128,9 +131,18 @@ public class CasambiSimpleDriverLogger {
     }
 
     /**
-     * close writes a message and then closes the log
+     * close writes a message and then closes the log. The log rotation is stopped.
      */
     public void close() {
+        final ScheduledFuture<?> rotateJobLocal = rotateJob;
+        if (rotateJobLocal != null) {
+            rotateJobLocal.cancel(false);
+            rotateJob = null;
+        }
+        closeWriter();
+    }
+
+    private void closeWriter() {
         PrintWriter writerLocal = writer;
         if (writerLocal != null) {
             dumpMessage(getTimeStamp() + " ++++ Socket casambiClose +++");
@@ -145,29 +157,27 @@ public class CasambiSimpleDriverLogger {
         calendar.set(Calendar.HOUR_OF_DAY, 0);
         calendar.set(Calendar.MINUTE, 5);
         calendar.set(Calendar.SECOND, 0);
+        if (calendar.getTimeInMillis() <= System.currentTimeMillis()) {
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+        }
         // Roll over every night at 00:05
-        timer.schedule(new RotateLog(), calendar.getTime(), TimeUnit.MILLISECONDS.convert(1, TimeUnit.DAYS));
+        final long initialDelay = calendar.getTimeInMillis() - System.currentTimeMillis();
+        rotateJob = tasks.scheduleWithFixedDelay(this::rotateLog, initialDelay,
+                TimeUnit.MILLISECONDS.convert(1, TimeUnit.DAYS), TimeUnit.MILLISECONDS);
         // Date nextRotate = calendar.getTime();
         // String timeStamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(nextRotate);
         // logger.info("RotateLog: next log rotation {}", timeStamp);
     }
 
     /**
-     * RotateLog closes the current log file and reopens a new log file every day at 00:01
+     * rotateLog closes the current log file and reopens a new log file every day at 00:05
      *
      */
-    private class RotateLog extends TimerTask {
-        @Override
-        public void run() {
-            logger.info("RotateLog: closing current log file.");
-            // timer.cancel();
-
-            close();
-
-            writer = open(logPath, logFile);
-            logger.info("RotateLog: opened new log file.");
-            // scheduleRotate();
-        }
+    private void rotateLog() {
+        logger.info("rotateLog: closing current log file.");
+        closeWriter();
+        writer = open(logPath, logFile);
+        logger.info("rotateLog: opened new log file.");
     }
 
     /**
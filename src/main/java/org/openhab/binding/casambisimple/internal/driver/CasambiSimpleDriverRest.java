@@ -20,7 +20,10 @@ import java.net.URL;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import org.eclipse.jdt.annotation.NonNullByDefault;
@@ -28,6 +31,9 @@ import org.eclipse.jdt.annotation.Nullable;
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.client.api.ContentResponse;
 import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
 import org.eclipse.jetty.client.util.StringContentProvider;
 import org.eclipse.jetty.http.HttpMethod;
 import org.eclipse.jetty.websocket.client.WebSocketClient;
@@ -50,6 +56,9 @@ import com.google.gson.reflect.TypeToken;
  * It creates the user and network session, and sends information requests to the
  * Casambi system.
  *
+ * All requests carry a deadline (requestTimeout). Besides the blocking methods there is an asynchronous variant
+ * for each information request which returns a CompletableFuture. Cancelling the future aborts the request.
+ *
  * Based on casambi-master (Python) by Olof Hellquist https://github.com/awahlig/casambi-master and
  * the Casambi documentation at https://developer.casambi.com/
  *
@@ -58,6 +67,15 @@ import com.google.gson.reflect.TypeToken;
 @NonNullByDefault
 public class CasambiSimpleDriverRest {
 
+    /**
+     * ResponseParser converts the content of a successful response into a message object
+     */
+    @FunctionalInterface
+    private interface ResponseParser<T> {
+        @Nullable
+        T parse(String content) throws Exception;
+    }
+
     // Connection parameters
 
     private @Nullable URL casaServer;
@@ -68,12 +86,17 @@ public class CasambiSimpleDriverRest {
     private final HttpClient httpClient;
     private final WebSocketClient webSocketClient;
     private final CasambiSimpleDriverLogger messageLogger;
+    private final long requestTimeout; // seconds
+
+    // Responses (e.g. network state of large sites) may be bigger than the default buffer of 2 MB
+    private static final int maxResponseSize = 16 * 1024 * 1024;
 
     // Connection status
 
-    private String casambiNetworkId;
-    private String casambiSessionId;
+    private volatile String casambiNetworkId;
+    private volatile String casambiSessionId;
     private final int casambiWireId; // only supporting one network here
+    private final CasambiSimpleScheduler.TaskGroup tasks;
 
     private final Logger logger = LoggerFactory.getLogger(CasambiSimpleDriverRest.class);
 
@@ -88,14 +111,17 @@ public class CasambiSimpleDriverRest {
      * @param msgLogger - class to (optionally) log messages received from the Casambi cloud
      * @param webSocketClient - from the OpenHAB webSocketClientFactory, used by the socket driver
      * @param httpClient - from the OpenHAB httpClientFactory, used by the REST driver
+     * @param timeout - deadline for REST requests in seconds
+     * @param tasks - task group on the binding's shared scheduler, used by the socket driver
      *
      *            FIXME: not all Casambi REST API endpoints are implemented. Missing are: get groups, get unit icon, get
      *            network gallery, get network image, get fixture icon
      */
     public CasambiSimpleDriverRest(String key, String user, String usrPw, String netPw,
-            CasambiSimpleDriverLogger msgLogger, WebSocketClient webSocketClient, HttpClient httpClient) {
-        logger.debug("CasambiSimpleDriverRest:constructor webSocketClient {}, httpClient {}", webSocketClient,
-                httpClient);
+            CasambiSimpleDriverLogger msgLogger, WebSocketClient webSocketClient, HttpClient httpClient, int timeout,
+            CasambiSimpleScheduler.TaskGroup tasks) {
+        logger.debug("CasambiSimpleDriverRest:constructor webSocketClient {}, httpClient {}, timeout {}",
+                webSocketClient, httpClient, timeout);
         try {
             casaServer = new URL("https://door.casambi.com/");
         } catch (Exception e) {
@@ -119,6 +145,8 @@ public class CasambiSimpleDriverRest {
         userId = user;
         userPassword = usrPw;
         networkPassword = netPw;
+        requestTimeout = timeout > 0 ? timeout : 30;
+        this.tasks = tasks;
     }
 
     /**
@@ -129,7 +157,37 @@ public class CasambiSimpleDriverRest {
     public CasambiSimpleDriverSocket getNewCasambiSocket() {
         logger.trace("casambiRest:getNewCasabmiSocket");
         return new CasambiSimpleDriverSocket(apiKey, casambiSessionId, casambiNetworkId, casambiWireId, messageLogger,
-                webSocketClient);
+                webSocketClient, tasks);
+    }
+
+    /**
+     * getSessionId returns the user session id (empty if no session has been created)
+     *
+     * @return session id
+     */
+    public String getSessionId() {
+        return casambiSessionId;
+    }
+
+    /**
+     * restoreSession sets user session id and network id from a previous (cached) session. The session is not
+     * checked here. If it has expired, the next request fails with http status 401.
+     *
+     * @param sessionId - user session id
+     * @param networkId - network id
+     */
+    public void restoreSession(String sessionId, String networkId) {
+        casambiSessionId = sessionId;
+        casambiNetworkId = networkId;
+    }
+
+    /**
+     * getNetworkId returns the network id (empty if no network session has been created)
+     *
+     * @return network id
+     */
+    public String getNetworkId() {
+        return casambiNetworkId;
     }
 
     /**
@@ -165,16 +223,82 @@ public class CasambiSimpleDriverRest {
         if (response == null) {
             logger.warn("{} - error - null response", functionName);
             throw new CasambiSimpleException("checkHttpResponse - got null response");
-        } else if (response.getStatus() != 200) {
+        } else {
+            checkHttpStatus(functionName, url, response.getStatus(), response.getContentAsString());
+        }
+    }
+
+    /**
+     * checkHttpStatus checks status and content of a response. Writes the content to the message logger.
+     *
+     * @param functionName - name of the calling function. Used for an error message if needed.
+     * @param url - url used in the request. Used for an error message if needed.
+     * @param status - http status code of the response
+     * @param content - content of the response
+     * @throws CasambiSimpleException - if status != 200
+     */
+    private void checkHttpStatus(String functionName, URL url, int status, @Nullable String content)
+            throws CasambiSimpleException {
+        if (status != 200) {
             final String msg = String.format("%s -url: %s, got invalid status code: %d, %s", functionName,
-                    url.toString(), response.getStatus(), response.getContentAsString());
+                    url.toString(), status, content);
             logger.warn(msg);
-            throw new CasambiSimpleException(msg);
+            throw new CasambiSimpleException(msg, status);
         } else {
-            messageLogger.dumpJsonWithMessage("+++ " + functionName + " +++", response.getContentAsString());
+            messageLogger.dumpJsonWithMessage("+++ " + functionName + " +++", content);
         }
     }
 
+    /**
+     * sendAsync sends a request without blocking the calling thread. The request is aborted when the deadline
+     * (requestTimeout) expires or when the returned future is cancelled.
+     *
+     * @param functionName - name of the calling function. Used for logging.
+     * @param url - request url
+     * @param request - request to be sent
+     * @param parser - converts the response content into the result object
+     * @return future that completes with the parsed response or exceptionally (CasambiSimpleException on bad
+     *         status, TimeoutException on deadline, CancellationException on cancel)
+     */
+    private <T> CompletableFuture<@Nullable T> sendAsync(String functionName, URL url, Request request,
+            ResponseParser<T> parser) {
+        final CompletableFuture<@Nullable T> future = new CompletableFuture<>();
+        request.timeout(requestTimeout, TimeUnit.SECONDS).send(new BufferingResponseListener(maxResponseSize) {
+            @Override
+            public void onComplete(Result result) {
+                if (result.isFailed()) {
+                    logger.debug("{}: request failed {}", functionName, result.getFailure().getMessage());
+                    future.completeExceptionally(result.getFailure());
+                } else {
+                    try {
+                        final Response response = result.getResponse();
+                        final String content = getContentAsString();
+                        checkHttpStatus(functionName, url, response.getStatus(), content);
+                        future.complete(parser.parse(content != null ? content : ""));
+                    } catch (Exception e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+            }
+        });
+        future.whenComplete((res, e) -> {
+            if (future.isCancelled()) {
+                logger.debug("{}: request cancelled, aborting", functionName);
+                request.abort(new CancellationException(functionName + " cancelled"));
+            }
+        });
+        return future;
+    }
+
+    /**
+     * failedFuture returns a future that has already failed, e.g. because the url could not be assembled
+     */
+    private static <T> CompletableFuture<@Nullable T> failedFuture(Exception e) {
+        final CompletableFuture<@Nullable T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
     /**
      * createUserSession creates user session and returns session info.
      *
@@ -197,28 +321,56 @@ public class CasambiSimpleDriverRest {
         try {
             response = httpClient.POST(url.toString()).header("Content-Type", "application/json")
                     .header("X-Casambi-Key", apiKey)
-                    .content(new StringContentProvider(reqJson.toString()), "application/json").send();
+                    .content(new StringContentProvider(reqJson.toString()), "application/json")
+                    .timeout(requestTimeout, TimeUnit.SECONDS).send();
             checkHttpResponse("createUserSesssion", url, response);
         } catch (Exception e) {
             logger.warn("createUserSession: Exception {}", e.getMessage());
         }
         if (response != null) {
-            final Gson gson = new Gson();
-            final CasambiSimpleMessageSession sessObj = gson.fromJson(response.getContentAsString(),
-                    CasambiSimpleMessageSession.class);
-            if (sessObj != null) {
-                casambiSessionId = sessObj.sessionId;
-            } else {
-                logger.warn("createUserSession: Session object is null. HTTP response was '{}'",
-                        response.getContentAsString());
-            }
-
-            return sessObj;
+            return parseUserSession(response.getContentAsString());
         } else {
             return null;
         }
     }
 
+    /**
+     * createUserSessionAsync creates the user session without blocking
+     *
+     * @return future with the session info as returned by the Casambi cloud service
+     */
+    public CompletableFuture<@Nullable CasambiSimpleMessageSession> createUserSessionAsync() {
+        try {
+            final URL url = new URL(casaServer, "/v1/users/session");
+            final JsonObject reqJson = new JsonObject();
+            reqJson.addProperty("email", userId);
+            reqJson.addProperty("password", userPassword);
+            final Request request = httpClient.POST(url.toString()).header("Content-Type", "application/json")
+                    .header("X-Casambi-Key", apiKey)
+                    .content(new StringContentProvider(reqJson.toString()), "application/json");
+            return sendAsync("createUserSessionAsync", url, request, this::parseUserSession);
+        } catch (MalformedURLException e) {
+            return failedFuture(e);
+        }
+    }
+
+    /**
+     * parseUserSession converts the user session response and remembers the session id
+     *
+     * @param content - response from the Casambi cloud service
+     * @return session info
+     */
+    private @Nullable CasambiSimpleMessageSession parseUserSession(String content) {
+        final Gson gson = new Gson();
+        final CasambiSimpleMessageSession sessObj = gson.fromJson(content, CasambiSimpleMessageSession.class);
+        if (sessObj != null) {
+            casambiSessionId = sessObj.sessionId;
+        } else {
+            logger.warn("createUserSession: Session object is null. HTTP response was '{}'", content);
+        }
+        return sessObj;
+    }
+
     /**
      * Creates network session and returns network info
      *
@@ -242,29 +394,59 @@ public class CasambiSimpleDriverRest {
         try {
             response = httpClient.POST(url.toString()).header("Content-Type", "application/json")
                     .header("X-Casambi-Key", apiKey)
-                    .content(new StringContentProvider(reqJson.toString()), "application/json").send();
+                    .content(new StringContentProvider(reqJson.toString()), "application/json")
+                    .timeout(requestTimeout, TimeUnit.SECONDS).send();
             checkHttpResponse("createNetworkSesssion", url, response);
         } catch (Exception e) {
             logger.info("createNetworkSession: Exception {}", e.getMessage());
         }
 
         if (response != null) {
-            final Gson gson = new Gson();
-            final Type networkMapType = new TypeToken<Map<String, CasambiSimpleMessageNetwork>>() {
-            }.getType();
-            final Map<String, CasambiSimpleMessageNetwork> networks = gson.fromJson(response.getContentAsString(),
-                    networkMapType);
-            if (networks != null) {
-                for (CasambiSimpleMessageNetwork network : networks.values()) {
-                    casambiNetworkId = network.id;
-                }
-            }
-            return networks;
+            return parseNetworkSession(response.getContentAsString());
         } else {
             return null;
         }
     }
 
+    /**
+     * createNetworkSessionAsync creates the network session without blocking
+     *
+     * @return future with the network info as returned by the Casambi cloud service
+     */
+    public CompletableFuture<@Nullable Map<String, CasambiSimpleMessageNetwork>> createNetworkSessionAsync() {
+        try {
+            final URL url = new URL(casaServer, "/v1/networks/session");
+            final JsonObject reqJson = new JsonObject();
+            reqJson.addProperty("email", userId);
+            reqJson.addProperty("password", networkPassword);
+            final Request request = httpClient.POST(url.toString()).header("Content-Type", "application/json")
+                    .header("X-Casambi-Key", apiKey)
+                    .content(new StringContentProvider(reqJson.toString()), "application/json");
+            return sendAsync("createNetworkSessionAsync", url, request, this::parseNetworkSession);
+        } catch (MalformedURLException e) {
+            return failedFuture(e);
+        }
+    }
+
+    /**
+     * parseNetworkSession converts the network session response and remembers the network id
+     *
+     * @param content - response from the Casambi cloud service
+     * @return network info
+     */
+    private @Nullable Map<String, CasambiSimpleMessageNetwork> parseNetworkSession(String content) {
+        final Gson gson = new Gson();
+        final Type networkMapType = new TypeToken<Map<String, CasambiSimpleMessageNetwork>>() {
+        }.getType();
+        final Map<String, CasambiSimpleMessageNetwork> networks = gson.fromJson(content, networkMapType);
+        if (networks != null) {
+            for (CasambiSimpleMessageNetwork network : networks.values()) {
+                casambiNetworkId = network.id;
+            }
+        }
+        return networks;
+    }
+
     /**
      * makeHttpGet sets up a Casambi REST GET request. The request type and the parameters are contained in the URL.
      * Authentication and context information is added.
@@ -274,7 +456,8 @@ public class CasambiSimpleDriverRest {
      */
     private Request makeHttpGet(URL url) {
         return httpClient.newRequest(url.toString()).method(HttpMethod.GET).header("Content-Type", "application/json")
-                .header("X-Casambi-Key", apiKey).header("X-Casambi-Session", casambiSessionId);
+                .header("X-Casambi-Key", apiKey).header("X-Casambi-Session", casambiSessionId)
+                .timeout(requestTimeout, TimeUnit.SECONDS);
     }
 
     /**
@@ -314,11 +497,26 @@ public class CasambiSimpleDriverRest {
         final URL url = new URL(casaServer, "/v1/networks/" + casambiNetworkId + "/state");
         final ContentResponse response = makeHttpGet(url).send();
         checkHttpResponse("getNetworkState", url, response);
+        return parseNetworkState(response.getContentAsString());
+    }
 
+    /**
+     * getNetworkStateAsync queries the luminaires, scenes and groups on the network without blocking
+     *
+     * @return future with the network state data as returned by the Casambi cloud service.
+     */
+    public CompletableFuture<@Nullable CasambiSimpleMessageNetworkState> getNetworkStateAsync() {
+        try {
+            final URL url = new URL(casaServer, "/v1/networks/" + casambiNetworkId + "/state");
+            return sendAsync("getNetworkStateAsync", url, makeHttpGet(url), this::parseNetworkState);
+        } catch (MalformedURLException e) {
+            return failedFuture(e);
+        }
+    }
+
+    private @Nullable CasambiSimpleMessageNetworkState parseNetworkState(String content) {
         final Gson gson = new Gson();
-        final CasambiSimpleMessageNetworkState networkState = gson.fromJson(response.getContentAsString(),
-                CasambiSimpleMessageNetworkState.class);
-        return networkState;
+        return gson.fromJson(content, CasambiSimpleMessageNetworkState.class);
     }
 
     /**
@@ -371,13 +569,28 @@ public class CasambiSimpleDriverRest {
         final URL url = new URL(casaServer, "/v1/networks/" + casambiNetworkId + "/units");
         final ContentResponse response = makeHttpGet(url).send();
         checkHttpResponse("getUnitList", url, response);
+        return parseUnitList(response.getContentAsString());
+    }
+
+    /**
+     * getUnitListAsync returns the units on the Casambi network without blocking
+     *
+     * @return future with the unit data
+     */
+    public CompletableFuture<@Nullable Map<String, CasambiSimpleMessageUnit>> getUnitListAsync() {
+        try {
+            final URL url = new URL(casaServer, "/v1/networks/" + casambiNetworkId + "/units");
+            return sendAsync("getUnitListAsync", url, makeHttpGet(url), this::parseUnitList);
+        } catch (MalformedURLException e) {
+            return failedFuture(e);
+        }
+    }
 
+    private @Nullable Map<String, CasambiSimpleMessageUnit> parseUnitList(String content) {
         final Gson gson = new Gson();
         final Type unitMapType = new TypeToken<Map<String, CasambiSimpleMessageUnit>>() {
         }.getType();
-        final Map<String, CasambiSimpleMessageUnit> unitList = gson.fromJson(response.getContentAsString(),
-                unitMapType);
-        return unitList;
+        return gson.fromJson(content, unitMapType);
     }
 
     /**
@@ -397,11 +610,27 @@ public class CasambiSimpleDriverRest {
         final URL url = new URL(casaServer, "/v1/networks/" + casambiNetworkId + "/units/" + unitId + "/state");
         final ContentResponse response = makeHttpGet(url).send();
         checkHttpResponse("getUnitState", url, response);
+        return parseUnit(response.getContentAsString());
+    }
 
+    /**
+     * getUnitStateAsync returns state information for a single unit without blocking
+     *
+     * @param unitId as assigned by the Casambi system
+     * @return future with the unitState information
+     */
+    public CompletableFuture<@Nullable CasambiSimpleMessageUnit> getUnitStateAsync(int unitId) {
+        try {
+            final URL url = new URL(casaServer, "/v1/networks/" + casambiNetworkId + "/units/" + unitId + "/state");
+            return sendAsync("getUnitStateAsync", url, makeHttpGet(url), this::parseUnit);
+        } catch (MalformedURLException e) {
+            return failedFuture(e);
+        }
+    }
+
+    private @Nullable CasambiSimpleMessageUnit parseUnit(String content) {
         final Gson gson = new Gson();
-        final CasambiSimpleMessageUnit unitState = gson.fromJson(response.getContentAsString(),
-                CasambiSimpleMessageUnit.class);
-        return unitState;
+        return gson.fromJson(content, CasambiSimpleMessageUnit.class);
     }
 
     /**
@@ -420,13 +649,28 @@ public class CasambiSimpleDriverRest {
         final URL url = new URL(casaServer, "/v1/networks/" + casambiNetworkId + "/scenes");
         final ContentResponse response = makeHttpGet(url).send();
         checkHttpResponse("getScenes", url, response);
+        return parseScenes(response.getContentAsString());
+    }
+
+    /**
+     * getScenesAsync returns information about the scenes defined in the Casambi network without blocking
+     *
+     * @return future with the scenes and information about the scenes
+     */
+    public CompletableFuture<@Nullable Map<String, CasambiSimpleMessageScene>> getScenesAsync() {
+        try {
+            final URL url = new URL(casaServer, "/v1/networks/" + casambiNetworkId + "/scenes");
+            return sendAsync("getScenesAsync", url, makeHttpGet(url), this::parseScenes);
+        } catch (MalformedURLException e) {
+            return failedFuture(e);
+        }
+    }
 
+    private @Nullable Map<String, CasambiSimpleMessageScene> parseScenes(String content) {
         final Gson gson = new Gson();
         final Type sceneMapType = new TypeToken<Map<String, CasambiSimpleMessageScene>>() {
         }.getType();
-        final Map<String, CasambiSimpleMessageScene> scenes = gson.fromJson(response.getContentAsString(),
-                sceneMapType);
-        return scenes;
+        return gson.fromJson(content, sceneMapType);
     }
 
     /**
@@ -447,8 +691,25 @@ public class CasambiSimpleDriverRest {
         final ContentResponse response = makeHttpGet(url).send();
 
         checkHttpResponse("getFixtureInfo", url, response);
+        return parseJsonObject(response.getContentAsString());
+    }
+
+    /**
+     * getFixtureInfoAsync gets detailed information about a single fixture without blocking
+     *
+     * @param fixtureId as defined by the Casambi system
+     * @return future with the fixture information. FIXME: convert to message object
+     */
+    public CompletableFuture<@Nullable JsonObject> getFixtureInfoAsync(int fixtureId) {
+        try {
+            final URL url = new URL(casaServer, "/v1/fixtures/" + fixtureId);
+            return sendAsync("getFixtureInfoAsync", url, makeHttpGet(url), this::parseJsonObject);
+        } catch (MalformedURLException e) {
+            return failedFuture(e);
+        }
+    }
 
-        final JsonObject fixtureInfo = JsonParser.parseString(response.getContentAsString()).getAsJsonObject();
-        return fixtureInfo;
+    private JsonObject parseJsonObject(String content) {
+        return JsonParser.parseString(content).getAsJsonObject();
     }
 }
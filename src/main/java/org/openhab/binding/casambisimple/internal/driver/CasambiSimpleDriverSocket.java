@@ -15,15 +15,19 @@ package org.openhab.binding.casambisimple.internal.driver;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.jdt.annotation.Nullable;
@@ -41,6 +45,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 
 /**
@@ -49,6 +54,10 @@ import com.google.gson.JsonObject;
  * It sets up the connection, sends commands to luminaires, scenes and groups and
  * processes messages from the system.
  *
+ * Optionally a second (standby) connection is kept open on a second wire of the same session. Messages received on
+ * the standby connection are dropped. When the active connection is closed or a send fails, the standby connection
+ * takes over without a gap and a new standby connection is set up in the background.
+ *
  * Based on casambi-master (Python) by Olof Hellquist https://github.com/awahlig/casambi-master and
  * the Casambi documentation at https://developer.casambi.com/
  *
@@ -60,29 +69,43 @@ public class CasambiSimpleDriverSocket {
     private String casambiSocketStatus = "null";
 
     private final String apiKey;
-    private final String casambiNetworkId;
-    private final String casambiSessionId;
+    private volatile String casambiNetworkId;
+    private volatile String casambiSessionId;
     private final Integer casambiWireId;
     private final CasambiSimpleDriverLogger casambiMessageLogger;
     private final WebSocketClient casambiWebSocketClient;
 
     private @Nullable Session casambiSession;
-    private @Nullable CasambiListener casambiListener;
+    private volatile @Nullable CasambiListener casambiListener;
     private @Nullable RemoteEndpoint casambiRemote;
-    private boolean socketClose = false;
+    private volatile boolean socketClose = false;
+
+    // Hot standby connection (optional), takes over when the active connection is closed by the server
+    private volatile boolean standbyEnabled = false;
+    private volatile @Nullable CasambiListener standbyListener;
+    private final long standbyRetryDelay = 30; // seconds
+
+    // Latest luminaire state commanded while the socket was down (optional), replayed after reconnect
+    private volatile @Nullable CasambiSimpleCommandBuffer commandBuffer;
 
-    private @Nullable Future<?> reopenSocketJob;
+    private @Nullable ScheduledFuture<?> reopenSocketJob;
     private volatile boolean reopenSocketJobRunning = false;
+    private volatile boolean reopenAttemptRunning = false;
+    private volatile int reopenErrorCount = 0;
+    private volatile @Nullable Runnable sessionRefresher;
 
-    private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+    private final CasambiSimpleScheduler.TaskGroup tasks;
     private final LinkedBlockingQueue<String> queue = new LinkedBlockingQueue<>();
-    private final Lock socketLock = new ReentrantLock();
-    private final Condition socketCondition = socketLock.newCondition();
+    private volatile @Nullable Consumer<CasambiSimpleMessageEvent> messageListener;
+    private volatile CompletableFuture<Boolean> connectFuture = CompletableFuture.completedFuture(false);
 
     private final Logger logger = LoggerFactory.getLogger(CasambiSimpleDriverSocket.class);
 
     private final String socketUrl = "wss://door.casambi.com/v1/bridge/";
     private final long mSec = 1000;
+    private final long connectTimeout = 20; // seconds
+    private final long reopenBaseDelay = 500; // milliseconds, doubled on each failed attempt
+    private final long reopenMaxDelay = 30 * mSec; // milliseconds, upper limit for the backoff
 
     /**
      * CasambiSimpleDriverSocket constructor sets up the web-socket connection to the Casambi server. This is done
@@ -95,11 +118,13 @@ public class CasambiSimpleDriverSocket {
      * @param wireId
      * @param messageLogger
      * @param webSocketClient
+     * @param tasks - task group on the binding's shared scheduler
      *
      *            Also sets up the listener that handles the events on the web-socket.
      */
     CasambiSimpleDriverSocket(String key, String sessionId, String networkId, Integer wireId,
-            CasambiSimpleDriverLogger messageLogger, WebSocketClient webSocketClient) {
+            CasambiSimpleDriverLogger messageLogger, WebSocketClient webSocketClient,
+            CasambiSimpleScheduler.TaskGroup tasks) {
         logger.debug("CasambiSimpleDriverSocket:constructor webSocketClient {}", webSocketClient);
         apiKey = key;
         casambiNetworkId = networkId;
@@ -108,6 +133,7 @@ public class CasambiSimpleDriverSocket {
         casambiMessageLogger = messageLogger;
 
         casambiWebSocketClient = webSocketClient;
+        this.tasks = tasks;
         casambiSession = null;
         casambiListener = null;
         casambiRemote = null;
@@ -120,43 +146,200 @@ public class CasambiSimpleDriverSocket {
      * @return true if websocket was opened successfully
      */
     public Boolean open() {
+        boolean connected = false;
+        try {
+            logger.trace("casambiSocket.open: waiting for connection signal");
+            connected = connectAsync().get();
+        } catch (InterruptedException e) {
+            logger.warn("casambiSocket.open, interrupted waiting for connection signal");
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.warn("casambiSocket.open, exception during wait for connection signal - {}", e.getMessage());
+        }
+        logger.trace("casambiSocket.open, connected {}, casambiRemote is '{}'", connected, casambiRemote);
+        return openWire();
+    }
+
+    /**
+     * connectAsync starts the websocket connection (name resolution, TLS handshake and upgrade) without waiting for
+     * it. The connection does not need a session, so this can run in parallel to the REST session setup.
+     *
+     * @return future that completes with true on the onConnect event, with false on error or timeout
+     */
+    public CompletableFuture<Boolean> connectAsync() {
         socketClose = false;
 
-        logger.debug("casambiSocket.open, connecting to server for wire {}", casambiWireId);
-        // logger.info("casambiOpen: setting up socket");
+        logger.debug("casambiSocket.connectAsync, connecting to server for wire {}", casambiWireId);
+        final CasambiListener listener = new CasambiListener(casambiWireId);
+        connectFuture = listener.connected;
         casambiRemote = null;
-        casambiListener = new CasambiListener();
+        casambiListener = listener;
+        return connectListener(listener);
+    }
+
+    /**
+     * connectListener connects a listener (active or standby) to the server
+     *
+     * @param listener - listener for the new connection
+     * @return future that completes with true on the onConnect event, with false on error or timeout
+     */
+    private CompletableFuture<Boolean> connectListener(CasambiListener listener) {
         try {
             final URI casambiURI = new URI(socketUrl);
             ClientUpgradeRequest request = new ClientUpgradeRequest();
             request.setSubProtocols(apiKey);
-            Future<Session> futureSession = casambiWebSocketClient.connect(casambiListener, casambiURI, request);
+            casambiWebSocketClient.connect(listener, casambiURI, request);
         } catch (Exception e) {
-            logger.error("casambiSocket.open, exception connecting to server - {}", e.getMessage());
+            logger.error("casambiSocket.connectListener, exception connecting to server - {}", e.getMessage());
+            listener.connected.complete(false);
         }
+        return listener.connected.completeOnTimeout(false, connectTimeout, TimeUnit.SECONDS);
+    }
 
-        logger.trace("casambiSocket.open: waiting for connection signal");
-        boolean keepWaiting = true;
-        socketLock.lock();
-        try {
-            while (casambiRemote == null && keepWaiting) {
-                if (socketCondition.await(20L, TimeUnit.SECONDS)) {
-                    logger.trace("casambiSocket.open, got connection signal, casambiRemote is '{}'", casambiRemote);
-                } else {
-                    keepWaiting = false;
-                    logger.info("casambiSocket.open, timeout waiting for connection signal, casambiRemote is '{}'",
-                            casambiRemote);
+    /**
+     * openWire sends the open request for the wire on a connected websocket. Uses the session and network ids from
+     * the REST session.
+     *
+     * @return true if the open request was sent successfully
+     */
+    public Boolean openWire() {
+        // No need to reopen in case of an error, this will be done by the listener (or will it?)
+        final CasambiListener listener = casambiListener;
+        final boolean socketOk = listener != null && openWire(listener);
+        logger.trace("casambiSocket.openWire: return value {}", socketOk);
+        if (socketOk) {
+            startStandby();
+        }
+        return socketOk;
+    }
+
+    /**
+     * setCommandBufferMaxAge switches the buffer for luminaire commands on or off. While the socket is down,
+     * luminaire commands are buffered instead of failing and replayed after the gateway has acknowledged the wire.
+     *
+     * @param maxAge - maximum age of buffered commands in seconds, 0 switches the buffer off
+     */
+    public void setCommandBufferMaxAge(int maxAge) {
+        commandBuffer = (maxAge > 0) ? new CasambiSimpleCommandBuffer(maxAge * mSec) : null;
+    }
+
+    /**
+     * flushCommandBuffer sends the buffered luminaire state. Units with identical controls are sent together in one
+     * frame, so a reconnect after an outage does not send a frame per unit. If sending fails, the remaining commands
+     * go back into the buffer.
+     */
+    private void flushCommandBuffer() {
+        final CasambiSimpleCommandBuffer commandBufferLocal = commandBuffer;
+        if (commandBufferLocal == null) {
+            return;
+        }
+        final Map<Integer, JsonObject> pending = commandBufferLocal.drain();
+        final Map<JsonObject, List<Integer>> byControl = new LinkedHashMap<>();
+        for (Map.Entry<Integer, JsonObject> unit : pending.entrySet()) {
+            byControl.computeIfAbsent(unit.getValue(), k -> new ArrayList<>()).add(unit.getKey());
+        }
+        logger.debug("casambiSocket.flushCommandBuffer: replaying state for {} units in {} frames", pending.size(),
+                byControl.size());
+        for (Map.Entry<JsonObject, List<Integer>> group : byControl.entrySet()) {
+            final int[] unitIds = group.getValue().stream().mapToInt(Integer::intValue).toArray();
+            try {
+                sendRequest("flushCommandBuffer", unitsRequest(unitIds, group.getKey()));
+            } catch (Exception e) {
+                logger.info("casambiSocket.flushCommandBuffer: units {} not sent, keeping them - {}", group.getValue(),
+                        e.getMessage());
+                for (int unitId : unitIds) {
+                    commandBufferLocal.put(unitId, group.getKey());
                 }
             }
-        } catch (Exception e) {
-            logger.warn("casambiSocket.open, exception during await for connection signal - {}", e.getMessage());
-        } finally {
-            socketLock.unlock();
         }
+        casambiMessageLogger.dumpMessage("+++ Socket flushCommandBuffer +++");
+    }
 
-        // No need to reopen in case of an error, this will be done by the listener (or will it?)
+    /**
+     * unitsRequest assembles a control message for one or more units. A single unit is addressed with controlUnit and
+     * id, several units with controlUnits and ids.
+     *
+     * @param unitIds - units the message is for
+     * @param control - controls of the message
+     * @return complete request
+     */
+    private JsonObject unitsRequest(int[] unitIds, JsonObject control) {
+        final JsonObject reqJson = new JsonObject();
+        if (unitIds.length == 1) {
+            reqJson.addProperty(CasambiSimpleDriverConstants.controlMethod, CasambiSimpleDriverConstants.methodUnit);
+            reqJson.addProperty(CasambiSimpleDriverConstants.targetId, unitIds[0]);
+        } else {
+            final JsonArray ids = new JsonArray();
+            for (int unitId : unitIds) {
+                ids.add(unitId);
+            }
+            reqJson.addProperty(CasambiSimpleDriverConstants.controlMethod, CasambiSimpleDriverConstants.methodUnits);
+            reqJson.add(CasambiSimpleDriverConstants.targetIds, ids);
+        }
+        reqJson.add(CasambiSimpleDriverConstants.controlTargetControls, control);
+        return reqJson;
+    }
+
+    /**
+     * sendUnitControl sends a control message for a unit. If the socket is down and the command buffer is active,
+     * the command is buffered instead.
+     *
+     * @param functionName - for logging
+     * @param unitId - unit the command is for
+     * @param reqJson - complete request
+     * @param control - controls of the request, used for buffering
+     * @throws CasambiSimpleException is thrown if no connection is open and the command buffer is not active
+     * @throws IOException is thrown if the message cannot be sent
+     */
+    private void sendUnitControl(String functionName, int unitId, JsonObject reqJson, JsonObject control)
+            throws CasambiSimpleException, IOException {
+        final CasambiSimpleCommandBuffer commandBufferLocal = commandBuffer;
+        try {
+            sendRequest(functionName, reqJson);
+        } catch (CasambiSimpleException | IOException e) {
+            if (commandBufferLocal == null || socketClose) {
+                throw e;
+            }
+            logger.debug("{}: socket down, buffering command for unit {}", functionName, unitId);
+            commandBufferLocal.put(unitId, control);
+        }
+    }
+
+    /**
+     * sendUnitsControl sends one control message for several units. If the socket is down and the command buffer is
+     * active, the command is buffered for each of the units instead.
+     *
+     * @param functionName - for logging
+     * @param unitIds - units the command is for
+     * @param control - controls of the request
+     * @throws CasambiSimpleException is thrown if no connection is open and the command buffer is not active
+     * @throws IOException is thrown if the message cannot be sent
+     */
+    private void sendUnitsControl(String functionName, int[] unitIds, JsonObject control)
+            throws CasambiSimpleException, IOException {
+        final CasambiSimpleCommandBuffer commandBufferLocal = commandBuffer;
+        try {
+            sendRequest(functionName, unitsRequest(unitIds, control));
+        } catch (CasambiSimpleException | IOException e) {
+            if (commandBufferLocal == null || socketClose) {
+                throw e;
+            }
+            logger.debug("{}: socket down, buffering command for {} units", functionName, unitIds.length);
+            for (int unitId : unitIds) {
+                commandBufferLocal.put(unitId, control);
+            }
+        }
+    }
+
+    /**
+     * openWire sends the open request for the wire of a connection (active or standby)
+     *
+     * @param listener - listener of the connection
+     * @return true if the open request was sent successfully
+     */
+    private boolean openWire(CasambiListener listener) {
         boolean socketOk = false;
-        final RemoteEndpoint lclCasambiRemote = casambiRemote;
+        final RemoteEndpoint lclCasambiRemote = listener.remote;
         if (lclCasambiRemote != null) {
 
             final JsonObject reqJson = new JsonObject();
@@ -164,31 +347,165 @@ public class CasambiSimpleDriverSocket {
             reqJson.addProperty(CasambiSimpleDriverConstants.targetId, casambiNetworkId);
             reqJson.addProperty("session", casambiSessionId);
             reqJson.addProperty("ref", UUID.randomUUID().toString());
-            reqJson.addProperty(CasambiSimpleDriverConstants.controlWire, casambiWireId);
+            reqJson.addProperty(CasambiSimpleDriverConstants.controlWire, listener.wireId);
             reqJson.addProperty("type", 1);
             try {
                 lclCasambiRemote.sendString(reqJson.toString());
                 casambiMessageLogger.dumpMessage("+++ Socket casambiOpen +++");
-                logger.debug("casambiSocket.open: socket ok!");
+                logger.debug("casambiSocket.openWire: socket ok for wire {}", listener.wireId);
                 socketOk = true;
             } catch (Exception e) {
-                logger.warn("casambiSocket.open, exception opening socket {}", e.getMessage());
+                logger.warn("casambiSocket.openWire, exception opening socket {}", e.getMessage());
             }
         } else {
-            logger.warn("casambiSocket.open, error: no connection");
+            logger.warn("casambiSocket.openWire, error: no connection");
         }
-        logger.trace("casambiSocket.open: return value {}", socketOk);
         return socketOk;
     }
 
+    /**
+     * setStandbyEnabled switches the hot standby connection on or off. Takes effect on the next open of the wire.
+     *
+     * @param enabled - true to keep a standby connection
+     */
+    public void setStandbyEnabled(boolean enabled) {
+        standbyEnabled = enabled;
+    }
+
+    /**
+     * startStandby sets up a standby connection in the background, if enabled and not already there. The standby uses
+     * the wire that is not used by the active connection.
+     */
+    private synchronized void startStandby() {
+        final CasambiListener active = casambiListener;
+        if (!standbyEnabled || socketClose || standbyListener != null || active == null) {
+            return;
+        }
+        final int wireId = (active.wireId == casambiWireId) ? casambiWireId + 1 : casambiWireId;
+        logger.debug("casambiSocket.startStandby: connecting standby on wire {}", wireId);
+        // FIXME: a wire status error for the standby wire is not noticed, because its messages are dropped
+        final CasambiListener listener = new CasambiListener(wireId);
+        standbyListener = listener;
+        connectListener(listener).thenAccept(connected -> {
+            if (!connected || !openWire(listener)) {
+                logger.info("casambiSocket.startStandby: standby on wire {} not available, retrying in {} s", wireId,
+                        standbyRetryDelay);
+                dropStandby(listener);
+                tasks.schedule(this::startStandby, standbyRetryDelay, TimeUnit.SECONDS);
+            }
+        });
+    }
+
+    /**
+     * dropStandby forgets a standby connection (if it is still the current one) and closes it
+     *
+     * @param listener - listener of the standby connection
+     */
+    private synchronized void dropStandby(CasambiListener listener) {
+        if (standbyListener == listener) {
+            standbyListener = null;
+        }
+        final Session session = listener.session;
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    /**
+     * promoteStandby makes the standby connection the active one. Sending continues on the standby connection, a new
+     * standby connection is set up in the background.
+     *
+     * @param failed - listener of the active connection that failed
+     * @return true if a standby connection took over
+     */
+    private synchronized boolean promoteStandby(@Nullable CasambiListener failed) {
+        final CasambiListener standby = standbyListener;
+        if (socketClose || standby == null || standby.remote == null || casambiListener != failed) {
+            return false;
+        }
+        logger.info("casambiSocket.promoteStandby: wire {} takes over from wire {}", standby.wireId,
+                failed != null ? failed.wireId : "none");
+        standbyListener = null;
+        casambiListener = standby;
+        casambiSession = standby.session;
+        casambiRemote = standby.remote;
+        connectFuture = standby.connected;
+        if (failed != null) {
+            final Session session = failed.session;
+            if (session != null) {
+                session.close();
+            }
+        }
+        casambiMessageLogger.dumpMessage("+++ Socket standby promoted +++");
+        tasks.execute(this::startStandby);
+        return true;
+    }
+
+    /**
+     * sendRequest sends a request on the active connection. The wire id of the connection is added to the request.
+     * If the active connection is not open or the send fails, the standby connection (if any) takes over and the
+     * request is sent again.
+     *
+     * @param functionName - for logging
+     * @param reqJson - request without the wire id
+     * @throws CasambiSimpleException is thrown if no connection is open
+     * @throws IOException is thrown if the message cannot be sent
+     */
+    private void sendRequest(String functionName, JsonObject reqJson) throws CasambiSimpleException, IOException {
+        CasambiListener active = casambiListener;
+        if ((active == null || active.remote == null) && promoteStandby(active)) {
+            active = casambiListener;
+        }
+        final RemoteEndpoint remote = (active != null) ? active.remote : null;
+        if (active == null || remote == null) {
+            final String msg = functionName + ": Error - remote endpoint not open.";
+            logger.error(msg);
+            throw new CasambiSimpleException(msg);
+        }
+        reqJson.addProperty(CasambiSimpleDriverConstants.controlWire, active.wireId);
+        try {
+            remote.sendString(reqJson.toString());
+        } catch (IOException e) {
+            final CasambiListener standby = promoteStandby(active) ? casambiListener : null;
+            final RemoteEndpoint standbyRemote = (standby != null) ? standby.remote : null;
+            if (standby == null || standbyRemote == null) {
+                throw e;
+            }
+            logger.debug("{}: resending on standby wire {}", functionName, standby.wireId);
+            reqJson.addProperty(CasambiSimpleDriverConstants.controlWire, standby.wireId);
+            standbyRemote.sendString(reqJson.toString());
+        }
+    }
+
+    /**
+     * updateSession sets the session and network ids used to open the wire. Needed when the socket was created
+     * before the REST session was complete.
+     *
+     * @param sessionId - user session id
+     * @param networkId - network id
+     */
+    public void updateSession(String sessionId, String networkId) {
+        casambiSessionId = sessionId;
+        casambiNetworkId = networkId;
+    }
+
     /**
      * reopen - tries to reopen the socket on close
      */
     public void reopen() {
         if (!socketClose && !reopenSocketJobRunning) {
-            reopenSocketJob = scheduler.submit(runReopenSocket);
-            // reopenSocketJob = casambiExecutor.submit(runReopenSocket);
-            logger.debug("casambiSocket.reopen: runnable started.");
+            reopenSocketJobRunning = true;
+            reopenErrorCount = 0;
+            final Runnable sessionRefresherLocal = sessionRefresher;
+            if (sessionRefresherLocal != null) {
+                try {
+                    sessionRefresherLocal.run();
+                } catch (Exception e) {
+                    logger.warn("casambiSocket.reopen: session refresh failed - {}", e.getMessage());
+                }
+            }
+            scheduleReopen(reopenDelay(0));
+            logger.debug("casambiSocket.reopen: reopen scheduled.");
 
             casambiMessageLogger.dumpMessage("+++ Socket reopen +++");
             casambiSocketStatus = "reopening";
@@ -198,7 +515,7 @@ public class CasambiSimpleDriverSocket {
             msg.addProperty("conditon", 0);
             msg.addProperty("response", "ok");
             try {
-                queue.put(msg.toString());
+                deliver(msg.toString());
             } catch (InterruptedException e) {
                 logger.warn("casambiSocket.reopen exception {}", e.getMessage());
             }
@@ -208,50 +525,85 @@ public class CasambiSimpleDriverSocket {
     }
 
     /**
-     * runReopenSocket tries to reopen the casambi socket in case of an error. Rate limited
+     * wakeReopen cuts the current backoff wait of the reopen job short and resets the backoff, e.g. after a change of
+     * the network addresses of the host. Does nothing if no reopen job is running.
+     */
+    public void wakeReopen() {
+        if (reopenSocketJobRunning) {
+            logger.debug("casambiSocket.wakeReopen: retrying immediately");
+            reopenErrorCount = 0;
+            if (!reopenAttemptRunning) {
+                scheduleReopen(0);
+            }
+        }
+    }
+
+    /**
+     * setSessionRefresher sets a callback that checks (and if necessary renews) the REST session. It is called at the
+     * start of a reopen run, before the first reconnect attempt, and has to update the session with
+     * updateSession when the session was renewed.
+     *
+     * @param refresher - callback, should not block
+     */
+    public void setSessionRefresher(@Nullable Runnable refresher) {
+        sessionRefresher = refresher;
+    }
+
+    /**
+     * reopenDelay computes the wait before the next reopen attempt: exponential backoff, capped, with jitter so
+     * that several bridges do not retry in lockstep.
+     *
+     * @param attempt - number of failed attempts so far
+     * @return delay in milliseconds
+     */
+    private long reopenDelay(int attempt) {
+        final long ceiling = Math.min(reopenMaxDelay, reopenBaseDelay << Math.min(attempt, 16));
+        return ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+    }
+
+    /**
+     * scheduleReopen schedules the next reopen attempt, replacing a pending one
+     *
+     * @param delay - delay in milliseconds
+     */
+    private synchronized void scheduleReopen(long delay) {
+        final ScheduledFuture<?> pending = reopenSocketJob;
+        if (pending != null) {
+            pending.cancel(false);
+        }
+        reopenSocketJob = tasks.schedule(this::reopenAttempt, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * reopenAttempt tries to reopen the casambi socket in case of an error. The connect runs asynchronously, so no
+     * thread of the scheduler is blocked while waiting for the server. On failure the next attempt is scheduled with
+     * capped exponential backoff and jitter. The wait is cut short by wakeReopen().
      *
      * FIXME: this could provide more diagnostics - network failure, name resolution failure, target not reachable,
      * target service not active...
      */
-    private Runnable runReopenSocket = new Runnable() {
-        @Override
-        public void run() {
-            int openErrorCount = 0;
-            logger.trace("casambiSocket.runReopenSocket: runnable started");
-            reopenSocketJobRunning = true;
-            while (reopenSocketJobRunning) {
-                if (Thread.interrupted()) {
-                    logger.info("casambiSocket.runReopenSocket: got thread interrupt. Exiting job at openErrorCount {}",
-                            openErrorCount);
-                    reopenSocketJobRunning = false;
-                    return;
-                } else {
-                    try {
-                        if (openErrorCount <= 3) {
-                            Thread.sleep(2 * mSec);
-                        } else if (openErrorCount <= 10) {
-                            Thread.sleep(60 * mSec);
-                        } else {
-                            Thread.sleep(1800 * mSec);
-                        }
-                        logger.debug("casambiSocket.runReopenSocket: openErrorCount {}", openErrorCount);
-                        if (open()) {
-                            logger.debug("casambiSocket.runReopenSocket, success at openErrorCount {}", openErrorCount);
-                            reopenSocketJobRunning = false;
-                        } else {
-                            logger.warn("casambiSocket.runReopenSocket, open error at openErrorCount {}",
-                                    openErrorCount);
-                        }
-                    } catch (Exception e) {
-                        logger.debug("casambiSocket.runReopenSocket, sleep interrupted. Exiting");
-                        Thread.currentThread().interrupt();
-                    }
-                }
-                openErrorCount++;
-            }
-            logger.info("casambiSocket.runReopenSocket, exiting runnable at openErrorCount {}", openErrorCount);
+    private void reopenAttempt() {
+        if (!reopenSocketJobRunning || socketClose) {
+            logger.debug("casambiSocket.reopenAttempt: reopen cancelled at openErrorCount {}", reopenErrorCount);
+            reopenSocketJobRunning = false;
+            return;
         }
-    };
+        reopenAttemptRunning = true;
+        logger.debug("casambiSocket.reopenAttempt: openErrorCount {}", reopenErrorCount);
+        connectAsync().whenComplete((connected, e) -> {
+            reopenAttemptRunning = false;
+            if (e == null && connected && !socketClose && openWire()) {
+                logger.debug("casambiSocket.reopenAttempt, success at openErrorCount {}", reopenErrorCount);
+                reopenSocketJobRunning = false;
+            } else if (reopenSocketJobRunning && !socketClose) {
+                logger.warn("casambiSocket.reopenAttempt, open error at openErrorCount {}", reopenErrorCount);
+                reopenErrorCount++;
+                final long delay = reopenDelay(reopenErrorCount);
+                logger.debug("casambiSocket.reopenAttempt: waiting {} ms", delay);
+                scheduleReopen(delay);
+            }
+        });
+    }
 
     /**
      * close shuts down the websocket connection. Socket is set to null.
@@ -264,15 +616,21 @@ public class CasambiSimpleDriverSocket {
         logger.debug("casambiSocket.close, closing socket");
         socketClose = true;
 
-        if (reopenSocketJobRunning) {
-            if (reopenSocketJob != null) {
-                reopenSocketJob.cancel(true);
-            }
+        final CasambiListener standby = standbyListener;
+        if (standby != null) {
+            dropStandby(standby);
         }
+
         reopenSocketJobRunning = false;
+        final ScheduledFuture<?> reopenSocketJobLocal = reopenSocketJob;
+        if (reopenSocketJobLocal != null) {
+            reopenSocketJobLocal.cancel(false);
+        }
 
+        final CasambiListener active = casambiListener;
         final JsonObject reqJson = new JsonObject();
-        reqJson.addProperty(CasambiSimpleDriverConstants.controlWire, casambiWireId);
+        reqJson.addProperty(CasambiSimpleDriverConstants.controlWire,
+                (active != null) ? active.wireId : casambiWireId);
         reqJson.addProperty(CasambiSimpleDriverConstants.controlMethod, "close");
 
         boolean socketOk = false;
@@ -282,9 +640,9 @@ public class CasambiSimpleDriverSocket {
                 if (casambiSession != null) {
                     casambiSession.close();
                 }
-                if (casambiListener != null) {
-                    logger.trace("casambiSocket.close, awaitClose, casambiListener {}", casambiListener);
-                    socketOk = casambiListener.awaitClose(5, TimeUnit.SECONDS);
+                if (active != null) {
+                    logger.trace("casambiSocket.close, awaitClose, casambiListener {}", active);
+                    socketOk = active.awaitClose(5, TimeUnit.SECONDS);
                 }
             } catch (IOException e) {
                 logger.warn("casambiSocket.close: IO exception closing session {}", e.getMessage());
@@ -315,6 +673,21 @@ public class CasambiSimpleDriverSocket {
     @WebSocket(maxTextMessageSize = 64 * 1024)
     public class CasambiListener {
         private final CountDownLatch closeLatch = new CountDownLatch(1);
+        private final CompletableFuture<Boolean> connected = new CompletableFuture<>();
+        private final int wireId;
+        private volatile @Nullable Session session;
+        private volatile @Nullable RemoteEndpoint remote;
+
+        CasambiListener(int wireId) {
+            this.wireId = wireId;
+        }
+
+        /**
+         * isStandby is true while this is the listener of the standby connection (or of a dropped connection)
+         */
+        private boolean isStandby() {
+            return this != casambiListener;
+        }
 
         /**
          * opConnect handles the session open events.
@@ -327,17 +700,17 @@ public class CasambiSimpleDriverSocket {
         public void onConnect(Session session) throws IOException {
             logger.debug("casambiSocket.onConnect called, session {}", session);
 
+            this.session = session;
+            remote = session.getRemote();
+            if (isStandby()) {
+                logger.debug("casambiSocket.onConnect standby connection for wire {}", wireId);
+                connected.complete(true);
+                return;
+            }
             casambiSession = session;
-            casambiRemote = casambiSession.getRemote();
+            casambiRemote = remote;
             logger.trace("casambiSocket.onConnect signaling");
-            socketLock.lock();
-            try {
-                socketCondition.signal();
-            } catch (Exception e) {
-                logger.warn("casambiSocket.onConnect signal exception {}", e.getMessage());
-            } finally {
-                socketLock.unlock();
-            }
+            connected.complete(true);
 
             casambiMessageLogger.dumpMessage("+++ Socket onOpen +++");
             casambiSocketStatus = "open";
@@ -347,7 +720,7 @@ public class CasambiSimpleDriverSocket {
             msg.addProperty("conditon", 0);
             msg.addProperty("response", "ok");
             try {
-                queue.put(msg.toString());
+                deliver(msg.toString());
             } catch (InterruptedException e) {
                 logger.warn("casambiSocket.onConnect exception {}", e.getMessage());
             }
@@ -366,6 +739,24 @@ public class CasambiSimpleDriverSocket {
         @OnWebSocketClose
         public void onClose(Session session, int statusCode, String reason) {
             logger.info("casambiSocket.onClose session {}, status {}, reason {}", session, statusCode, reason);
+            remote = null;
+            this.session = null;
+            closeLatch.countDown();
+            if (isStandby()) {
+                // Standby closed (or a connection that has been replaced already), set up a new standby
+                if (standbyListener == this) {
+                    dropStandby(this);
+                    if (!socketClose) {
+                        tasks.schedule(CasambiSimpleDriverSocket.this::startStandby, standbyRetryDelay,
+                                TimeUnit.SECONDS);
+                    }
+                }
+                return;
+            }
+            if (!socketClose && promoteStandby(this)) {
+                logger.info("casambiSocket.onClose active connection closed, standby took over");
+                return;
+            }
 
             // Put 'closed' message into queue
             casambiMessageLogger.dumpMessage("+++ Socket onClose +++");
@@ -376,14 +767,13 @@ public class CasambiSimpleDriverSocket {
             msg.addProperty("conditon", statusCode);
             msg.addProperty("response", reason);
             try {
-                queue.put(msg.toString());
+                deliver(msg.toString());
             } catch (InterruptedException e) {
                 logger.warn("onClose: Exception {}", e.getMessage());
             }
 
             casambiRemote = null;
             casambiSession = null;
-            closeLatch.countDown();
 
             if (socketClose) {
                 logger.debug("casambiSocket.onClose socket being closed intentionally, not reopening");
@@ -405,9 +795,13 @@ public class CasambiSimpleDriverSocket {
         public void onText(Session session, String message) {
             // logger.debug("onText: message {}", message);
             // FIXME: reset casambiSocketStatus to "open" here?
+            if (isStandby()) {
+                logger.trace("casambiSocket.onText dropping message from standby wire {}", wireId);
+                return;
+            }
             try {
                 if (message.length() > 0) {
-                    queue.put(message);
+                    deliver(message);
                     casambiMessageLogger.dumpJsonWithMessage("+++ Socket onText +++", message);
                 } else {
                     logger.debug("casambiSocket.onText null message");
@@ -429,12 +823,16 @@ public class CasambiSimpleDriverSocket {
          */
         @OnWebSocketMessage
         public void onBinary(Session session, byte[] payload, int offset, int length) {
+            if (isStandby()) {
+                logger.trace("casambiSocket.onBinary dropping message from standby wire {}", wireId);
+                return;
+            }
             String message = new String(payload, StandardCharsets.UTF_8);
             // logger.debug("onBinary: message {}", message);
             // FIXME: reset casambiSocketStatus to "open" here?
             try {
                 if (length > 0) {
-                    queue.put(message);
+                    deliver(message);
                     casambiMessageLogger.dumpJsonWithMessage("+++ Socket onBinary +++", message);
                 } else {
                     logger.debug("casambiSocket.onBinary null message");
@@ -457,6 +855,10 @@ public class CasambiSimpleDriverSocket {
         public void onError(Session session, Throwable cause) {
             logger.warn("casambiSocket.onError session {}, cause {}, message {}", session, cause.hashCode(),
                     cause.getMessage());
+            connected.complete(false);
+            if (isStandby()) {
+                return;
+            }
 
             // Put 'error' message into queue
             casambiMessageLogger.dumpMessage("+++ Socket onError +++");
@@ -467,7 +869,7 @@ public class CasambiSimpleDriverSocket {
             msg.addProperty("conditon", cause.hashCode());
             msg.addProperty("response", cause.getMessage());
             try {
-                queue.put(msg.toString());
+                deliver(msg.toString());
             } catch (InterruptedException e) {
                 logger.warn("casambiSocket.onError Exception {}", e.getMessage());
             }
@@ -503,6 +905,24 @@ public class CasambiSimpleDriverSocket {
         setObjectOnOff(CasambiSimpleDriverConstants.methodUnit, CasambiSimpleDriverConstants.targetId, unitId, onOff);
     }
 
+    /**
+     * setUnitsOnOff switches several Casambi luminaires on or off with one message
+     *
+     * @param unitIds - ids of the luminaires
+     * @param onOff
+     * @throws CasambiSimpleException is thrown on error, e.g. if the socket is not open
+     * @throws IOException
+     */
+    public void setUnitsOnOff(int[] unitIds, boolean onOff) throws CasambiSimpleException, IOException {
+        final JsonObject cOnOff = new JsonObject();
+        cOnOff.addProperty(CasambiSimpleDriverConstants.controlValue, onOff ? (float) 1.0 : (float) 0.0);
+
+        final JsonObject control = new JsonObject();
+        control.add(CasambiSimpleDriverConstants.controlOnOff, cOnOff);
+        logger.debug("setUnitsOnOff: {} units {}", unitIds.length, onOff);
+        sendUnitsControl("setUnitsOnOff", unitIds, control);
+    }
+
     /**
      * setSceneOnOff switches a Casambi scene on or off
      *
@@ -567,6 +987,24 @@ public class CasambiSimpleDriverSocket {
         setObjectDimmer(CasambiSimpleDriverConstants.methodUnit, CasambiSimpleDriverConstants.targetId, unitId, dim);
     }
 
+    /**
+     * setUnitsDimmer sets the same dim level for several Casambi luminaires with one message
+     *
+     * @param unitIds - ids of the luminaires
+     * @param dim level, must be between 0 and 1. O is equivalent to off, everything else is on
+     * @throws CasambiSimpleException is thrown on error, e.g. if the socket is not open
+     * @throws IOException
+     */
+    public void setUnitsDimmer(int[] unitIds, float dim) throws CasambiSimpleException, IOException {
+        final JsonObject dimmer = new JsonObject();
+        dimmer.addProperty(CasambiSimpleDriverConstants.controlValue, dim);
+
+        final JsonObject control = new JsonObject();
+        control.add(CasambiSimpleDriverConstants.controlDimmer, dimmer);
+        logger.debug("setUnitsDimmer: {} units dim {}", unitIds.length, dim);
+        sendUnitsControl("setUnitsDimmer", unitIds, control);
+    }
+
     /**
      * setObjectDimmer assembles the control message to dim luminaires
      *
@@ -606,7 +1044,6 @@ public class CasambiSimpleDriverSocket {
             throws CasambiSimpleException, IOException {
 
         final JsonObject reqJson = new JsonObject();
-        reqJson.addProperty(CasambiSimpleDriverConstants.controlWire, casambiWireId);
         reqJson.addProperty(CasambiSimpleDriverConstants.controlMethod, method);
         if (id != null) {
             reqJson.addProperty(id, unitId);
@@ -614,14 +1051,13 @@ public class CasambiSimpleDriverSocket {
         reqJson.add(CasambiSimpleDriverConstants.controlTargetControls, control);
         logger.info("setObjectControl: unit {} control {}", unitId, reqJson.toString());
 
-        if (casambiRemote != null) {
-            casambiRemote.sendString(reqJson.toString());
-            casambiMessageLogger.dumpMessage("+++ Session setObjectControl +++");
+        if (CasambiSimpleDriverConstants.methodUnit.equals(method)
+                && CasambiSimpleDriverConstants.targetId.equals(id)) {
+            sendUnitControl("setObjectControl", unitId, reqJson, control);
         } else {
-            final String msg = "setObjectControl: Error - remote endpoint not open.";
-            logger.error(msg);
-            throw new CasambiSimpleException(msg);
+            sendRequest("setObjectControl", reqJson);
         }
+        casambiMessageLogger.dumpMessage("+++ Session setObjectControl +++");
     }
 
     // This is for scenes, groups and the network
@@ -676,7 +1112,6 @@ public class CasambiSimpleDriverSocket {
             throws CasambiSimpleException, IOException {
 
         final JsonObject reqJson = new JsonObject();
-        reqJson.addProperty(CasambiSimpleDriverConstants.controlWire, casambiWireId);
         reqJson.addProperty(CasambiSimpleDriverConstants.controlMethod, method);
         if (id != null) {
             reqJson.addProperty(id, unitId);
@@ -684,14 +1119,8 @@ public class CasambiSimpleDriverSocket {
         reqJson.addProperty(CasambiSimpleDriverConstants.controlLevel, lvl);
         logger.info("setObjectLevel: unit {} control {}", unitId, reqJson.toString());
 
-        if (casambiRemote != null) {
-            casambiRemote.sendString(reqJson.toString());
-            casambiMessageLogger.dumpMessage("+++ Session setObjectLevel +++");
-        } else {
-            final String msg = "setObjectLevel: Error - remote endpoint not open.";
-            logger.error(msg);
-            throw new CasambiSimpleException(msg);
-        }
+        sendRequest("setObjectLevel", reqJson);
+        casambiMessageLogger.dumpMessage("+++ Session setObjectLevel +++");
     }
 
     /**
@@ -746,6 +1175,27 @@ public class CasambiSimpleDriverSocket {
         setUnitControl(unitId, control);
     }
 
+    /**
+     * setUnitsCCT sets the same color temperature for several units with one message
+     *
+     * @param unitIds - units to be set
+     * @param temp - color temperature (degrees Kelvin, within the range of all the units)
+     * @throws CasambiSimpleException
+     * @throws IOException
+     */
+    public void setUnitsCCT(int[] unitIds, float temp) throws CasambiSimpleException, IOException {
+        final JsonObject colorTemperature = new JsonObject();
+        colorTemperature.addProperty(CasambiSimpleDriverConstants.controlValue, temp);
+        final JsonObject colorsource = new JsonObject();
+        colorsource.addProperty(CasambiSimpleDriverConstants.controlSource, CasambiSimpleDriverConstants.controlTW);
+
+        final JsonObject control = new JsonObject();
+        control.add(CasambiSimpleDriverConstants.controlColorTemperature, colorTemperature);
+        control.add(CasambiSimpleDriverConstants.controlColorsource, colorsource);
+        logger.debug("setUnitsCCT: {} units temperature {}", unitIds.length, temp);
+        sendUnitsControl("setUnitsCCT", unitIds, control);
+    }
+
     /**
      * setUnitColorBalance sets the balance between color and white channels for a unit
      * FIXME: this may be obsolete, is not currently being used
@@ -793,20 +1243,13 @@ public class CasambiSimpleDriverSocket {
     private void setUnitControl(int unitId, JsonObject control) throws CasambiSimpleException, IOException {
 
         final JsonObject reqJson = new JsonObject();
-        reqJson.addProperty(CasambiSimpleDriverConstants.controlWire, casambiWireId);
         reqJson.addProperty(CasambiSimpleDriverConstants.controlMethod, CasambiSimpleDriverConstants.methodUnit);
         reqJson.addProperty(CasambiSimpleDriverConstants.targetId, unitId);
         reqJson.add(CasambiSimpleDriverConstants.controlTargetControls, control);
         logger.info("setUnitControl: unit {} control {}", unitId, reqJson.toString());
 
-        if (casambiRemote != null) {
-            casambiRemote.sendString(reqJson.toString());
-            casambiMessageLogger.dumpMessage("+++ Socket setUnitControl +++");
-        } else {
-            final String msg = "setUnitControl: Error - remote endpoint not open.";
-            logger.error(msg);
-            throw new CasambiSimpleException(msg);
-        }
+        sendUnitControl("setUnitControl", unitId, reqJson, control);
+        casambiMessageLogger.dumpMessage("+++ Socket setUnitControl +++");
     }
 
     /**
@@ -817,16 +1260,76 @@ public class CasambiSimpleDriverSocket {
      */
     public void ping() throws CasambiSimpleException, IOException {
         final JsonObject reqJson = new JsonObject();
-        reqJson.addProperty(CasambiSimpleDriverConstants.controlWire, casambiWireId);
         reqJson.addProperty(CasambiSimpleDriverConstants.controlMethod, "ping");
 
-        if (casambiRemote != null) {
-            casambiRemote.sendString(reqJson.toString());
+        sendRequest("ping", reqJson);
+
+        // Keep the standby connection alive as well, errors are handled by its listener
+        final CasambiListener standby = standbyListener;
+        final RemoteEndpoint standbyRemote = (standby != null) ? standby.remote : null;
+        if (standby != null && standbyRemote != null) {
+            final JsonObject standbyPing = new JsonObject();
+            standbyPing.addProperty(CasambiSimpleDriverConstants.controlWire, standby.wireId);
+            standbyPing.addProperty(CasambiSimpleDriverConstants.controlMethod, "ping");
+            try {
+                standbyRemote.sendString(standbyPing.toString());
+            } catch (IOException e) {
+                logger.debug("ping: standby wire {} - {}", standby.wireId, e.getMessage());
+            }
+        }
+    }
+
+    // Deliver messages to the listener or the queue
+
+    /**
+     * setMessageListener sets a callback for messages from the socket. With a listener, messages are handed over
+     * directly (on the websocket thread, so the listener must not block) instead of being put into the queue.
+     * Messages already in the queue are handed over as well.
+     *
+     * @param listener - callback for messages, null to use the queue again
+     */
+    public void setMessageListener(@Nullable Consumer<CasambiSimpleMessageEvent> listener) {
+        messageListener = listener;
+        if (listener != null) {
+            String msg;
+            while ((msg = queue.poll()) != null) {
+                listener.accept(parseMessage(msg));
+            }
+        }
+    }
+
+    /**
+     * deliver hands a message over to the message listener or puts it into the queue
+     *
+     * @param msg - message as JSON string
+     * @throws InterruptedException
+     */
+    private void deliver(String msg) throws InterruptedException {
+        final Consumer<CasambiSimpleMessageEvent> listener = messageListener;
+        if (listener != null) {
+            casambiMessageLogger.flush();
+            listener.accept(parseMessage(msg));
         } else {
-            final String msg = "ping: Error - Socket not open.";
-            logger.error(msg);
-            throw new CasambiSimpleException(msg);
+            queue.put(msg);
+        }
+    }
+
+    /**
+     * parseMessage converts a message to a CasambiSimpleMessageEvent structure
+     *
+     * @param msg - message as JSON string
+     * @return CasambiSimpleMessageEvent structure
+     */
+    private CasambiSimpleMessageEvent parseMessage(String msg) {
+        final CasambiSimpleMessageEvent event = new Gson().fromJson(msg, CasambiSimpleMessageEvent.class);
+        if (event != null && event.getMessageType() == CasambiSimpleMessageEvent.messageType.wireStatusOk) {
+            // Only replay buffered commands once the gateway has accepted the wire, earlier they would be dropped
+            final CasambiSimpleCommandBuffer commandBufferLocal = commandBuffer;
+            if (commandBufferLocal != null && !commandBufferLocal.isEmpty()) {
+                tasks.execute(this::flushCommandBuffer);
+            }
         }
+        return event;
     }
 
     // Get messages from the queue
@@ -860,13 +1363,11 @@ public class CasambiSimpleDriverSocket {
      * @return CasambiSimpleMessageEvent structure
      */
     public @Nullable CasambiSimpleMessageEvent receiveMessage() {
-        final Gson gson = new Gson();
         final String msg = receiveMessageRaw();
         if (msg != null) {
             // FIXME: why flush here?
             casambiMessageLogger.flush();
-            CasambiSimpleMessageEvent event = gson.fromJson(msg, CasambiSimpleMessageEvent.class);
-            return event;
+            return parseMessage(msg);
         } else {
             return null;
         }
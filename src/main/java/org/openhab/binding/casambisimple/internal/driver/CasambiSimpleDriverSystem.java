@@ -13,15 +13,31 @@
 package org.openhab.binding.casambisimple.internal.driver;
 
 import java.io.BufferedReader;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Casambi driver system interface - call operating system commands
  *
+ * Commands run asynchronously on the command executor of the binding's scheduler (owned by the handler factory), the
+ * caller is never blocked. stdout and stderr are read concurrently, so a full pipe cannot block the command. A command
+ * that does not finish within the timeout is killed. Each kind of command (restart app, restart bluetooth) runs at
+ * most once at a time and not more often than the minimum interval, further requests are skipped.
+ *
  * @author Hein Osenberg - Initial contribution
  */
 @NonNullByDefault
@@ -30,27 +46,137 @@ public class CasambiSimpleDriverSystem {
     private static Boolean enabled = false;
     private static String command = " ";
 
+    private static final long timeout = 30; // seconds
+    private static final long minInterval = 60; // seconds between two runs of the same kind of command
+
     final static Logger logger = LoggerFactory.getLogger(CasambiSimpleDriverSystem.class);
 
-    private static final void sendSshCommand(String cmd) {
-        if (enabled) {
-            logger.debug("sendSshCommand: sending command {}", cmd);
-            try {
-                final Process process = Runtime.getRuntime().exec(cmd);
-                final BufferedReader stdout = new BufferedReader(new InputStreamReader(process.getInputStream()));
-                final BufferedReader stderr = new BufferedReader(new InputStreamReader(process.getErrorStream()));
-
-                String oStr;
-                while ((oStr = stdout.readLine()) != null) {
-                    logger.debug("sendSshCommand: stdOut {}", oStr);
-                }
-                String eStr;
-                while ((eStr = stderr.readLine()) != null) {
-                    logger.debug("sendSshCommand: stdErr {}", eStr);
-                }
-            } catch (Exception e) {
-                logger.error("sendSshCommand: exception {}", e.getMessage());
+    private static final Map<String, Stats> stats = new HashMap<>();
+
+    /**
+     * Stats holds run counts and durations of one kind of command
+     */
+    private static class Stats {
+        private boolean running = false;
+        private long lastStart = 0;
+        private long runs = 0;
+        private long skipped = 0;
+        private long failed = 0;
+        private long timedOut = 0;
+        private long totalDuration = 0;
+        private long maxDuration = 0;
+
+        @Override
+        public String toString() {
+            return String.format("runs %d, skipped %d, failed %d, timed out %d, avg %d ms, max %d ms", runs, skipped,
+                    failed, timedOut, (runs > 0) ? totalDuration / runs : 0, maxDuration);
+        }
+    }
+
+    /**
+     * sendSshCommand starts a command, unless the same kind of command is running or has been started less than
+     * minInterval ago
+     *
+     * @param kind - kind of command, for rate limiting and statistics
+     * @param cmd - command line
+     * @param executor - executor the command runs on (see CasambiSimpleScheduler.getCommandExecutor)
+     * @return future that completes with the exit code, null if the command was not run or did not finish
+     */
+    private static final CompletableFuture<@Nullable Integer> sendSshCommand(String kind, String cmd,
+            Executor executor) {
+        if (!enabled) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final Stats kindStats;
+        synchronized (stats) {
+            kindStats = stats.computeIfAbsent(kind, k -> new Stats());
+            final long now = System.nanoTime();
+            if (kindStats.running || (kindStats.runs > 0
+                    && now - kindStats.lastStart < TimeUnit.SECONDS.toNanos(minInterval))) {
+                kindStats.skipped++;
+                logger.debug("sendSshCommand: {} running or sent recently, skipping", kind);
+                return CompletableFuture.completedFuture(null);
+            }
+            kindStats.running = true;
+            kindStats.lastStart = now;
+        }
+        try {
+            return CompletableFuture.supplyAsync(() -> runCommand(kind, cmd, kindStats, executor), executor);
+        } catch (RejectedExecutionException e) {
+            synchronized (stats) {
+                kindStats.running = false;
             }
+            logger.debug("sendSshCommand: executor shut down, {} not sent", kind);
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * runCommand runs a command and waits for it (at most timeout seconds)
+     *
+     * @param kind - kind of command, for logging
+     * @param cmd - command line
+     * @param kindStats - statistics to be updated
+     * @param executor - executor for reading the output of the command
+     * @return exit code, null if the command could not be started or was killed
+     */
+    private static @Nullable Integer runCommand(String kind, String cmd, Stats kindStats, Executor executor) {
+        logger.debug("sendSshCommand: sending command {}", cmd);
+        final long start = System.nanoTime();
+        Integer exitCode = null;
+        boolean timedOut = false;
+        try {
+            // Split like Runtime.exec(String) does
+            final List<String> args = new ArrayList<>();
+            final StringTokenizer tokens = new StringTokenizer(cmd);
+            while (tokens.hasMoreTokens()) {
+                args.add(tokens.nextToken());
+            }
+            final Process process = new ProcessBuilder(args).start();
+            executor.execute(() -> pump(process.getInputStream(), "stdOut"));
+            executor.execute(() -> pump(process.getErrorStream(), "stdErr"));
+            if (process.waitFor(timeout, TimeUnit.SECONDS)) {
+                exitCode = process.exitValue();
+                logger.debug("sendSshCommand: {} finished with exit code {}", kind, exitCode);
+            } else {
+                timedOut = true;
+                logger.warn("sendSshCommand: {} did not finish within {} s, killing it", kind, timeout);
+                process.destroyForcibly();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.error("sendSshCommand: exception {}", e.getMessage());
+        }
+        final long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        synchronized (stats) {
+            kindStats.running = false;
+            kindStats.runs++;
+            kindStats.totalDuration += duration;
+            kindStats.maxDuration = Math.max(kindStats.maxDuration, duration);
+            if (timedOut) {
+                kindStats.timedOut++;
+            } else if (exitCode == null || exitCode != 0) {
+                kindStats.failed++;
+            }
+        }
+        return exitCode;
+    }
+
+    /**
+     * pump reads the output of a command to the log until the stream is closed
+     *
+     * @param stream - stdout or stderr of the command
+     * @param name - for logging
+     */
+    private static void pump(InputStream stream, String name) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                logger.debug("sendSshCommand: {} {}", name, line);
+            }
+        } catch (Exception e) {
+            logger.trace("sendSshCommand: {} closed - {}", name, e.getMessage());
         }
     }
 
@@ -62,11 +188,38 @@ public class CasambiSimpleDriverSystem {
         }
     }
 
-    public static final void sendSshRestartCommand() {
-        sendSshCommand(command + " --restart-app");
+    /**
+     * sendSshRestartCommand restarts the Casambi app on the gateway. Does not block.
+     *
+     * @param executor - executor the command runs on
+     * @return future that completes with the exit code, null if the command was not run or did not finish
+     */
+    public static final CompletableFuture<@Nullable Integer> sendSshRestartCommand(Executor executor) {
+        return sendSshCommand("restart-app", command + " --restart-app", executor);
+    }
+
+    /**
+     * sendSshBluetoothCommand restarts bluetooth on the gateway. Does not block.
+     *
+     * @param executor - executor the command runs on
+     * @return future that completes with the exit code, null if the command was not run or did not finish
+     */
+    public static final CompletableFuture<@Nullable Integer> sendSshBluetoothCommand(Executor executor) {
+        return sendSshCommand("restart-bluetooth", command + " --restart-bluetooth", executor);
     }
 
-    public static final void sendSshBluetoothCommand() {
-        sendSshCommand(command + " --restart-bluetooth");
+    /**
+     * getStats returns run counts and durations of the commands
+     *
+     * @return statistics per kind of command, empty if no command was requested
+     */
+    public static final String getStats() {
+        synchronized (stats) {
+            final StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, Stats> kind : stats.entrySet()) {
+                sb.append(sb.length() > 0 ? "; " : "").append(kind.getKey()).append(": ").append(kind.getValue());
+            }
+            return sb.toString();
+        }
     }
 }
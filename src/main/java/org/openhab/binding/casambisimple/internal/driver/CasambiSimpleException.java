@@ -23,9 +23,24 @@ import org.eclipse.jdt.annotation.NonNullByDefault;
 public class CasambiSimpleException extends Exception {
     final static long serialVersionUID = 210829110214L; // Use dateTime
     public String message;
+    public int httpStatus = 0; // http status code, if the exception was caused by a REST response
 
     public CasambiSimpleException(String msg) {
         super(msg);
         message = msg;
     }
+
+    public CasambiSimpleException(String msg, int status) {
+        this(msg);
+        httpStatus = status;
+    }
+
+    /**
+     * isAuthenticationError checks if the Casambi cloud rejected the session
+     *
+     * @return true for http status 401 (unauthorized)
+     */
+    public boolean isAuthenticationError() {
+        return httpStatus == 401;
+    }
 }
@@ -0,0 +1,234 @@
+/**
+ * Copyright (c) 2010-2022 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.casambisimple.internal.driver;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link CasambiSimpleScheduler} runs the timers and short asynchronous tasks of all bridges of the binding on a
+ * small, bounded pool of threads
+ *
+ * Tasks are organized in groups (one per bridge), so that all tasks of a bridge can be cancelled together. For each
+ * group, the queue wait time (time between the due time of a task and its start) and the task duration are recorded.
+ *
+ * Tasks must not block: waiting for network responses etc. has to be done asynchronously or on the bridge's worker
+ * thread. Operating system commands, which wait for the command to finish, run on a separate pool (see
+ * getCommandExecutor) that is shut down together with the scheduler.
+ *
+ * @author Hein Osenberg - Initial contribution
+ */
+@NonNullByDefault
+public class CasambiSimpleScheduler {
+
+    private final Logger logger = LoggerFactory.getLogger(CasambiSimpleScheduler.class);
+
+    private final ScheduledThreadPoolExecutor executor;
+    // Threads are only kept while commands are running (and for a minute afterwards)
+    private final ExecutorService commandExecutor;
+
+    /**
+     * Constructor for the scheduler
+     *
+     * @param threads - number of threads in the pool
+     * @param name - prefix for the thread names
+     */
+    public CasambiSimpleScheduler(int threads, String name) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = new ScheduledThreadPoolExecutor(threads, r -> {
+            final Thread thread = new Thread(r, name + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        commandExecutor = Executors.newCachedThreadPool(r -> {
+            final Thread thread = new Thread(r, name + "-command");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * getCommandExecutor returns the executor for operating system commands, which may block while a command runs
+     *
+     * @return executor for commands
+     */
+    public Executor getCommandExecutor() {
+        return commandExecutor;
+    }
+
+    /**
+     * group creates a new task group
+     *
+     * @param name - name of the group, for logging
+     * @return task group
+     */
+    public TaskGroup group(String name) {
+        return new TaskGroup(name);
+    }
+
+    /**
+     * shutdown stops the scheduler, pending tasks are dropped
+     */
+    public void shutdown() {
+        logger.debug("CasambiSimpleScheduler: shutting down, {} tasks pending", executor.getQueue().size());
+        executor.shutdownNow();
+        commandExecutor.shutdownNow();
+    }
+
+    /**
+     * Stats holds the queue wait time and run time of the tasks of a group
+     */
+    public static class Stats {
+        private long count = 0;
+        private long totalWait = 0;
+        private long maxWait = 0;
+        private long totalRun = 0;
+        private long maxRun = 0;
+
+        private synchronized void record(long wait, long run) {
+            count++;
+            totalWait += wait;
+            maxWait = Math.max(maxWait, wait);
+            totalRun += run;
+            maxRun = Math.max(maxRun, run);
+        }
+
+        /**
+         * @return number of tasks run
+         */
+        public synchronized long getCount() {
+            return count;
+        }
+
+        /**
+         * @return maximum queue wait time in milliseconds
+         */
+        public synchronized long getMaxWait() {
+            return maxWait;
+        }
+
+        /**
+         * @return maximum run time in milliseconds
+         */
+        public synchronized long getMaxRun() {
+            return maxRun;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("n %d, wait avg %d ms max %d ms, run avg %d ms max %d ms", count,
+                    (count > 0) ? totalWait / count : 0, maxWait, (count > 0) ? totalRun / count : 0, maxRun);
+        }
+    }
+
+    /**
+     * TaskGroup schedules the tasks of one bridge on the shared pool
+     */
+    public class TaskGroup {
+        private final String name;
+        private final Set<ScheduledFuture<?>> tasks = ConcurrentHashMap.newKeySet();
+        private final Stats stats = new Stats();
+
+        private TaskGroup(String name) {
+            this.name = name;
+        }
+
+        /**
+         * schedule runs a task once after a delay
+         *
+         * @param task - task to run, must not block
+         * @param delay - delay
+         * @param unit - unit of the delay
+         * @return future of the task, can be used to cancel it
+         */
+        public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+            final long due = System.nanoTime() + unit.toNanos(Math.max(0, delay));
+            return track(executor.schedule(() -> measure(task, due), delay, unit));
+        }
+
+        /**
+         * scheduleWithFixedDelay runs a task periodically
+         *
+         * @param task - task to run, must not block
+         * @param initialDelay - delay before the first run
+         * @param delay - delay between the end of a run and the start of the next one
+         * @param unit - unit of the delays
+         * @return future of the task, can be used to cancel it
+         */
+        public ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long initialDelay, long delay, TimeUnit unit) {
+            final long[] due = { System.nanoTime() + unit.toNanos(initialDelay) };
+            return track(executor.scheduleWithFixedDelay(() -> {
+                measure(task, due[0]);
+                due[0] = System.nanoTime() + unit.toNanos(delay);
+            }, initialDelay, delay, unit));
+        }
+
+        /**
+         * execute runs a task as soon as possible
+         *
+         * @param task - task to run, must not block
+         */
+        public void execute(Runnable task) {
+            schedule(task, 0, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * cancelAll cancels all pending tasks of the group
+         */
+        public void cancelAll() {
+            logger.debug("TaskGroup {}: cancelling {} tasks", name, tasks.size());
+            for (ScheduledFuture<?> task : tasks) {
+                task.cancel(false);
+            }
+            tasks.clear();
+        }
+
+        /**
+         * @return queue wait and run time statistics of the group
+         */
+        public Stats getStats() {
+            return stats;
+        }
+
+        private ScheduledFuture<?> track(ScheduledFuture<?> future) {
+            tasks.removeIf(ScheduledFuture::isDone);
+            tasks.add(future);
+            return future;
+        }
+
+        private void measure(Runnable task, long due) {
+            final long start = System.nanoTime();
+            try {
+                task.run();
+            } catch (Exception e) {
+                logger.warn("TaskGroup {}: task failed - {}", name, e.getMessage());
+            } finally {
+                final long end = System.nanoTime();
+                stats.record(TimeUnit.NANOSECONDS.toMillis(Math.max(0, start - due)),
+                        TimeUnit.NANOSECONDS.toMillis(end - start));
+            }
+        }
+    }
+}
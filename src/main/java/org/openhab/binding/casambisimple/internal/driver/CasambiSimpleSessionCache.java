@@ -0,0 +1,200 @@
+/**
+ * Copyright (c) 2010-2022 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.casambisimple.internal.driver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+
+/**
+ * The {@link CasambiSimpleSessionCache} keeps the user session id and the network id on disk, so that a restart of
+ * the bridge can reuse the session instead of logging in again.
+ *
+ * The entry is tagged with an HMAC of the connection parameters (API key, user id, passwords). A change of the bridge
+ * configuration therefore invalidates the entry. The HMAC key is a random secret kept in a second file next to the
+ * cache file, so the tag cannot be used to guess the passwords without that secret. Both files are only readable by
+ * the owner (where the file system supports this), the cache file is replaced atomically.
+ *
+ * @author Hein Osenberg - Initial contribution
+ */
+@NonNullByDefault
+public class CasambiSimpleSessionCache {
+
+    /**
+     * Entry is the cached session, used to (de)serialize the cache file with gson
+     */
+    public static class Entry {
+        public String key = "";
+        public String sessionId = "";
+        public String networkId = "";
+        public long created;
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(CasambiSimpleSessionCache.class);
+
+    private final Path cacheFile;
+    private final Path secretFile;
+    private final String key;
+
+    private static final int secretLength = 32; // bytes
+
+    /**
+     * Constructor for the session cache
+     *
+     * @param file - path of the cache file (directories are created as needed)
+     * @param key - Casambi API key
+     * @param user - Casambi user id
+     * @param usrPw - Casambi user password
+     * @param netPw - Casambi network password
+     */
+    public CasambiSimpleSessionCache(Path file, String key, String user, String usrPw, String netPw) {
+        cacheFile = file;
+        secretFile = file.resolveSibling(file.getFileName() + ".secret");
+        this.key = hmac(loadSecret(), key + "\n" + user + "\n" + usrPw + "\n" + netPw);
+    }
+
+    /**
+     * load returns the cached session, if there is one for the current connection parameters
+     *
+     * @return cached session or null
+     */
+    public @Nullable Entry load() {
+        try {
+            if (Files.isReadable(cacheFile)) {
+                final Entry entry = new Gson().fromJson(Files.readString(cacheFile, StandardCharsets.UTF_8),
+                        Entry.class);
+                if (entry != null && !key.isEmpty() && key.equals(entry.key) && !entry.sessionId.isEmpty()
+                        && !entry.networkId.isEmpty()) {
+                    logger.debug("sessionCache.load: found session for network {}", entry.networkId);
+                    return entry;
+                } else {
+                    logger.debug("sessionCache.load: cached session does not match configuration");
+                }
+            }
+        } catch (Exception e) {
+            logger.info("sessionCache.load: cannot read {} - {}", cacheFile, e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * store writes the session to the cache file
+     *
+     * @param sessionId - user session id
+     * @param networkId - network id
+     */
+    public void store(String sessionId, String networkId) {
+        final Entry entry = new Entry();
+        entry.key = key;
+        entry.sessionId = sessionId;
+        entry.networkId = networkId;
+        entry.created = System.currentTimeMillis();
+        try {
+            writePrivate(cacheFile, new Gson().toJson(entry));
+            logger.debug("sessionCache.store: session stored in {}", cacheFile);
+        } catch (Exception e) {
+            logger.info("sessionCache.store: cannot write {} - {}", cacheFile, e.getMessage());
+        }
+    }
+
+    /**
+     * clear removes the cached session, e.g. after the Casambi cloud rejected it
+     */
+    public void clear() {
+        try {
+            if (Files.deleteIfExists(cacheFile)) {
+                logger.debug("sessionCache.clear: removed {}", cacheFile);
+            }
+        } catch (Exception e) {
+            logger.info("sessionCache.clear: cannot remove {} - {}", cacheFile, e.getMessage());
+        }
+    }
+
+    /**
+     * loadSecret reads the HMAC key of this installation, a new random key is created on first use. If the key cannot
+     * be stored, a key for this run only is used (cached sessions are then not found after a restart).
+     *
+     * @return HMAC key
+     */
+    private byte[] loadSecret() {
+        try {
+            if (Files.isReadable(secretFile)) {
+                final String hex = Files.readString(secretFile, StandardCharsets.UTF_8).trim();
+                final byte[] secret = HexFormat.of().parseHex(hex);
+                if (secret.length == secretLength) {
+                    return secret;
+                }
+                logger.debug("sessionCache.loadSecret: invalid secret in {}, creating a new one", secretFile);
+            }
+        } catch (Exception e) {
+            logger.info("sessionCache.loadSecret: cannot read {} - {}", secretFile, e.getMessage());
+        }
+        final byte[] secret = new byte[secretLength];
+        new SecureRandom().nextBytes(secret);
+        try {
+            writePrivate(secretFile, HexFormat.of().formatHex(secret));
+        } catch (Exception e) {
+            logger.info("sessionCache.loadSecret: cannot write {} - {}", secretFile, e.getMessage());
+        }
+        return secret;
+    }
+
+    /**
+     * writePrivate replaces a file atomically by one that is only readable by the owner
+     *
+     * @param file - file to be written (directories are created as needed)
+     * @param content - new content of the file
+     * @throws IOException
+     */
+    private void writePrivate(Path file, String content) throws IOException {
+        final Path dir = file.toAbsolutePath().getParent();
+        if (dir != null) {
+            Files.createDirectories(dir);
+        }
+        final Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.deleteIfExists(tmpFile);
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(tmpFile,
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+        Files.writeString(tmpFile, content, StandardCharsets.UTF_8);
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String hmac(byte[] secret, String value) {
+        try {
+            final Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            return HexFormat.of().formatHex(mac.doFinal(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (Exception e) {
+            // Without a usable HMAC nothing is derived from the passwords, the cache never matches
+            return "";
+        }
+    }
+}
@@ -60,6 +60,10 @@ public class CasambiSimpleMessageControl {
         return ("Slider".equals(type) && "CCT".equals(name)) || "CCT".equals(type);
     }
 
+    public Boolean isWhiteLevel() {
+        return ("Slider".equals(type) && "White".equals(name)) || "White".equals(type) || "White Dimmer".equals(type);
+    }
+
     public Float getMin() {
         Float localMin = min;
         if (localMin != null) {
@@ -14,6 +14,7 @@ package org.openhab.binding.casambisimple.internal.driver.messages;
 
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.binding.casambisimple.internal.driver.CasambiSimpleCapabilities;
 
 /**
  * The {@link CasambiSimpleMessageUnit} is used to parse single unit structures with gson
@@ -42,6 +43,8 @@ public class CasambiSimpleMessageUnit {
     public @Nullable Float dimLevel;
     // public Set<String> labels;
     public String type;
+    // Decoded controls, shared by all units of the fixture (not part of the message)
+    public transient @Nullable CasambiSimpleCapabilities capabilities;
 
     CasambiSimpleMessageUnit() {
         id = -1;
@@ -0,0 +1,115 @@
+/**
+ * Copyright (c) 2010-2022 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.casambisimple.internal.handler;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.binding.casambisimple.internal.driver.messages.CasambiSimpleMessageUnit;
+
+/**
+ * The {@link CasambiSimpleActiveScenes} keeps track of the active scenes of the network
+ *
+ * The active scenes are a bit set indexed by scene id, so a lookup is O(1). The set is replaced by the activeScenes
+ * list of every polled network state. In between, the activeSceneId of unitChanged messages is counted per scene: a
+ * scene becomes active when a unit reports it and inactive when the last unit reporting it moves on to another (or no)
+ * scene. All updates return the scenes that have changed, so that only their things need to be updated.
+ *
+ * @author Hein Osenberg - Initial contribution
+ */
+@NonNullByDefault
+public class CasambiSimpleActiveScenes {
+
+    private final BitSet active = new BitSet();
+    private final Map<Integer, Integer> unitScenes = new HashMap<>(); // Unit id -> active scene id reported
+    private final Map<Integer, Integer> unitCounts = new HashMap<>(); // Scene id -> number of units reporting it
+
+    /**
+     * replace sets the active scenes from a network state
+     *
+     * @param activeScenes - ids of the active scenes, null entries are ignored
+     * @param units - units of the network state for their activeSceneId, may be null
+     * @return ids of the scenes that have changed
+     */
+    public synchronized BitSet replace(@Nullable Integer @Nullable [] activeScenes,
+            @Nullable Map<Integer, CasambiSimpleMessageUnit> units) {
+        final BitSet changed = (BitSet) active.clone();
+        active.clear();
+        if (activeScenes != null) {
+            for (Integer sceneId : activeScenes) {
+                if (sceneId != null && sceneId > 0) {
+                    active.set(sceneId);
+                }
+            }
+        }
+        unitScenes.clear();
+        unitCounts.clear();
+        if (units != null) {
+            for (CasambiSimpleMessageUnit unit : units.values()) {
+                final Integer sceneId = unit.activeSceneId;
+                if (sceneId != null && sceneId > 0) {
+                    unitScenes.put(unit.id, sceneId);
+                    unitCounts.merge(sceneId, 1, Integer::sum);
+                }
+            }
+        }
+        changed.xor(active);
+        return changed;
+    }
+
+    /**
+     * updateUnit records the active scene reported by a unit
+     *
+     * @param unitId - Casambi id of the unit
+     * @param sceneId - active scene id of the unit (0 for none), null if not reported
+     * @return ids of the scenes that have changed
+     */
+    public synchronized BitSet updateUnit(int unitId, @Nullable Integer sceneId) {
+        final BitSet changed = new BitSet();
+        if (sceneId == null) {
+            return changed;
+        }
+        final Integer previous = (sceneId > 0) ? unitScenes.put(unitId, sceneId) : unitScenes.remove(unitId);
+        if (previous != null && previous.equals(sceneId)) {
+            return changed;
+        }
+        if (previous != null && unitCounts.merge(previous, -1, Integer::sum) <= 0) {
+            unitCounts.remove(previous);
+            if (active.get(previous)) {
+                active.clear(previous);
+                changed.set(previous);
+            }
+        }
+        if (sceneId > 0) {
+            unitCounts.merge(sceneId, 1, Integer::sum);
+            if (!active.get(sceneId)) {
+                active.set(sceneId);
+                changed.set(sceneId);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * isActive checks if a scene is active
+     *
+     * @param sceneId - Casambi id of the scene
+     * @return true if the scene is active
+     */
+    public synchronized boolean isActive(int sceneId) {
+        return sceneId >= 0 && active.get(sceneId);
+    }
+}
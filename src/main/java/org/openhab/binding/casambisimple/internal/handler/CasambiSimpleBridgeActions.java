@@ -0,0 +1,237 @@
+/**
+ * Copyright (c) 2010-2022 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.casambisimple.internal.handler;
+
+import static org.openhab.binding.casambisimple.internal.CasambiSimpleBindingConstants.*;
+
+import java.util.Arrays;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.core.automation.annotation.ActionInput;
+import org.openhab.core.automation.annotation.RuleAction;
+import org.openhab.core.thing.binding.ThingActions;
+import org.openhab.core.thing.binding.ThingActionsScope;
+import org.openhab.core.thing.binding.ThingHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link CasambiSimpleBridgeActions} offers the fades of the bridge's transition engine and the unit timers to
+ * rules
+ *
+ * Example (rules DSL):
+ *
+ * <pre>
+ * val casambi = getActions("casambisimple", "casambisimple:casambibridge:mybridge")
+ * casambi.fadeGroup(3, 80, 10000, "EASE_IN_OUT")
+ * casambi.pulseUnits("7", 30)
+ * </pre>
+ *
+ * @author Hein Osenberg - Initial contribution
+ */
+@ThingActionsScope(name = BINDING_ID)
+@NonNullByDefault
+public class CasambiSimpleBridgeActions implements ThingActions {
+
+    private final Logger logger = LoggerFactory.getLogger(CasambiSimpleBridgeActions.class);
+
+    private @Nullable CasambiSimpleBridgeHandler bridgeHandler;
+
+    @Override
+    public void setThingHandler(@Nullable ThingHandler handler) {
+        if (handler instanceof CasambiSimpleBridgeHandler) {
+            bridgeHandler = (CasambiSimpleBridgeHandler) handler;
+        }
+    }
+
+    @Override
+    public @Nullable ThingHandler getThingHandler() {
+        return bridgeHandler;
+    }
+
+    /**
+     * fadeUnits fades a number of luminaires to a dim level
+     *
+     * @param unitIds - comma separated Casambi ids of the luminaires
+     * @param level - target dim level (0-100)
+     * @param duration - duration in milliseconds
+     * @param easing - LINEAR, EASE_IN, EASE_OUT or EASE_IN_OUT (default LINEAR)
+     */
+    @RuleAction(label = "fade luminaires", description = "Fades luminaires to a dim level")
+    public void fadeUnits(@ActionInput(name = "unitIds", label = "Luminaire ids") @Nullable String unitIds,
+            @ActionInput(name = "level", label = "Level") @Nullable Number level,
+            @ActionInput(name = "duration", label = "Duration") @Nullable Number duration,
+            @ActionInput(name = "easing", label = "Easing") @Nullable String easing) {
+        final CasambiSimpleBridgeHandler bridgeHandlerLocal = bridgeHandler;
+        if (bridgeHandlerLocal == null || unitIds == null || level == null || duration == null) {
+            logger.info("fadeUnits: bridge or arguments missing");
+            return;
+        }
+        try {
+            final int[] ids = Arrays.stream(unitIds.split(",")).map(String::trim).filter(s -> !s.isEmpty())
+                    .mapToInt(Integer::parseInt).toArray();
+            bridgeHandlerLocal.fadeUnits(ids, level.floatValue() / 100, duration.longValue(), parseEasing(easing));
+        } catch (NumberFormatException e) {
+            logger.info("fadeUnits: illegal unit ids '{}'", unitIds);
+        }
+    }
+
+    /**
+     * fadeGroup fades the luminaires of a group to a dim level
+     *
+     * @param groupId - Casambi id of the group
+     * @param level - target dim level (0-100)
+     * @param duration - duration in milliseconds
+     * @param easing - LINEAR, EASE_IN, EASE_OUT or EASE_IN_OUT (default LINEAR)
+     */
+    @RuleAction(label = "fade group", description = "Fades the luminaires of a group to a dim level")
+    public void fadeGroup(@ActionInput(name = "groupId", label = "Group id") @Nullable Number groupId,
+            @ActionInput(name = "level", label = "Level") @Nullable Number level,
+            @ActionInput(name = "duration", label = "Duration") @Nullable Number duration,
+            @ActionInput(name = "easing", label = "Easing") @Nullable String easing) {
+        final CasambiSimpleBridgeHandler bridgeHandlerLocal = bridgeHandler;
+        if (bridgeHandlerLocal == null || groupId == null || level == null || duration == null) {
+            logger.info("fadeGroup: bridge or arguments missing");
+            return;
+        }
+        bridgeHandlerLocal.fadeGroup(groupId.intValue(), level.floatValue() / 100, duration.longValue(),
+                parseEasing(easing));
+    }
+
+    /**
+     * cancelFades stops the fades of a number of luminaires at the level reached so far
+     *
+     * @param unitIds - comma separated Casambi ids of the luminaires
+     */
+    @RuleAction(label = "cancel fades", description = "Stops the fades of luminaires")
+    public void cancelFades(@ActionInput(name = "unitIds", label = "Luminaire ids") @Nullable String unitIds) {
+        final CasambiSimpleBridgeHandler bridgeHandlerLocal = bridgeHandler;
+        if (bridgeHandlerLocal == null || unitIds == null) {
+            return;
+        }
+        try {
+            bridgeHandlerLocal.cancelFades(Arrays.stream(unitIds.split(",")).map(String::trim)
+                    .filter(s -> !s.isEmpty()).mapToInt(Integer::parseInt).toArray());
+        } catch (NumberFormatException e) {
+            logger.info("cancelFades: illegal unit ids '{}'", unitIds);
+        }
+    }
+
+    /**
+     * switchUnitsDelayed switches a number of luminaires on or off after a delay
+     *
+     * @param unitIds - comma separated Casambi ids of the luminaires
+     * @param on - switch on (true) or off (false)
+     * @param delay - delay in seconds
+     */
+    @RuleAction(label = "switch luminaires delayed", description = "Switches luminaires on or off after a delay")
+    public void switchUnitsDelayed(@ActionInput(name = "unitIds", label = "Luminaire ids") @Nullable String unitIds,
+            @ActionInput(name = "on", label = "On") @Nullable Boolean on,
+            @ActionInput(name = "delay", label = "Delay") @Nullable Number delay) {
+        final CasambiSimpleBridgeHandler bridgeHandlerLocal = bridgeHandler;
+        if (bridgeHandlerLocal == null || unitIds == null || on == null || delay == null) {
+            logger.info("switchUnitsDelayed: bridge or arguments missing");
+            return;
+        }
+        try {
+            bridgeHandlerLocal.switchUnitsDelayed(parseUnitIds(unitIds), on, Math.round(delay.doubleValue() * 1000));
+        } catch (NumberFormatException e) {
+            logger.info("switchUnitsDelayed: illegal unit ids '{}'", unitIds);
+        }
+    }
+
+    /**
+     * pulseUnits switches a number of luminaires on and off again after a duration
+     *
+     * @param unitIds - comma separated Casambi ids of the luminaires
+     * @param duration - duration in seconds
+     */
+    @RuleAction(label = "pulse luminaires", description = "Switches luminaires on for a while")
+    public void pulseUnits(@ActionInput(name = "unitIds", label = "Luminaire ids") @Nullable String unitIds,
+            @ActionInput(name = "duration", label = "Duration") @Nullable Number duration) {
+        final CasambiSimpleBridgeHandler bridgeHandlerLocal = bridgeHandler;
+        if (bridgeHandlerLocal == null || unitIds == null || duration == null) {
+            logger.info("pulseUnits: bridge or arguments missing");
+            return;
+        }
+        try {
+            bridgeHandlerLocal.pulseUnits(parseUnitIds(unitIds), Math.round(duration.doubleValue() * 1000));
+        } catch (NumberFormatException e) {
+            logger.info("pulseUnits: illegal unit ids '{}'", unitIds);
+        }
+    }
+
+    /**
+     * cancelUnitTimers cancels the delayed actions, pulses and auto-off timers of a number of luminaires
+     *
+     * @param unitIds - comma separated Casambi ids of the luminaires
+     */
+    @RuleAction(label = "cancel luminaire timers", description = "Cancels the timers of luminaires")
+    public void cancelUnitTimers(@ActionInput(name = "unitIds", label = "Luminaire ids") @Nullable String unitIds) {
+        final CasambiSimpleBridgeHandler bridgeHandlerLocal = bridgeHandler;
+        if (bridgeHandlerLocal == null || unitIds == null) {
+            return;
+        }
+        try {
+            bridgeHandlerLocal.cancelUnitTimers(parseUnitIds(unitIds));
+        } catch (NumberFormatException e) {
+            logger.info("cancelUnitTimers: illegal unit ids '{}'", unitIds);
+        }
+    }
+
+    // Static methods for the rules DSL
+
+    public static void fadeUnits(ThingActions actions, @Nullable String unitIds, @Nullable Number level,
+            @Nullable Number duration, @Nullable String easing) {
+        ((CasambiSimpleBridgeActions) actions).fadeUnits(unitIds, level, duration, easing);
+    }
+
+    public static void fadeGroup(ThingActions actions, @Nullable Number groupId, @Nullable Number level,
+            @Nullable Number duration, @Nullable String easing) {
+        ((CasambiSimpleBridgeActions) actions).fadeGroup(groupId, level, duration, easing);
+    }
+
+    public static void cancelFades(ThingActions actions, @Nullable String unitIds) {
+        ((CasambiSimpleBridgeActions) actions).cancelFades(unitIds);
+    }
+
+    public static void switchUnitsDelayed(ThingActions actions, @Nullable String unitIds, @Nullable Boolean on,
+            @Nullable Number delay) {
+        ((CasambiSimpleBridgeActions) actions).switchUnitsDelayed(unitIds, on, delay);
+    }
+
+    public static void pulseUnits(ThingActions actions, @Nullable String unitIds, @Nullable Number duration) {
+        ((CasambiSimpleBridgeActions) actions).pulseUnits(unitIds, duration);
+    }
+
+    public static void cancelUnitTimers(ThingActions actions, @Nullable String unitIds) {
+        ((CasambiSimpleBridgeActions) actions).cancelUnitTimers(unitIds);
+    }
+
+    private int[] parseUnitIds(String unitIds) {
+        return Arrays.stream(unitIds.split(",")).map(String::trim).filter(s -> !s.isEmpty())
+                .mapToInt(Integer::parseInt).toArray();
+    }
+
+    private CasambiSimpleTransitionEngine.Easing parseEasing(@Nullable String easing) {
+        if (easing != null && !easing.isBlank()) {
+            try {
+                return CasambiSimpleTransitionEngine.Easing.valueOf(easing.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                logger.info("parseEasing: unknown easing '{}', using LINEAR", easing);
+            }
+        }
+        return CasambiSimpleTransitionEngine.Easing.LINEAR;
+    }
+}
@@ -25,8 +25,15 @@ public class CasambiSimpleBridgeConfiguration {
     public String userId = "";
     public String userPassword = "";
     public String networkPassword = "";
+    public Integer restTimeout = 30;
+    public Boolean standbyConnection = false;
+    public Integer bufferMaxAge = 60;
+    public Boolean virtualThreads = false;
     public Boolean logMessages = false;
     public String logDir = "";
     public Boolean useRemCmd = false;
     public String remCmdStr = "";
+    public Integer circadianInterval = 0;
+    public String circadianStart = "07:00";
+    public String circadianEnd = "21:00";
 }
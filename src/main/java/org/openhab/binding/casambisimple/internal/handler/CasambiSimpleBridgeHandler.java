@@ -14,15 +14,26 @@ package org.openhab.binding.casambisimple.internal.handler;
 
 import static org.openhab.binding.casambisimple.internal.CasambiSimpleBindingConstants.*;
 
-import java.util.Arrays;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Paths;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.jdt.annotation.Nullable;
@@ -33,14 +44,20 @@ import org.openhab.binding.casambisimple.internal.driver.CasambiSimpleDriverRest
 import org.openhab.binding.casambisimple.internal.driver.CasambiSimpleDriverSocket;
 import org.openhab.binding.casambisimple.internal.driver.CasambiSimpleDriverSystem;
 import org.openhab.binding.casambisimple.internal.driver.CasambiSimpleException;
+import org.openhab.binding.casambisimple.internal.driver.CasambiSimpleScheduler;
+import org.openhab.binding.casambisimple.internal.driver.CasambiSimpleSessionCache;
 import org.openhab.binding.casambisimple.internal.driver.messages.CasambiSimpleMessageEvent;
 import org.openhab.binding.casambisimple.internal.driver.messages.CasambiSimpleMessageEvent.messageType;
 import org.openhab.binding.casambisimple.internal.driver.messages.CasambiSimpleMessageNetworkState;
-import org.openhab.binding.casambisimple.internal.driver.messages.CasambiSimpleMessageScene;
 import org.openhab.binding.casambisimple.internal.driver.messages.CasambiSimpleMessageUnit;
+import org.openhab.core.OpenHAB;
+import org.openhab.core.library.types.DecimalType;
 import org.openhab.core.library.types.OnOffType;
 import org.openhab.core.library.types.PercentType;
 import org.openhab.core.library.types.StringType;
+import org.openhab.core.net.CidrAddress;
+import org.openhab.core.net.NetworkAddressChangeListener;
+import org.openhab.core.net.NetworkAddressService;
 import org.openhab.core.thing.Bridge;
 import org.openhab.core.thing.ChannelUID;
 import org.openhab.core.thing.Thing;
@@ -48,9 +65,11 @@ import org.openhab.core.thing.ThingStatus;
 import org.openhab.core.thing.ThingStatusDetail;
 import org.openhab.core.thing.binding.BaseBridgeHandler;
 import org.openhab.core.thing.binding.BridgeHandler;
+import org.openhab.core.thing.binding.ThingHandler;
 import org.openhab.core.thing.binding.ThingHandlerService;
 import org.openhab.core.types.Command;
 import org.openhab.core.types.RefreshType;
+import org.openhab.core.types.UnDefType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -81,33 +100,83 @@ public class CasambiSimpleBridgeHandler extends BaseBridgeHandler {
     private final WebSocketClient webSocketClient;
     public @Nullable CasambiSimpleDriverSocket casambiSocket;
 
+    private final @Nullable NetworkAddressService networkAddressService;
+    private final NetworkAddressChangeListener networkChangeListener = new NetworkAddressChangeListener() {
+        @Override
+        public void onChanged(List<CidrAddress> added, List<CidrAddress> removed) {
+            final CasambiSimpleDriverSocket casambiSocketLocal = casambiSocket;
+            if (casambiSocketLocal != null) {
+                logger.debug("networkChangeListener: network addresses changed, waking up socket reopen");
+                casambiSocketLocal.wakeReopen();
+            }
+        }
+    };
+
     private @Nullable CasambiSimpleDiscoveryService casambiDiscover;
 
     // FIXME: this is new, make sure it complies with development guidelines
     public @Nullable ExecutorService casambiExecutor;
+    // Blocking work (REST calls, session start, polls, convergence checks). Never the same as casambiExecutor, so that
+    // message handling (and with it the keepalive) is not held up by a slow call to the Casambi server
+    private @Nullable ExecutorService blockingExecutor;
+    // Socket sends of the fade, circadian and timer engines, in order and never behind a REST call
+    private @Nullable ExecutorService commandExecutor;
+
+    // Connection state machine. Timers run on the binding's shared scheduler, blocking work on the executors
+    private final CasambiSimpleScheduler.TaskGroup tasks;
+    // Operating system commands (gateway restarts), owned by the shared scheduler
+    private final Executor systemCommandExecutor;
+    private volatile CasambiSimpleBridgeState connectionState = CasambiSimpleBridgeState.INIT;
+    private @Nullable ScheduledFuture<?> keepAliveTimer;
+    private @Nullable ScheduledFuture<?> pongTimer;
+    private @Nullable ScheduledFuture<?> pollUnitStatusTimer;
+    private @Nullable ScheduledFuture<?> convergenceTimer;
+    private @Nullable ScheduledFuture<?> peerRecoveryTimer;
+    private @Nullable ScheduledFuture<?> saveStateTimer;
+    private int peerRecoveryStep = 0;
+    private long peerOfflineSince = 0; // System.nanoTime() when the peer went offline
+    // Gateway (peer) state, kept apart from the socket state. Only a peerChanged message changes it.
+    private volatile boolean peerOffline = false;
 
-    private @Nullable Future<?> pollMessageJob;
-    private volatile boolean pollMessageJobRunning = false;
-
-    private @Nullable Future<?> pollUnitStatusJob;
-    private volatile boolean pollUnitStatusJobRunning = false;
-
-    private @Nullable Future<?> peerRecoveryJob;
-    private volatile boolean peerRecoveryJobRunning = false;
-
-    private @Nullable Future<?> socketKeepAliveJob;
-    private volatile boolean socketKeepAliveJobRunning = false;
     private volatile int missedPong = 0;
+    private volatile long pingSentAt = 0;
+    private volatile long remCmdWaitSince = System.nanoTime(); // last pong or last restart command
+    private long rttHistogramUpdatedAt = 0;
+    private final CasambiSimpleRttStats rttStats = new CasambiSimpleRttStats();
 
     private @Nullable Future<?> initSessionJob;
+    private @Nullable CompletableFuture<Void> startupJob;
 
     private volatile boolean bridgeOnline = false;
     private boolean shutdownInProgress = false;
 
+    private @Nullable CasambiSimpleSessionCache sessionCache;
+    private volatile boolean sessionFromCache = false;
+
     private final int mSec = 1000;
     private final int min = 60 * mSec;
+    private final long keepAliveInterval = 280 * mSec; // slightly less than 5 minutes
+    private final long fastPingInterval = 2 * mSec;
+    private final int maxMissedPong = 3; // reopen the socket
+    private final long remCmdAfter = 10 * keepAliveInterval; // restart the peer, no pong for about 47 minutes
+    private final long rttHistogramInterval = 1 * min;
+    private final long pollUnitStatusInterval = 10 * min;
+    private final int[] peerRecoveryDelays = { 2, 3, 6, 2 }; // minutes
+    private final long saveStateInterval = 1 * min;
+    private final long saveStateTimeout = 2 * mSec;
+    private final long transitionTickInterval = 100; // milliseconds, 10 frames per second
+    private final int transitionFrameBudget = 10; // frames per tick for the whole network
 
     public final CasambiSimpleThingsById thingsById = new CasambiSimpleThingsById();
+    public final CasambiSimpleNetworkStateCache networkStateCache = new CasambiSimpleNetworkStateCache(1 * min);
+    public final CasambiSimpleConvergenceTracker convergenceTracker = new CasambiSimpleConvergenceTracker(5 * mSec, 3);
+    public final CasambiSimpleStateStore stateStore;
+    public final CasambiSimpleFixtureCache fixtureCache;
+    private final CasambiSimpleTransitionEngine transitions;
+    public final CasambiSimpleCircadianEngine circadian;
+    public final CasambiSimpleUnitTimers unitTimers;
+    public final CasambiSimpleMembershipIndex memberships = new CasambiSimpleMembershipIndex();
+    public final CasambiSimpleActiveScenes activeScenes = new CasambiSimpleActiveScenes();
 
     // --- Constructor ---------------------------------------------------------------------------------------------
 
@@ -117,24 +186,38 @@ public class CasambiSimpleBridgeHandler extends BaseBridgeHandler {
      * @param bridge - bridge as a thing
      * @param webSocketClient - from the webSocketFactory (OpenHAB infrastructure)
      * @param httpClient2 - from the httpClientFactory (OpenHAB infrastructure)
+     * @param networkAddressService - to be notified of network changes (OpenHAB infrastructure), may be null
+     * @param casambiScheduler - scheduler shared by all bridges of the binding (from the handler factory)
      *
      *            Just a couple of variable assignments. The actual initialization is done by the initialize() method
      */
-    public CasambiSimpleBridgeHandler(Bridge bridge, WebSocketClient webSocketClient, HttpClient httpClient) {
+    public CasambiSimpleBridgeHandler(Bridge bridge, WebSocketClient webSocketClient, HttpClient httpClient,
+            @Nullable NetworkAddressService networkAddressService, CasambiSimpleScheduler casambiScheduler) {
         super(bridge);
         logger.debug("CasambiSimpleBridgeHandler: #{} constructor with webSocketClient #{}, httpClient #{}",
                 this.hashCode(), webSocketClient.hashCode(), httpClient.hashCode());
         this.httpClient = httpClient;
         this.webSocketClient = webSocketClient;
+        this.networkAddressService = networkAddressService;
+        this.tasks = casambiScheduler.group(bridge.getUID().getId());
+        this.systemCommandExecutor = casambiScheduler.getCommandExecutor();
+        this.stateStore = new CasambiSimpleStateStore(
+                Paths.get(OpenHAB.getUserDataFolder(), BINDING_ID, bridge.getUID().getId() + ".state"));
+        this.fixtureCache = new CasambiSimpleFixtureCache(
+                Paths.get(OpenHAB.getUserDataFolder(), BINDING_ID, bridge.getUID().getId() + ".fixtures"), 256);
+        this.transitions = new CasambiSimpleTransitionEngine(tasks, this::runCommand, () -> casambiSocket, stateStore,
+                transitionTickInterval, transitionFrameBudget);
+        this.circadian = new CasambiSimpleCircadianEngine(tasks, this::runCommand, () -> casambiSocket, stateStore);
+        this.unitTimers = new CasambiSimpleUnitTimers(tasks, this::runCommand, () -> casambiSocket, this::cancelFades);
         config = getConfigAs(CasambiSimpleBridgeConfiguration.class);
     }
 
     /**
-     * getServices returns what exactly?
+     * getServices returns the discovery service and the rule actions of the bridge
      */
     @Override
     public Collection<Class<? extends ThingHandlerService>> getServices() {
-        return Collections.singleton(CasambiSimpleDiscoveryService.class);
+        return List.of(CasambiSimpleDiscoveryService.class, CasambiSimpleBridgeActions.class);
     }
 
     // --- Override superclass methods--------------------------------------------------------------------
@@ -154,9 +237,65 @@ public class CasambiSimpleBridgeHandler extends BaseBridgeHandler {
         }
         // initSessionJobRunning = false;
         // initSessionJob = scheduler.submit(initCasambiSession);
-        casambiExecutor = Executors.newFixedThreadPool(10);
-        initSessionJob = casambiExecutor.submit(initCasambiSession);
+        // One thread for message handling, one for the blocking work (REST calls), timers use the shared scheduler.
+        // With virtual threads, independent blocking work gets a virtual thread of its own.
+        shutdownInProgress = false;
+        connectionState = CasambiSimpleBridgeState.INIT;
+        peerOffline = false;
+        remCmdWaitSince = System.nanoTime();
+
+        // Last known unit states, shown until live state arrives. Local file only, no network I/O.
+        final int restored = stateStore.load();
+        fixtureCache.load();
+        logger.debug("initialize: restored last known state of {} units", restored);
+        for (Thing thing : thingsById.map.values()) {
+            final ThingHandler thingHandler = thing.getHandler();
+            if (thingHandler instanceof CasambiSimpleLuminaireHandler) {
+                ((CasambiSimpleLuminaireHandler) thingHandler).restoreLuminaireState();
+            }
+        }
+        publishSceneStates(activeScenes.replace(stateStore.getActiveScenes(), null));
+        final String threadName = "casambi-" + getThing().getUID().getId();
+        final boolean useVirtual = config.virtualThreads && CasambiSimpleThreads.isVirtualAvailable();
+        if (config.virtualThreads && !useVirtual) {
+            logger.info("initialize: virtual threads not supported by this Java runtime, using platform threads");
+        }
+        final ExecutorService casambiExecutorLocal = CasambiSimpleThreads.newSerialExecutor(useVirtual, threadName);
+        final ExecutorService perTaskExecutor = useVirtual ? CasambiSimpleThreads.newPerTaskExecutor(threadName)
+                : null;
+        final ExecutorService blockingExecutorLocal = (perTaskExecutor != null) ? perTaskExecutor
+                : CasambiSimpleThreads.newSerialExecutor(false, threadName + "-blocking");
+        casambiExecutor = casambiExecutorLocal;
+        blockingExecutor = blockingExecutorLocal;
+        commandExecutor = CasambiSimpleThreads.newSerialExecutor(useVirtual, threadName + "-commands");
+        updateProperty(BRIDGE_PROPERTY_THREADS, (perTaskExecutor != null) ? "virtual" : "platform");
+        initSessionJob = blockingExecutorLocal.submit(initCasambiSession);
         logger.debug("initialize: initSessionJob #{} started", initCasambiSession.hashCode());
+        final ScheduledFuture<?> saveStateTimerLocal = saveStateTimer;
+        if (saveStateTimerLocal != null) {
+            saveStateTimerLocal.cancel(false);
+        }
+        saveStateTimer = tasks.scheduleWithFixedDelay(() -> runBlocking(this::saveState), saveStateInterval,
+                saveStateInterval, TimeUnit.MILLISECONDS);
+
+        // Circadian mode, luminaires subscribe in their initialize()
+        if (config.circadianInterval > 0) {
+            try {
+                circadian.start(config.circadianInterval, LocalTime.parse(config.circadianStart),
+                        LocalTime.parse(config.circadianEnd));
+            } catch (DateTimeParseException e) {
+                logger.warn("initialize: illegal circadian day start/end {} - {}", config.circadianStart,
+                        config.circadianEnd);
+            }
+        } else {
+            circadian.stop();
+        }
+
+        // Retry the socket immediately when the network comes back
+        final NetworkAddressService networkAddressServiceLocal = networkAddressService;
+        if (networkAddressServiceLocal != null) {
+            networkAddressServiceLocal.addNetworkAddressChangeListener(networkChangeListener);
+        }
 
         // Discovery Handler
         BridgeHandler bridgeHandler = this.getThing().getHandler();
@@ -176,8 +315,46 @@ public class CasambiSimpleBridgeHandler extends BaseBridgeHandler {
         logger.info("casambiBridge:dispose tear down bridge #{}", this.hashCode());
         shutdownInProgress = true;
 
+        final NetworkAddressService networkAddressServiceLocal = networkAddressService;
+        if (networkAddressServiceLocal != null) {
+            networkAddressServiceLocal.removeNetworkAddressChangeListener(networkChangeListener);
+        }
+
+        transition(CasambiSimpleBridgeState.STOPPED, "dispose");
+        tasks.cancelAll();
+        saveStateTimer = null;
+        final ExecutorService blockingExecutorLocal = blockingExecutor;
+        if (blockingExecutorLocal != null) {
+            // Final save on the blocking thread, dispose waits for it only for a short time
+            try {
+                blockingExecutorLocal.submit(this::saveState).get(saveStateTimeout, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                logger.info("casambiBridge:dispose final save of the unit state not done within {} ms",
+                        saveStateTimeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | RejectedExecutionException e) {
+                logger.warn("casambiBridge:dispose final save of the unit state failed - {}", e.getMessage());
+            }
+        }
+        if (startupJob != null) {
+            startupJob.cancel(true);
+        }
+        if (blockingExecutorLocal != null) {
+            blockingExecutorLocal.shutdownNow();
+        }
+        blockingExecutor = null;
+        final ExecutorService commandExecutorLocal = commandExecutor;
+        if (commandExecutorLocal != null) {
+            commandExecutorLocal.shutdownNow();
+        }
+        commandExecutor = null;
+        // Stopped after the command executor, so the engines also forget commands it dropped
+        transitions.stop();
+        circadian.stop();
+        unitTimers.stop();
         if (casambiExecutor != null) {
-            List<Runnable> stoppedJobs = casambiExecutor.shutdownNow();
+            casambiExecutor.shutdownNow();
             try {
                 casambiExecutor.awaitTermination(5 * mSec, TimeUnit.MILLISECONDS); // Wait 5 seconds
                 logger.debug("casambiBridge:dispose all Jobs shut down.");
@@ -188,32 +365,6 @@ public class CasambiSimpleBridgeHandler extends BaseBridgeHandler {
             logger.warn("casambiBridge:dispose casambiExecutor is null");
         }
 
-        // FIXME: these should all have been shut down by now
-        if (pollMessageJob != null) {
-            int hc = pollMessageJob.hashCode();
-            pollMessageJob.cancel(true);
-            pollMessageJobRunning = false;
-            logger.debug("casambiBridge:dispose pollMessageJob #{} stopped", hc);
-        }
-        if (socketKeepAliveJob != null) {
-            int hc = socketKeepAliveJob.hashCode();
-            socketKeepAliveJob.cancel(true);
-            socketKeepAliveJobRunning = false;
-            logger.debug("casambiBridge:dispose keepAlive #{} stopped", hc);
-        }
-        if (pollUnitStatusJob != null) {
-            int hc = pollUnitStatusJob.hashCode();
-            pollUnitStatusJob.cancel(true);
-            pollUnitStatusJobRunning = false;
-            logger.debug("casambiBridge:dispose pollStatus #{} stopped", hc);
-        }
-        if (peerRecoveryJob != null) {
-            int hc = peerRecoveryJob.hashCode();
-            peerRecoveryJob.cancel(true);
-            peerRecoveryJobRunning = false;
-            logger.debug("casambiBridge:dispose peerRecovery #{} stopped", hc);
-        }
-
         // Close sockets before opening new ones
         if (casambiSocket != null) {
             logger.debug("casambiBridge:dispose closing socket #{}", casambiSocket.hashCode());
@@ -289,6 +440,238 @@ public class CasambiSimpleBridgeHandler extends BaseBridgeHandler {
         return bridgeOnline;
     }
 
+    /**
+     * getNetworkState returns the network state from the cache, if it is recent enough, otherwise from the Casambi
+     * cloud
+     *
+     * @return network state, null if it could not be fetched
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws URISyntaxException
+     * @throws CasambiSimpleException
+     * @throws TimeoutException
+     * @throws ExecutionException
+     */
+    public @Nullable CasambiSimpleMessageNetworkState getNetworkState() throws IOException, InterruptedException,
+            URISyntaxException, CasambiSimpleException, TimeoutException, ExecutionException {
+        final CasambiSimpleMessageNetworkState cached = networkStateCache.get();
+        if (cached != null) {
+            logger.trace("getNetworkState: using cached network state");
+            return cached;
+        }
+        final CasambiSimpleDriverRest casambiRestLocal = casambiRest;
+        if (casambiRestLocal == null) {
+            return null;
+        }
+        final CasambiSimpleMessageNetworkState networkState = casambiRestLocal.getNetworkState();
+        if (networkState != null) {
+            storeNetworkState(networkState);
+        }
+        return networkState;
+    }
+
+    /**
+     * storeNetworkState replaces the controls of the units by the shared capability descriptors of their fixtures and
+     * keeps the network state in the cache
+     *
+     * @param networkState - network state as returned by the Casambi cloud service
+     */
+    private void storeNetworkState(CasambiSimpleMessageNetworkState networkState) {
+        if (networkState.units != null) {
+            for (CasambiSimpleMessageUnit unit : networkState.units.values()) {
+                fixtureCache.intern(unit);
+            }
+        }
+        memberships.rebuild(networkState);
+        networkStateCache.put(networkState);
+    }
+
+    /**
+     * fadeUnits fades luminaires to a dim level with the client side transition engine
+     *
+     * @param unitIds - Casambi ids of the luminaires
+     * @param level - target dim level (0-1)
+     * @param durationMs - duration in milliseconds
+     * @param easing - easing function
+     */
+    public void fadeUnits(int[] unitIds, float level, long durationMs, CasambiSimpleTransitionEngine.Easing easing) {
+        for (int unitId : unitIds) {
+            unitTimers.activity(unitId, level > 0);
+        }
+        transitions.fade(unitIds, level, durationMs, easing);
+    }
+
+    /**
+     * fadeGroup fades the luminaires of a group to a dim level with the client side transition engine. The members
+     * of the group are taken from the membership index, so the rule thread does not wait for the Casambi cloud.
+     *
+     * @param groupId - Casambi id of the group
+     * @param level - target dim level (0-1)
+     * @param durationMs - duration in milliseconds
+     * @param easing - easing function
+     */
+    public void fadeGroup(int groupId, float level, long durationMs, CasambiSimpleTransitionEngine.Easing easing) {
+        final int[] members = memberships.getGroupMembers(groupId);
+        if (members.length == 0) {
+            logger.info("fadeGroup: group {} not found or empty", groupId);
+            return;
+        }
+        fadeUnits(members, level, durationMs, easing);
+    }
+
+    /**
+     * cancelFades stops the fades of luminaires at the level reached so far. Called for every manual command to a
+     * luminaire, otherwise the next frame of its fade would undo the command.
+     *
+     * @param unitIds - Casambi ids of the luminaires
+     */
+    public void cancelFades(int[] unitIds) {
+        transitions.cancel(unitIds);
+    }
+
+    /**
+     * cancelGroupFades stops the fades of the members of a group, before a command is sent to the group
+     *
+     * @param groupId - Casambi id of the group
+     */
+    public void cancelGroupFades(int groupId) {
+        transitions.cancel(memberships.getGroupMembers(groupId));
+    }
+
+    /**
+     * cancelSceneFades stops the fades of the members of a scene, before a command is sent to the scene
+     *
+     * @param sceneId - Casambi id of the scene
+     */
+    public void cancelSceneFades(int sceneId) {
+        final Map<Integer, @Nullable Float> members = memberships.getSceneMembers(sceneId);
+        transitions.cancel(members.keySet().stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    /**
+     * propagateGroupState shows the state commanded to a group on all member luminaires right away, without waiting for
+     * their unitChanged messages. The luminaires are tracked for convergence, so that missing updates are checked.
+     * unitChanged messages overwrite the optimistic state.
+     *
+     * @param groupId - Casambi id of the group
+     * @param on - commanded on/off state
+     * @param dimLevel - commanded dim level (0-1), null for on/off commands
+     */
+    public void propagateGroupState(int groupId, boolean on, @Nullable Float dimLevel) {
+        final int[] members = memberships.getGroupMembers(groupId);
+        logger.debug("propagateGroupState: group {}, {} members, on {}, dim {}", groupId, members.length, on,
+                dimLevel);
+        for (int unitId : members) {
+            propagateUnitState(unitId, on, dimLevel);
+        }
+    }
+
+    /**
+     * propagateSceneState shows the state commanded to a scene on all member luminaires right away. Members are
+     * switched on at their level in the scene (scaled by the scene level), if the network state has it.
+     *
+     * @param sceneId - Casambi id of the scene
+     * @param on - commanded on/off state
+     * @param level - commanded scene level (0-1), null for on/off commands
+     */
+    public void propagateSceneState(int sceneId, boolean on, @Nullable Float level) {
+        final Map<Integer, @Nullable Float> members = memberships.getSceneMembers(sceneId);
+        logger.debug("propagateSceneState: scene {}, {} members, on {}, level {}", sceneId, members.size(), on,
+                level);
+        for (Map.Entry<Integer, @Nullable Float> member : members.entrySet()) {
+            final Float sceneLevel = member.getValue();
+            final Float dimLevel = (on && sceneLevel != null) ? sceneLevel * ((level != null) ? level : 1) : null;
+            propagateUnitState(member.getKey(), on && (dimLevel == null || dimLevel > 0), dimLevel);
+        }
+    }
+
+    private void propagateUnitState(int unitId, boolean on, @Nullable Float dimLevel) {
+        unitTimers.activity(unitId, on);
+        if (dimLevel != null) {
+            convergenceTracker.expectDimLevel(unitId, dimLevel);
+        } else {
+            convergenceTracker.expectOnOff(unitId, on);
+        }
+        final Thing thing = thingsById.getFirstLuminaire(unitId);
+        final CasambiSimpleLuminaireHandler thingHandler = (thing != null)
+                ? (CasambiSimpleLuminaireHandler) thing.getHandler()
+                : null;
+        if (thingHandler != null) {
+            thingHandler.updateLuminaireOptimistic(on, dimLevel);
+        }
+    }
+
+    /**
+     * publishSceneStates updates the channels of the scene things whose active state has changed
+     *
+     * @param changed - ids of the changed scenes
+     */
+    private void publishSceneStates(BitSet changed) {
+        for (int sceneId = changed.nextSetBit(0); sceneId >= 0; sceneId = changed.nextSetBit(sceneId + 1)) {
+            final boolean active = activeScenes.isActive(sceneId);
+            logger.trace("publishSceneStates: scene {} {}", sceneId, active ? "active" : "inactive");
+            final Thing thing = thingsById
+                    .getThing(thingsById.uidIdCombine(CasambiSimpleSceneHandler.getUidFromId(sceneId), sceneId));
+            final ThingHandler thingHandler = (thing != null) ? thing.getHandler() : null;
+            if (thingHandler instanceof CasambiSimpleSceneHandler) {
+                ((CasambiSimpleSceneHandler) thingHandler).updateSceneActive(active);
+            }
+        }
+    }
+
+    /**
+     * switchUnitsDelayed switches luminaires on or off after a delay. Replaces pending timers of the luminaires.
+     *
+     * @param unitIds - Casambi ids of the luminaires
+     * @param on - switch on (true) or off (false)
+     * @param delayMs - delay in milliseconds
+     */
+    public void switchUnitsDelayed(int[] unitIds, boolean on, long delayMs) {
+        for (int unitId : unitIds) {
+            unitTimers.schedule(unitId, on, delayMs, true);
+        }
+    }
+
+    /**
+     * pulseUnits switches luminaires on now and off again after a duration
+     *
+     * @param unitIds - Casambi ids of the luminaires
+     * @param durationMs - time in milliseconds until the luminaires are switched off
+     */
+    public void pulseUnits(int[] unitIds, long durationMs) {
+        for (int unitId : unitIds) {
+            unitTimers.schedule(unitId, false, durationMs, true);
+        }
+        transitions.cancel(unitIds);
+        try {
+            runCommand(() -> {
+                final CasambiSimpleDriverSocket casambiSocketLocal = casambiSocket;
+                if (casambiSocketLocal == null) {
+                    logger.info("pulseUnits: no socket, cannot switch on {} units", unitIds.length);
+                    return;
+                }
+                try {
+                    casambiSocketLocal.setUnitsOnOff(unitIds, true);
+                } catch (Exception e) {
+                    logger.debug("pulseUnits: {} units failed - {}", unitIds.length, e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.debug("pulseUnits: cannot switch on {} units - {}", unitIds.length, e.getMessage());
+        }
+    }
+
+    /**
+     * cancelUnitTimers cancels the pending delayed actions and auto-off timers of luminaires
+     *
+     * @param unitIds - Casambi ids of the luminaires
+     */
+    public void cancelUnitTimers(int[] unitIds) {
+        for (int unitId : unitIds) {
+            unitTimers.cancel(unitId);
+        }
+    }
+
     public void registerDiscoveryListener(CasambiSimpleDiscoveryService discoveryHandler) {
         logger.debug("registerDiscoveryListener:");
         casambiDiscover = discoveryHandler;
@@ -304,464 +687,902 @@ public class CasambiSimpleBridgeHandler extends BaseBridgeHandler {
     /**
      * initCasambiSession - Initiate the Casambi session and the associated tasks
      *
-     * Initializes the following objects (in order of appearance):
+     * The startup is organized as a graph of asynchronous stages, so that independent network round trips overlap:
      * - messageLogger - needed, when Casambi messages are to be logged
-     * - casambiRest with userSession and networkSession
-     * - sshCommand for connection recovery
-     * - pollUnitStatusJob (thread)
-     * - casambiSocket (depends on casambiRest)
-     * - bridgeOnline flag
-     * - pollMessageJob (thread, for casambiSocket messages)
-     * - socketKeepAliveJob (thread)
-     * FIXME: maybe divide this into individual try...catch sections
-     * FIXME: what to do, if initialisation is not successful? repeat? give up?
+     * - casambiRest, sshCommand for connection recovery
+     * - in parallel: userSession, networkSession and the websocket connect (name resolution, TLS handshake, upgrade)
+     * If a session from a previous run is found in the session cache, userSession and networkSession are skipped.
+     * The cached session is validated lazily: a 401 from the REST interface or a wire status error on the socket
+     * lead to a full login (see restartWithFullLogin).
+     * - when both sessions are there, in parallel: open the wire on the socket and fetch the first network state
+     * - wire open: state machine goes ONLINE, which arms the keepalive, unit status poll and convergence timers
+     * - network state: initial state of the things
+     * The time from start to ONLINE is recorded as a bridge property.
      */
     private Runnable initCasambiSession = new Runnable() {
         @Override
         public void run() {
             logger.debug("initCasambiSession: starting Job #{}", initCasambiSession.hashCode());
+            final long startTime = System.nanoTime();
 
-            // FIXME: these should be all null if cleanup works properly,
-            if (pollUnitStatusJob != null) {
-                logger.debug("initCasambiSession: cancelling pollUnitStatusJob #{}", pollUnitStatusJob.hashCode());
-                pollUnitStatusJob.cancel(true);
-            }
-            pollUnitStatusJobRunning = false;
-
-            if (pollMessageJob != null) {
-                logger.debug("initCasambiSession: cancelling pollMessageJob #{}", pollMessageJob.hashCode());
-                pollMessageJob.cancel(true);
-            }
-            pollMessageJobRunning = false;
-
-            if (socketKeepAliveJob != null) {
-                logger.debug("initCasambiSession: cancelling socketKeepAliveJob #{}", socketKeepAliveJob.hashCode());
-                socketKeepAliveJob.cancel(true);
-            }
-            socketKeepAliveJobRunning = false;
-
-            if (peerRecoveryJob != null) {
-                logger.debug("initCasambiSession: cancelling peerRecoveryJob #{}", peerRecoveryJob.hashCode());
-                peerRecoveryJob.cancel(true);
-            }
-            peerRecoveryJobRunning = false;
+            cancelTimers();
+            convergenceTracker.clear();
+            transition(CasambiSimpleBridgeState.AUTH, "session initialisation");
 
             bridgeOnline = false;
+            final ExecutorService executor = casambiExecutor;
+            final ExecutorService blockingExecutorLocal = blockingExecutor;
+            if (executor == null || blockingExecutorLocal == null) {
+                logger.warn("initCasambiSession: #{} executor is null", initCasambiSession.hashCode());
+                return;
+            }
             try {
 
                 // Logger - starting
                 CasambiSimpleDriverLogger messageLogger = new CasambiSimpleDriverLogger(config.logMessages,
-                        config.logDir, "casambiJsonMessages.txt");
+                        config.logDir, "casambiJsonMessages.txt", tasks);
                 messageLogger.dumpMessage("+++ initCasambiSession - logger started +++");
 
                 // REST Session - starting
-                casambiRest = new CasambiSimpleDriverRest(config.apiKey, config.userId, config.userPassword,
-                        config.networkPassword, messageLogger, webSocketClient, httpClient);
-                logger.debug("initCasambiSession: opened REST session #{}", casambiRest.hashCode());
+                final CasambiSimpleDriverRest casambiRestLocal = new CasambiSimpleDriverRest(config.apiKey,
+                        config.userId, config.userPassword, config.networkPassword, messageLogger, webSocketClient,
+                        httpClient, config.restTimeout, tasks);
+                casambiRest = casambiRestLocal;
+                logger.debug("initCasambiSession: opened REST session #{}", casambiRestLocal.hashCode());
                 CasambiSimpleDriverSystem.configureRestartCommand(config.useRemCmd, config.remCmdStr);
-                final CasambiSimpleDriverRest casambiRestLocal = casambiRest;
-                if (casambiRestLocal != null) {
-
-                    // Sessions userSession and networkSession - starting
-                    // FIXME: unused variables
-                    // CasambiSimpleMessageSession userSession;
-                    // Map<String, CasambiSimpleMessageNetwork> networkSession;
-                    if ((/* userSession = */ casambiRestLocal.createUserSession()) == null) {
-                        throw new CasambiSimpleException("User session could not be initialized");
-                    } else if (( /* networkSession = */ casambiRestLocal.createNetworkSession()) == null) {
-                        throw new CasambiSimpleException("Network session could not be initialized");
-                    } else {
 
-                        // Job pollUnitStatus - starting
-                        if (!pollUnitStatusJobRunning) {
-                            // pollUnitStatusJob = scheduler.submit(pollUnitStatus);
-                            pollUnitStatusJob = casambiExecutor.submit(pollUnitStatus);
-                            logger.debug("initCasambiSession: pollUnitStatusJob #{} started",
-                                    pollUnitStatusJob.hashCode());
-                        } else {
-                            logger.debug("initCasambiSession: pollUnitStatusJob already running");
-                        }
-
-                        // Socket - opening
-                        casambiSocket = casambiRestLocal.getNewCasambiSocket();
-                        logger.debug("initCasambiSession: opened socket #{}", casambiSocket.hashCode());
-                        if (/* casambiSocket != null && */ casambiSocket.open()) {
-                            bridgeOnline = true;
-                            updateStatus(ThingStatus.ONLINE);
-                            updateState(BRIDGE_CHANNEL_PEER, OnOffType.ON);
-
-                            // Job pollMessageJob - starting
-                            if (!pollMessageJobRunning) {
-                                // pollMessageJob = scheduler.submit(handleCasambiMessages);
-                                pollMessageJob = casambiExecutor.submit(handleCasambiMessages);
-                                logger.debug("initCasambiSession: pollMessageJob #{} started",
-                                        pollMessageJob.hashCode());
-                            } else {
-                                logger.debug("initCasambiSession: pollMessageJob already running");
-                            }
+                // Stage 1 - user session, network session and websocket connect run concurrently
+                final CasambiSimpleDriverSocket casambiSocketLocal = casambiRestLocal.getNewCasambiSocket();
+                casambiSocket = casambiSocketLocal;
+                logger.debug("initCasambiSession: opened socket #{}", casambiSocketLocal.hashCode());
+                casambiSocketLocal.setSessionRefresher(() -> refreshSession(casambiRestLocal, casambiSocketLocal));
+                casambiSocketLocal.setStandbyEnabled(config.standbyConnection);
+                casambiSocketLocal.setCommandBufferMaxAge(config.bufferMaxAge);
+                casambiSocketLocal.setMessageListener(msg -> runOnExecutor(() -> handleCasambiMessage(msg)));
+                final CompletableFuture<Boolean> socketConnected = casambiSocketLocal.connectAsync();
+                final CasambiSimpleSessionCache sessionCacheLocal = new CasambiSimpleSessionCache(
+                        Paths.get(OpenHAB.getUserDataFolder(), BINDING_ID, getThing().getUID().getId() + ".session"),
+                        config.apiKey, config.userId, config.userPassword, config.networkPassword);
+                sessionCache = sessionCacheLocal;
+                final CasambiSimpleSessionCache.Entry cachedSession = sessionCacheLocal.load();
+
+                // Stage 2 - both sessions are needed for everything else
+                final CompletableFuture<Void> sessions;
+                if (cachedSession != null) {
+                    logger.info("initCasambiSession: reusing cached session for network {}", cachedSession.networkId);
+                    sessionFromCache = true;
+                    casambiRestLocal.restoreSession(cachedSession.sessionId, cachedSession.networkId);
+                    casambiSocketLocal.updateSession(cachedSession.sessionId, cachedSession.networkId);
+                    sessions = CompletableFuture.completedFuture(null);
+                } else {
+                    sessionFromCache = false;
+                    sessions = casambiRestLocal.createUserSessionAsync()
+                            .thenCombine(casambiRestLocal.createNetworkSessionAsync(), (usr, net) -> {
+                                if (usr == null) {
+                                    throw new CompletionException(
+                                            new CasambiSimpleException("User session could not be initialized"));
+                                } else if (net == null) {
+                                    throw new CompletionException(
+                                            new CasambiSimpleException("Network session could not be initialized"));
+                                }
+                                casambiSocketLocal.updateSession(casambiRestLocal.getSessionId(),
+                                        casambiRestLocal.getNetworkId());
+                                sessionCacheLocal.store(casambiRestLocal.getSessionId(),
+                                        casambiRestLocal.getNetworkId());
+                                logger.debug("initCasambiSession: sessions created after {} ms",
+                                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+                                return null;
+                            });
+                }
 
-                            // Job socketKeepAliveJob - starting
-                            if (!socketKeepAliveJobRunning) {
-                                // socketKeepAliveJob = scheduler.submit(socketKeepAlive);
-                                socketKeepAliveJob = casambiExecutor.submit(socketKeepAlive);
-                                logger.debug("initCasambiSession: socketKeepAliveJob #{} started",
-                                        socketKeepAliveJob.hashCode());
+                // Stage 3a - open the wire as soon as the socket is connected and the sessions are available
+                final CompletableFuture<Void> wireOpen = sessions.thenCombineAsync(socketConnected, (v, connected) -> {
+                    transition(CasambiSimpleBridgeState.CONNECTING, "sessions ready");
+                    if (!connected) {
+                        logger.info("initCasambiSession: socket not connected yet, waiting");
+                    }
+                    // open() waits for the connection again, if the first connect was not successful
+                    if (connected ? casambiSocketLocal.openWire() : casambiSocketLocal.open()) {
+                        startSessionJobs(startTime);
+                    } else {
+                        // FIXME: how do we handle socket open errors here?
+                        logger.error("initCasambiSession: Socket not open");
+                        updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.COMMUNICATION_ERROR,
+                                "Error: Socket not open.");
+                    }
+                    return null;
+                }, blockingExecutorLocal);
+
+                // Stage 3b - fetch the first network state in parallel to opening the wire
+                final CompletableFuture<Void> firstState = sessions
+                        .thenCompose(v -> casambiRestLocal.getNetworkStateAsync())
+                        .thenAcceptAsync(networkState -> {
+                            if (networkState != null) {
+                                storeNetworkState(networkState);
+                                updateThingsFromNetworkState(networkState);
+                                logger.debug("initCasambiSession: first network state after {} ms",
+                                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
                             } else {
-                                logger.debug("initCasambiSession: socketKeepAliveJob already running");
+                                logger.info("initCasambiSession: got null network state message.");
                             }
-                            logger.debug("initCasambiSession: session initialized");
-
-                        } else {
-                            // FIXME: how do we handle socket open errors here?
-                            logger.error("initCasambiSession: Socket not open");
-                            updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.COMMUNICATION_ERROR,
-                                    "Error: Socket not open.");
+                        }, executor);
+
+                startupJob = CompletableFuture.allOf(wireOpen, firstState).whenComplete((v, e) -> {
+                    if (e != null && !shutdownInProgress) {
+                        final Throwable cause = (e instanceof CompletionException && e.getCause() != null)
+                                ? e.getCause()
+                                : e;
+                        if (cause instanceof CasambiSimpleException
+                                && ((CasambiSimpleException) cause).isAuthenticationError() && sessionFromCache) {
+                            restartWithFullLogin("cached session rejected by REST interface");
+                            return;
                         }
+                        logger.warn("initCasambiSession: #{} Exception {}", initCasambiSession.hashCode(),
+                                cause.getMessage());
+                        updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.COMMUNICATION_ERROR,
+                                "Exception during session initialisation: " + cause.getMessage());
                     }
-                } else {
-                    // FIXME: how do we handle rest open errors here?
-                    logger.error("initCasambiSession: #{} REST session not open", initCasambiSession.hashCode());
-                    updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.COMMUNICATION_ERROR,
-                            "Error: REST session not open.");
-                }
+                });
             } catch (Exception e) {
                 logger.warn("initCasambiSession: #{} Exception {}", initCasambiSession.hashCode(), e.getMessage());
                 updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.COMMUNICATION_ERROR,
                         "Exception during session initialisation: " + e.getMessage());
             }
-            logger.debug("initCasambiSession: #{} done.", initCasambiSession.hashCode());
+            logger.debug("initCasambiSession: #{} startup stages set up.", initCasambiSession.hashCode());
         }; // run()
     };
 
     /**
-     * handleCasambiMessages processes messages from the Casambi system. Runs as long as the bridge is active.
+     * restartWithFullLogin discards a cached session that was rejected by the Casambi cloud and restarts the session
+     * initialisation with a full login. Only done for sessions from the cache, so a rejected fresh session does not
+     * lead to a login loop.
      *
-     * Mainly handles messages from the websocket interface. Replies from the http interface are handled by the REST
-     * handler. The "socketChanged" message is directly from the driver, not from the Casambi cloud.
+     * Also called from the message thread (wire status error), so closing the old socket and REST interface, which
+     * may block, is done on the blocking executor together with the new login.
      *
-     * The most important message type is "unitChanged" which updates the unit status of a thing or the state of a
-     * channel. "peerChanged" monitors the bridge status and tries to restart the communication with the gateway if
-     * necessary.
+     * @param reason - for logging
      */
-    private Runnable handleCasambiMessages = new Runnable() {
-        @Override
-        public void run() {
-            logger.debug("handleCasambiMessages: starting runnable #{}", handleCasambiMessages.hashCode());
-            pollMessageJobRunning = true;
-            while (true) {
-                if (Thread.interrupted()) {
-                    logger.info("handleCasambiMessages: got thread interrupt. Exiting job.");
-                    pollMessageJobRunning = false;
-                    return;
+    private synchronized void restartWithFullLogin(String reason) {
+        final ExecutorService executor = blockingExecutor;
+        if (!sessionFromCache || shutdownInProgress || executor == null) {
+            return;
+        }
+        sessionFromCache = false;
+        logger.info("restartWithFullLogin: {}, logging in again", reason);
+        final CasambiSimpleDriverSocket casambiSocketLocal = casambiSocket;
+        final CasambiSimpleDriverRest casambiRestLocal = casambiRest;
+        try {
+            initSessionJob = executor.submit(() -> {
+                final CasambiSimpleSessionCache sessionCacheLocal = sessionCache;
+                if (sessionCacheLocal != null) {
+                    sessionCacheLocal.clear();
                 }
-                if (casambiRest != null && casambiSocket != null) {
-                    CasambiSimpleMessageEvent msg = casambiSocket.receiveMessage();
-                    if (msg != null) {
-                        if (msg.getMessageType() != messageType.keepAlive) {
-                            updateState(BRIDGE_CHANNEL_MESSAGE, StringType.valueOf(msg.toString()));
-                        }
-                        switch (msg.getMessageType()) {
-                            case unitChanged:
-                                if (msg.id != null && msg.on != null) {
-                                    logger.debug("handleCasambiMessages: unitChanged id {}, online {}, on {}, dim {}",
-                                            msg.id, msg.online, msg.on, msg.dimLevel);
-
-                                    Thing thing = thingsById.getFirstLuminaire(msg.id);
-                                    if (thing != null) {
-                                        CasambiSimpleLuminaireHandler thingHandler = (CasambiSimpleLuminaireHandler) thing
-                                                .getHandler();
-                                        if (thingHandler != null) {
-                                            // Update online status
-                                            if (msg.online != null && msg.online) {
-                                                thingHandler.updateLuminaireStatus(ThingStatus.ONLINE);
-                                            } else {
-                                                logger.info("handleCasambiMessages: status OFFLINE, id {}", msg.id);
-                                                thingHandler.updateLuminaireStatus(ThingStatus.OFFLINE);
-                                            }
-                                            org.openhab.core.thing.Channel channel = thing
-                                                    .getChannel(LUMINAIRE_CHANNEL_DIMMER);
-                                            if (channel != null) {
-                                                Float lvl = (msg.dimLevel != null) ? msg.dimLevel : 0;
-                                                thingHandler.updateState(channel.getUID(),
-                                                        new PercentType(Math.round(lvl * 100)));
-                                            }
-                                            // FIXME: update other channels as well
-                                        }
-                                    }
-                                }
-                                break;
-                            case peerChanged:
-                                if (msg.online != null && msg.online) {
-                                    if (!bridgeOnline) {
-                                        logger.info("handleCasambiMessages: peer went online");
-                                        updateState(BRIDGE_CHANNEL_PEER, OnOffType.ON);
-                                        updateStatus(ThingStatus.ONLINE);
-                                        bridgeOnline = true;
-                                    } else {
-                                        logger.trace("handleCasambiMessages: extra online message");
-                                    }
-                                } else {
-                                    logger.warn("handleCasambiMessages: peer went offline");
-                                    updateState(BRIDGE_CHANNEL_PEER, OnOffType.OFF);
-                                    updateStatus(ThingStatus.OFFLINE);
-                                    bridgeOnline = false;
-                                    if (!peerRecoveryJobRunning) {
-                                        if (config.useRemCmd) {
-                                            // peerRecoveryJob = scheduler.submit(doPeerRecovery);
-                                            peerRecoveryJob = casambiExecutor.submit(doPeerRecovery);
-                                            logger.debug("initCasambiSession: peerRecoveryJob #{} started",
-                                                    peerRecoveryJob.hashCode());
-                                        }
-                                    } else {
-                                        logger.debug(
-                                                "handleCasambiMessages: bridge still offline during recovery. Let's see.");
-                                    }
-                                }
-                                break;
-                            case networkUpdated:
-                                logger.info("handleCasambiMessages: networkUpdated online {}", msg.online);
-                                // FIXME: What to do: restart driver? rescan things and channels?
-                                break;
-                            case socketChanged: // Driver message
-                                logger.info("handleCasambiMessages: socketChanged, status {}, message {}", msg.status,
-                                        msg.response);
-                                // FIXME: What to do?
-                                break;
-                            case wireStatusOk:
-                                logger.trace("handleCasambiMessages: wireStatusOk: {}", msg.wireStatus);
-                                break;
-                            case wireStatusError:
-                                logger.warn("handleCasambiMessages: wireStatusError: {}", msg.wireStatus);
-                                // FIXME: What to do?
-                                break;
-                            case networkLog:
-                                logger.debug("handleCasambiMessages: networkLog: {}", msg.message);
-                                // FIXME: What to do?
-                                break;
-                            case keepAlive:
-                                logger.debug("handleCasambiMessages: keepAlive got pong");
-                                missedPong = 0;
-                                break;
-                            default:
-                                logger.info("handleCasambiMessages: unknown message type: {}", msg);
-                        }
-                    } else {
-                        logger.info("handleCasambiMessages: got null message.");
-                        if (casambiSocket != null) {
-                            logger.debug("handleCasambiMessages: null message socketStatus {}",
-                                    casambiSocket.getSocketStatus());
-                        }
-                    }
-                } else {
-                    logger.warn("handleCasambiMessages: #{} casambi socket or rest driver is null. Continuing.",
-                            handleCasambiMessages.hashCode());
-                    updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.COMMUNICATION_ERROR, "Casambi driver is null");
-                    pollMessageJobRunning = false;
-                    return;
+                if (casambiSocketLocal != null) {
+                    casambiSocketLocal.close();
                 }
-            }
-        };
-    };
+                if (casambiRestLocal != null) {
+                    logger.debug("restartWithFullLogin: closing rest #{}", casambiRestLocal.hashCode());
+                    casambiRestLocal.close();
+                }
+                if (!shutdownInProgress) {
+                    initCasambiSession.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.debug("restartWithFullLogin: executor shut down - {}", e.getMessage());
+        }
+    }
 
     /**
-     * pollUnitStatus does regular polls of the network state and adjusts channel state for bridge and things
-     * accordingly. Runs as long as the bridge is active. Polling is done every 10 minutes (FIXME: should be
-     * configurable).
+     * refreshSession checks the REST session while the socket is being reopened. If the Casambi cloud rejects the
+     * session, a new user and network session are created and handed to the socket, which then uses them for its
+     * next open attempt. Runs asynchronously, so the socket reopen is not delayed.
      *
-     * Currently only the state of luminaires is updated (by calling the appropriate thing handler).
+     * @param casambiRestLocal - REST interface of the current session
+     * @param casambiSocketLocal - socket being reopened
+     */
+    private void refreshSession(CasambiSimpleDriverRest casambiRestLocal,
+            CasambiSimpleDriverSocket casambiSocketLocal) {
+        casambiRestLocal.getNetworkStateAsync().handle((networkState, e) -> {
+            final Throwable cause = (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e;
+            return cause instanceof CasambiSimpleException
+                    && ((CasambiSimpleException) cause).isAuthenticationError();
+        }).thenCompose(expired -> {
+            if (!expired || shutdownInProgress) {
+                return CompletableFuture.completedFuture(false);
+            }
+            logger.info("refreshSession: session expired, creating a new one");
+            return casambiRestLocal.createUserSessionAsync().thenCombine(casambiRestLocal.createNetworkSessionAsync(),
+                    (usr, net) -> usr != null && net != null);
+        }).whenComplete((renewed, e) -> {
+            if (e != null) {
+                logger.warn("refreshSession: could not renew session - {}", e.getMessage());
+            } else if (renewed) {
+                casambiSocketLocal.updateSession(casambiRestLocal.getSessionId(), casambiRestLocal.getNetworkId());
+                final CasambiSimpleSessionCache sessionCacheLocal = sessionCache;
+                if (sessionCacheLocal != null) {
+                    sessionCacheLocal.store(casambiRestLocal.getSessionId(), casambiRestLocal.getNetworkId());
+                }
+                sessionFromCache = false;
+                casambiSocketLocal.wakeReopen();
+            }
+        });
+    }
+
+    /**
+     * startSessionJobs sets the bridge online after the wire has been opened and starts the jobs that depend on an
+     * open socket.
      *
-     * Scene and group status does not get updated. It is not quite clear, how the scene and group status can be defined
-     * in a meaningful way.
+     * @param startTime - start of the session initialisation (System.nanoTime()), used for the time to ONLINE
      */
-    private Runnable pollUnitStatus = new Runnable() {
-        @Override
-        public void run() {
-            logger.debug("pollUnitStatus: starting runnable #{}", pollUnitStatus.hashCode());
-            pollUnitStatusJobRunning = true;
+    private void startSessionJobs(long startTime) {
+        if (shutdownInProgress) {
+            logger.debug("startSessionJobs: shutting down, not starting jobs");
+            return;
+        }
+        updateState(BRIDGE_CHANNEL_PEER, OnOffType.ON);
+        final long timeToOnline = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+        updateProperty(BRIDGE_PROPERTY_TIME_TO_ONLINE, String.format("%d ms", timeToOnline));
+        logger.info("startSessionJobs: bridge online after {} ms", timeToOnline);
+        transition(CasambiSimpleBridgeState.ONLINE, "wire open");
+        logger.debug("startSessionJobs: session initialized");
+    }
 
-            while (true) {
-                if (Thread.interrupted()) {
-                    logger.info("pollUnitStatus: got thread interrupt. Exiting job.");
-                    pollUnitStatusJobRunning = false;
-                    return;
+    // --- Connection state machine ----------------------------------------------------------------------------
+
+    /**
+     * transition moves the connection state machine to a new state. The thing status is updated and the timers for
+     * the new state are armed (or cancelled).
+     *
+     * <ul>
+     * <li>ONLINE: keepalive, unit status poll and convergence check timers run
+     * <li>DEGRADED: keepalive probes at short intervals (armed by onPongTimeout)
+     * <li>RECOVERING: socket up, but the peer is offline. ONLINE is entered only when the peer is online again.
+     * <li>CONNECTING: keepalive is stopped until the wire is open again
+     * <li>STOPPED: all timers are cancelled
+     * </ul>
+     *
+     * The peer recovery timer runs apart from the socket states, from peerChanged (offline) to peerChanged (online).
+     *
+     * @param target - new state, RECOVERING instead of ONLINE while the peer is offline
+     * @param reason - for logging
+     */
+    private synchronized void transition(CasambiSimpleBridgeState target, String reason) {
+        final CasambiSimpleBridgeState previous = connectionState;
+        // The socket works again, but ONLINE also needs the gateway
+        final CasambiSimpleBridgeState next = (target == CasambiSimpleBridgeState.ONLINE && peerOffline)
+                ? CasambiSimpleBridgeState.RECOVERING
+                : target;
+        if (previous == next || previous == CasambiSimpleBridgeState.STOPPED) {
+            return;
+        }
+        logger.debug("transition: {} -> {} ({})", previous, next, reason);
+        connectionState = next;
+        switch (next) {
+            case ONLINE:
+                bridgeOnline = true;
+                updateStatus(ThingStatus.ONLINE);
+                scheduleKeepAlive(keepAliveInterval);
+                if (pollUnitStatusTimer == null) {
+                    pollUnitStatusTimer = tasks.scheduleWithFixedDelay(() -> runBlocking(this::pollUnitStatus),
+                            pollUnitStatusInterval, pollUnitStatusInterval, TimeUnit.MILLISECONDS);
                 }
-                logger.debug("pollUnitStatus: #{}", this.hashCode());
-                boolean allOffline = true;
-                try {
-                    // Poll the unit status every 10 Minutes
-                    Thread.sleep(600 * mSec);
-                    if (casambiRest != null) {
-                        CasambiSimpleMessageNetworkState networkState = casambiRest.getNetworkState();
-                        if (networkState != null) {
-
-                            // Get status of luminaires
-                            if (networkState.units != null) {
-
-                                for (Entry<Integer, CasambiSimpleMessageUnit> unit : networkState.units.entrySet()) {
-                                    Thing thing = thingsById.getFirstLuminaire(unit.getKey());
-                                    if (thing != null) {
-                                        CasambiSimpleLuminaireHandler thingHandler = (CasambiSimpleLuminaireHandler) thing
-                                                .getHandler();
-                                        if (thingHandler != null) {
-                                            CasambiSimpleMessageUnit unitState = unit.getValue();
-                                            if (unitState.online == true) {
-                                                allOffline = false;
-                                            }
-                                            thingHandler.updateLuminaireState(unitState);
-                                        }
-                                    } else {
-                                        logger.info("pollUnitStatus: got status for unknown id {}, name {}",
-                                                unit.getKey(), unit.getValue().name);
-                                    }
-                                }
+                if (convergenceTimer == null) {
+                    convergenceTimer = tasks.scheduleWithFixedDelay(this::checkConvergence, 1, 1,
+                            TimeUnit.SECONDS);
+                }
+                break;
+            case DEGRADED:
+                updateStatus(ThingStatus.ONLINE, ThingStatusDetail.NONE, "Keepalive responses missing");
+                break;
+            case RECOVERING:
+                bridgeOnline = false;
+                updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.COMMUNICATION_ERROR, "Gateway offline");
+                if (previous == CasambiSimpleBridgeState.CONNECTING) {
+                    // Wire reopened while the gateway is still offline, the socket needs its keepalive
+                    scheduleKeepAlive(keepAliveInterval);
+                }
+                break;
+            case CONNECTING:
+                cancelTimer(keepAliveTimer);
+                cancelTimer(pongTimer);
+                if (previous != CasambiSimpleBridgeState.AUTH) {
+                    bridgeOnline = false;
+                    updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.COMMUNICATION_ERROR,
+                            "Reconnecting: " + reason);
+                }
+                break;
+            case STOPPED:
+                bridgeOnline = false;
+                if (peerOffline) {
+                    finishPeerRecovery(false);
+                }
+                cancelTimers();
+                break;
+            default:
+                break;
+        }
+        if (next != CasambiSimpleBridgeState.STOPPED) {
+            updateProperty(BRIDGE_PROPERTY_CONNECTION_STATE, next.toString());
+        }
+    }
 
-                            } else {
-                                logger.trace("pollUnitStatus: no units in network.");
-                            }
+    /**
+     * cancelTimers stops all timers of the state machine
+     */
+    private synchronized void cancelTimers() {
+        cancelTimer(keepAliveTimer);
+        cancelTimer(pongTimer);
+        cancelTimer(pollUnitStatusTimer);
+        cancelTimer(convergenceTimer);
+        cancelTimer(peerRecoveryTimer);
+        keepAliveTimer = null;
+        pongTimer = null;
+        pollUnitStatusTimer = null;
+        convergenceTimer = null;
+        peerRecoveryTimer = null;
+    }
 
-                            // Get scene status
-                            if (networkState.scenes != null) {
-                                for (Entry<Integer, CasambiSimpleMessageScene> scene : networkState.scenes.entrySet()) {
-                                    if (networkState.activeScenes != null
-                                            && Arrays.asList(networkState.activeScenes).contains(scene.getKey())) {
-                                        logger.trace("pollUnitStatus: scene {} active", scene.getKey());
-                                    } else {
-                                        logger.trace("pollUnitStatus: scene {} inactive", scene.getKey());
-                                    }
-                                }
-                            } else {
-                                logger.trace("pollUnitStatus: no scenes in network.");
-                            }
+    private void cancelTimer(@Nullable ScheduledFuture<?> timer) {
+        if (timer != null) {
+            timer.cancel(false);
+        }
+    }
 
-                        } else {
-                            logger.info("pollUnitStatus: got null network state message.");
+    /**
+     * saveState writes the unit state and the fixture cache to disk (if changed). Runs on the blocking executor.
+     */
+    private void saveState() {
+        stateStore.saveIfChanged();
+        fixtureCache.saveIfChanged();
+    }
+
+    /**
+     * runOnExecutor runs work on the bridge's message thread, in the order submitted. The work must not block, a slow
+     * call would delay the keepalive. Work is dropped during shutdown.
+     *
+     * @param work - work to be done
+     */
+    private void runOnExecutor(Runnable work) {
+        execute(casambiExecutor, work);
+    }
+
+    /**
+     * runBlocking runs blocking work that does not depend on the order of messages (polls, convergence checks). It
+     * never runs on the message thread. With virtual threads the work gets a thread of its own, otherwise it runs on
+     * the bridge's blocking thread.
+     *
+     * @param work - work to be done
+     */
+    private void runBlocking(Runnable work) {
+        execute(blockingExecutor, work);
+    }
+
+    /**
+     * runCommand sends commands of the fade, circadian and timer engines. They are sent in order on a thread of their
+     * own, so they neither wait for a REST call nor hold up message handling. Unlike the other run methods, dropped
+     * work is reported to the caller, the engines keep track of the commands in flight.
+     *
+     * @param work - work to be done
+     * @throws RejectedExecutionException if the work is dropped (bridge disposed or shutting down)
+     */
+    private void runCommand(Runnable work) {
+        final ExecutorService executor = commandExecutor;
+        if (executor == null || shutdownInProgress) {
+            throw new RejectedExecutionException("bridge is shutting down");
+        }
+        executor.execute(work);
+    }
+
+    private void execute(@Nullable ExecutorService executor, Runnable work) {
+        if (executor != null && !shutdownInProgress) {
+            try {
+                executor.execute(work);
+            } catch (RejectedExecutionException e) {
+                logger.debug("execute: executor shut down, dropping work");
+            }
+        }
+    }
+
+    /**
+     * updateThingsFromNetworkState updates the luminaire things with the unit states from a network state message
+     *
+     * @param networkState - network state as returned by the Casambi cloud service
+     * @return true if no unit is online
+     */
+    private boolean updateThingsFromNetworkState(CasambiSimpleMessageNetworkState networkState) {
+        boolean allOffline = true;
+        // Get status of luminaires
+        if (networkState.units != null) {
+            for (Entry<Integer, CasambiSimpleMessageUnit> unit : networkState.units.entrySet()) {
+                stateStore.updateUnit(unit.getKey(), unit.getValue().online, unit.getValue().on,
+                        unit.getValue().dimLevel);
+                Thing thing = thingsById.getFirstLuminaire(unit.getKey());
+                if (thing != null) {
+                    CasambiSimpleLuminaireHandler thingHandler = (CasambiSimpleLuminaireHandler) thing.getHandler();
+                    if (thingHandler != null) {
+                        CasambiSimpleMessageUnit unitState = unit.getValue();
+                        if (unitState.online == true) {
+                            allOffline = false;
                         }
-                    } else {
-                        logger.warn("pollUnitStatus: #{} CasambiDriverRest is null. Stopping Job.",
-                                pollUnitStatus.hashCode());
-                        pollUnitStatusJobRunning = false;
-                        return;
-                    }
-                } catch (InterruptedException ie) {
-                    logger.warn("pollUnitStatus: #{} exception {}. Exiting.", pollUnitStatus.hashCode(),
-                            ie.getMessage());
-                    Thread.currentThread().interrupt();
-                } catch (Exception oe) {
-                    logger.warn("pollUnitStatus: #{} exception {}. Continuing.", pollUnitStatus.hashCode(),
-                            oe.getMessage());
-                }
-                if (allOffline) {
-                    // cycles bluetooth on the Android device
-                    if (!shutdownInProgress) {
-                        logger.info("pollUnitStatus: all devices offline, restarting Bluetooth");
-                        CasambiSimpleDriverSystem.sendSshBluetoothCommand();
+                        thingHandler.updateLuminaireState(unitState);
                     }
+                } else {
+                    logger.info("updateThingsFromNetworkState: got status for unknown id {}, name {}",
+                            unit.getKey(), unit.getValue().name);
                 }
             }
-        };
-    };
+        } else {
+            logger.trace("updateThingsFromNetworkState: no units in network.");
+        }
+
+        // Get scene status
+        stateStore.setActiveScenes(networkState.activeScenes);
+        publishSceneStates(activeScenes.replace(networkState.activeScenes, networkState.units));
+        return allOffline;
+    }
 
     /**
-     * socketKeepAlive sends ping messages on the web socket to keep it open. Ping intervall is a bit less than 5
-     * minutes (socket will close after 5 minutes). Runs as long as the bridge is active.
+     * handleCasambiMessage processes a message from the Casambi system. Called on the bridge's worker thread for every
+     * message from the socket.
+     *
+     * Mainly handles messages from the websocket interface. Replies from the http interface are handled by the REST
+     * handler. The "socketChanged" message is directly from the driver, not from the Casambi cloud.
+     *
+     * The most important message type is "unitChanged" which updates the unit status of a thing or the state of a
+     * channel. "peerChanged" monitors the bridge status and tries to restart the communication with the gateway if
+     * necessary. Socket, wire and peer messages drive the connection state machine.
+     *
+     * @param msg - message from the socket
      */
-    private Runnable socketKeepAlive = new Runnable() {
-        @Override
-        public void run() {
-            logger.debug("socketKeepAlive: starting runnable #{}", socketKeepAlive.hashCode());
-            socketKeepAliveJobRunning = true;
-            while (true) {
-                if (Thread.interrupted()) {
-                    logger.info("socketKeepAlive: got thread interrupt. Exiting job.");
-                    socketKeepAliveJobRunning = false;
-                    return;
-                }
-                try {
-                    // Sleep for slightly less than 5 minutes
-                    Thread.sleep(280 * mSec);
-                    if (missedPong > 0) {
-                        logger.trace("socketKeepAlive: Response {} missing for ping.", missedPong);
-                        // FIXME: will this help?
-                        if (missedPong > 10) {
-                            if (config.useRemCmd && casambiSocket != null) {
-                                logger.info("socketKeepAlive: {} ping responses missing. Sending recovery command.",
-                                        missedPong);
-                                CasambiSimpleDriverSystem.sendSshRestartCommand();
-                                missedPong = 0;
+    private void handleCasambiMessage(CasambiSimpleMessageEvent msg) {
+        if (shutdownInProgress) {
+            return;
+        }
+        if (msg.getMessageType() != messageType.keepAlive) {
+            updateState(BRIDGE_CHANNEL_MESSAGE, StringType.valueOf(msg.toString()));
+        }
+        switch (msg.getMessageType()) {
+            case unitChanged:
+                if (msg.id != null && msg.on != null) {
+                    logger.debug("handleCasambiMessages: unitChanged id {}, online {}, on {}, dim {}",
+                            msg.id, msg.online, msg.on, msg.dimLevel);
+                    convergenceTracker.observe(msg.id, msg.on, msg.dimLevel);
+                    stateStore.updateUnit(msg.id, msg.online, msg.on, msg.dimLevel);
+                    if (Boolean.TRUE.equals(msg.on)) {
+                        circadian.unitOn(msg.id);
+                    } else {
+                        circadian.unitOff(msg.id);
+                    }
+                    unitTimers.reported(msg.id, Boolean.TRUE.equals(msg.on) && !Boolean.FALSE.equals(msg.online));
+                    publishSceneStates(activeScenes.updateUnit(msg.id, msg.activeSceneId));
+
+                    Thing thing = thingsById.getFirstLuminaire(msg.id);
+                    if (thing != null) {
+                        CasambiSimpleLuminaireHandler thingHandler = (CasambiSimpleLuminaireHandler) thing
+                                .getHandler();
+                        if (thingHandler != null) {
+                            // Update online status
+                            if (msg.online != null && msg.online) {
+                                thingHandler.updateLuminaireStatus(ThingStatus.ONLINE);
+                            } else {
+                                logger.info("handleCasambiMessages: status OFFLINE, id {}", msg.id);
+                                thingHandler.updateLuminaireStatus(ThingStatus.OFFLINE);
                             }
+                            thingHandler.updateLuminaireOnOff(msg.on);
+                            thingHandler.updateLuminaireControls(msg.dimLevel, msg.controls);
                         }
                     }
-                    if (casambiSocket != null) {
-                        logger.trace("socketKeepAlive: #{} ping", socketKeepAlive.hashCode());
-                        casambiSocket.ping();
-                        missedPong++;
+                }
+                break;
+            case peerChanged:
+                if (msg.online != null && msg.online) {
+                    updateState(BRIDGE_CHANNEL_PEER, OnOffType.ON);
+                    if (peerOffline) {
+                        logger.info("handleCasambiMessages: peer went online");
+                        finishPeerRecovery(true);
                     } else {
-                        logger.info("socketKeepAlive: #{}, socket is null. Exiting.", socketKeepAlive.hashCode());
-                        return;
+                        logger.trace("handleCasambiMessages: extra online message");
                     }
-                } catch (InterruptedException ie) {
-                    logger.warn("socketKeepAlive: #{} exception {}. Exiting.", socketKeepAlive.hashCode(),
-                            ie.getMessage());
-                    Thread.currentThread().interrupt();
-                } catch (Exception e) {
-                    logger.warn("socketKeepAlive: #{} exception {}. Continuing.", socketKeepAlive.hashCode(),
-                            e.getMessage());
-                    // FIXME: reopen socket here?
-                    if (casambiSocket != null & !shutdownInProgress) {
-                        logger.debug("socketKeepAlive: reopening socket #{}.", casambiSocket.hashCode());
-                        casambiSocket.reopen();
+                    if (connectionState == CasambiSimpleBridgeState.RECOVERING) {
+                        transition(CasambiSimpleBridgeState.ONLINE, "peer online");
+                    }
+                } else {
+                    logger.warn("handleCasambiMessages: peer went offline");
+                    updateState(BRIDGE_CHANNEL_PEER, OnOffType.OFF);
+                    if (!peerOffline) {
+                        startPeerRecovery();
+                    } else {
+                        logger.debug("handleCasambiMessages: bridge still offline during recovery. Let's see.");
+                    }
+                    if (connectionState == CasambiSimpleBridgeState.ONLINE
+                            || connectionState == CasambiSimpleBridgeState.DEGRADED) {
+                        transition(CasambiSimpleBridgeState.RECOVERING, "peer offline");
                     }
                 }
-            }
+                break;
+            case networkUpdated:
+                logger.info("handleCasambiMessages: networkUpdated online {}", msg.online);
+                // Units, scenes or groups may have been added, removed or renamed
+                networkStateCache.invalidate();
+                fixtureCache.invalidate();
+                final CasambiSimpleDiscoveryService casambiDiscoverLocal = casambiDiscover;
+                if (casambiDiscoverLocal != null) {
+                    casambiDiscoverLocal.scheduleIncrementalScan();
+                }
+                // FIXME: channels of existing things are not updated
+                break;
+            case socketChanged: // Driver message
+                logger.info("handleCasambiMessages: socketChanged, status {}, message {}", msg.status,
+                        msg.response);
+                if (("closed".equals(msg.status) || "reopening".equals(msg.status) || "error".equals(msg.status))
+                        && (connectionState == CasambiSimpleBridgeState.ONLINE
+                                || connectionState == CasambiSimpleBridgeState.DEGRADED)) {
+                    transition(CasambiSimpleBridgeState.CONNECTING, "socket " + msg.status);
+                }
+                break;
+            case wireStatusOk:
+                logger.trace("handleCasambiMessages: wireStatusOk: {}", msg.wireStatus);
+                if (connectionState == CasambiSimpleBridgeState.CONNECTING) {
+                    transition(CasambiSimpleBridgeState.ONLINE, "wire reopened");
+                }
+                break;
+            case wireStatusError:
+                logger.warn("handleCasambiMessages: wireStatusError: {}", msg.wireStatus);
+                if (sessionFromCache) {
+                    restartWithFullLogin("cached session rejected by socket");
+                }
+                break;
+            case networkLog:
+                logger.debug("handleCasambiMessages: networkLog: {}", msg.message);
+                // FIXME: What to do?
+                break;
+            case keepAlive:
+                onPong();
+                break;
+            default:
+                logger.info("handleCasambiMessages: unknown message type: {}", msg);
         }
-    };
+    }
 
     /**
-     * doPeerRecovery tries to reactivate the casambi app on the mobile phone with the sshCommand (if configured and
-     * enabled). The runnable will be started on a peerChanged (offline) message.
+     * pollUnitStatus does a poll of the network state and adjusts channel state for bridge and things accordingly.
+     * Called by a timer while the bridge is online. Polling is done every 10 minutes (FIXME: should be configurable).
+     *
+     * Currently only the state of luminaires is updated (by calling the appropriate thing handler).
      *
-     * The recovery is tried three times with increasing intervals between recovery actions. If a peerChanged (online)
-     * message is received (bridgeOnline) the job exits. The job exits as well after the third try.
+     * Scene and group status does not get updated. It is not quite clear, how the scene and group status can be defined
+     * in a meaningful way.
      */
-    private Runnable doPeerRecovery = new Runnable() {
-        @Override
-        public void run() {
-            peerRecoveryJobRunning = true;
-            logger.info("doPeerRecovery: starting runnable #{}", doPeerRecovery.hashCode());
-            try {
-                Thread.sleep(2 * min);
-                if (bridgeOnline) {
-                    logger.debug("doPeerRecovery: Step 1 - peer came back online. Recovery ended.");
+    private void pollUnitStatus() {
+        logger.debug("pollUnitStatus: polling");
+        updateProperty(BRIDGE_PROPERTY_TASK_STATS, tasks.getStats().toString());
+        updateProperty(BRIDGE_PROPERTY_COMMAND_STATS, CasambiSimpleDriverSystem.getStats());
+        updateProperty(BRIDGE_PROPERTY_TRANSITION_STATS, transitions.getStats());
+        updateProperty(BRIDGE_PROPERTY_CIRCADIAN_STATS, circadian.getStats());
+        updateProperty(BRIDGE_PROPERTY_TIMER_STATS, unitTimers.getStats());
+        boolean allOffline = true;
+        try {
+            final CasambiSimpleDriverRest casambiRestLocal = casambiRest;
+            if (casambiRestLocal != null) {
+                CasambiSimpleMessageNetworkState networkState = casambiRestLocal.getNetworkState();
+                if (networkState != null) {
+                    storeNetworkState(networkState);
+                    allOffline = updateThingsFromNetworkState(networkState);
                 } else {
-                    logger.debug("doPeerRecovery: Step 1 - peer offline. Sending command.");
-                    CasambiSimpleDriverSystem.sendSshRestartCommand();
-                    Thread.sleep(3 * min);
-                    if (bridgeOnline) {
-                        logger.debug("doPeerRecovery: Step 2 - peer came back online. Recovery ended.");
-                    } else {
-                        logger.debug("doPeerRecovery: Step 2 - peer still offline. Sending command.");
-                        CasambiSimpleDriverSystem.sendSshRestartCommand();
-                        Thread.sleep(6 * min);
-                        if (bridgeOnline) {
-                            logger.debug("doPeerRecovery: Step 3 - peer came back online.");
-                        } else {
-                            logger.debug("doPeerRecovery: Step 3 - peer still offline. Last try.");
-                            CasambiSimpleDriverSystem.sendSshRestartCommand();
-                            Thread.sleep(2 * min);
-                            if (bridgeOnline) {
-                                logger.debug("doPeerRecovery: Step 4 - peer came back online. Just in time.");
-                            } else {
-                                logger.info("doPeerRecovery: Step 4 - last try unsuccessful. Giving up.");
-                            }
-                        }
-                    }
+                    logger.info("pollUnitStatus: got null network state message.");
                 }
-            } catch (Exception e) {
-                logger.warn("doPeerRecovery: #{} exception {}. Exiting.", doPeerRecovery.hashCode(), e.getMessage());
+            } else {
+                logger.warn("pollUnitStatus: CasambiDriverRest is null. Skipping poll.");
+                return;
+            }
+        } catch (InterruptedException ie) {
+            logger.warn("pollUnitStatus: exception {}. Exiting.", ie.getMessage());
+            Thread.currentThread().interrupt();
+            return;
+        } catch (CasambiSimpleException ce) {
+            logger.warn("pollUnitStatus: exception {}. Continuing.", ce.getMessage());
+            if (ce.isAuthenticationError() && sessionFromCache) {
+                restartWithFullLogin("cached session rejected by REST interface");
             }
-            peerRecoveryJobRunning = false;
+        } catch (Exception oe) {
+            logger.warn("pollUnitStatus: exception {}. Continuing.", oe.getMessage());
         }
-    };
+        if (allOffline) {
+            // cycles bluetooth on the Android device
+            if (!shutdownInProgress) {
+                logger.info("pollUnitStatus: all devices offline, restarting Bluetooth");
+                CasambiSimpleDriverSystem.sendSshBluetoothCommand(systemCommandExecutor);
+            }
+        }
+    }
+
+    /**
+     * checkConvergence verifies that luminaires reach the state they were commanded to. For units that have not
+     * converged before the deadline, the unit state is queried. If the unit still has not converged, the command is
+     * sent again. After the maximum number of attempts the failure is counted and shown as a luminaire property.
+     *
+     * A group or scene command registers a target for every member. When more than one unit is overdue, their states
+     * are taken from a single network state query instead of one unit state query per unit.
+     *
+     * Called every second by a timer, the (blocking) verification is done on the bridge's worker thread.
+     */
+    private void checkConvergence() {
+        final List<CasambiSimpleConvergenceTracker.Target> overdue = convergenceTracker.overdue();
+        if (overdue.isEmpty()) {
+            return;
+        }
+        runBlocking(() -> {
+            final Map<Integer, CasambiSimpleMessageUnit> unitStates = fetchUnitStates(overdue);
+            for (CasambiSimpleConvergenceTracker.Target target : overdue) {
+                try {
+                    verifyTarget(target, unitStates.get(target.unitId));
+                } catch (Exception e) {
+                    logger.warn("checkConvergence: unit {} exception {}. Continuing.", target.unitId, e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * fetchUnitStates queries the current state of the units with overdue targets, using one network state query if
+     * more than one unit has to be checked
+     *
+     * @param overdue - overdue targets
+     * @return unit state by unit id, empty (or incomplete) if the state is not available
+     */
+    private Map<Integer, CasambiSimpleMessageUnit> fetchUnitStates(
+            List<CasambiSimpleConvergenceTracker.Target> overdue) {
+        final CasambiSimpleDriverRest casambiRestLocal = casambiRest;
+        final int[] unitIds = overdue.stream().filter(target -> !target.isFailed()).mapToInt(target -> target.unitId)
+                .distinct().toArray();
+        if (casambiRestLocal == null || unitIds.length == 0) {
+            return Map.of();
+        }
+        try {
+            if (unitIds.length == 1) {
+                final CasambiSimpleMessageUnit unitState = casambiRestLocal.getUnitState(unitIds[0]);
+                return (unitState != null) ? Map.of(unitIds[0], unitState) : Map.of();
+            }
+            final CasambiSimpleMessageNetworkState networkState = casambiRestLocal.getNetworkState();
+            final Map<Integer, CasambiSimpleMessageUnit> units = (networkState != null) ? networkState.units : null;
+            if (networkState == null || units == null) {
+                return Map.of();
+            }
+            storeNetworkState(networkState);
+            logger.debug("fetchUnitStates: {} units checked with one network state query", unitIds.length);
+            return units;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.debug("fetchUnitStates: unit states not available - {}", e.getMessage());
+        }
+        return Map.of();
+    }
+
+    /**
+     * verifyTarget handles a unit that has not reached its target state in time
+     *
+     * @param target - overdue target
+     * @param unitState - current state of the unit, null if it is not available
+     * @throws CasambiSimpleException
+     * @throws IOException
+     */
+    private void verifyTarget(CasambiSimpleConvergenceTracker.Target target,
+            @Nullable CasambiSimpleMessageUnit unitState) throws CasambiSimpleException, IOException {
+        final Thing thing = thingsById.getFirstLuminaire(target.unitId);
+        final CasambiSimpleLuminaireHandler thingHandler = (thing != null)
+                ? (CasambiSimpleLuminaireHandler) thing.getHandler()
+                : null;
+        if (target.isFailed()) {
+            final int failures = convergenceTracker.getFailures(target.unitId);
+            logger.info("verifyTarget: unit {} did not converge, {} failures", target.unitId, failures);
+            if (thingHandler != null) {
+                thingHandler.updateConvergenceFailures(failures);
+            }
+            return;
+        }
+        final CasambiSimpleDriverSocket casambiSocketLocal = casambiSocket;
+        if (casambiSocketLocal == null) {
+            return;
+        }
+        if (unitState != null && convergenceTracker.observe(target.unitId, unitState.on, unitState.dimLevel)) {
+            logger.debug("verifyTarget: unit {} converged (checked)", target.unitId);
+            if (thingHandler != null) {
+                thingHandler.updateLuminaireState(unitState);
+            }
+            return;
+        }
+        logger.debug("verifyTarget: unit {} not converged, attempt {}, sending again", target.unitId,
+                target.getAttempts());
+        final Float dimLevel = target.dimLevel;
+        if (dimLevel != null) {
+            casambiSocketLocal.setUnitDimmer(target.unitId, dimLevel);
+        } else {
+            casambiSocketLocal.setUnitOnOff(target.unitId, target.on);
+        }
+    }
+
+    /**
+     * scheduleKeepAlive arms the timer for the next ping on the web socket
+     *
+     * @param delay - time to the next ping in milliseconds
+     */
+    private synchronized void scheduleKeepAlive(long delay) {
+        cancelTimer(keepAliveTimer);
+        keepAliveTimer = tasks.schedule(() -> runOnExecutor(this::sendKeepAlive), Math.max(0, delay),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * sendKeepAlive sends a ping message on the web socket to keep it open and to measure the round trip time. Ping
+     * intervall is a bit less than 5 minutes (socket will close after 5 minutes). A timer waits for the pong, the
+     * timeout is derived from the smoothed round trip time.
+     */
+    private void sendKeepAlive() {
+        final CasambiSimpleDriverSocket casambiSocketLocal = casambiSocket;
+        if (casambiSocketLocal == null || shutdownInProgress) {
+            logger.info("sendKeepAlive: socket is null. Not sending.");
+            return;
+        }
+        try {
+            logger.trace("sendKeepAlive: ping");
+            pingSentAt = System.nanoTime();
+            casambiSocketLocal.ping();
+            synchronized (this) {
+                cancelTimer(pongTimer);
+                pongTimer = tasks.schedule(this::onPongTimeout, getPongTimeout(), TimeUnit.MILLISECONDS);
+            }
+        } catch (Exception e) {
+            logger.warn("sendKeepAlive: exception {}. Reopening socket.", e.getMessage());
+            casambiSocketLocal.reopen();
+            transition(CasambiSimpleBridgeState.CONNECTING, "ping failed");
+        }
+    }
+
+    /**
+     * onPong handles the response to a ping. The round trip time is recorded and the next ping is scheduled.
+     */
+    private void onPong() {
+        final long rtt = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - pingSentAt);
+        logger.debug("onPong: keepAlive got pong, rtt {} ms", rtt);
+        synchronized (this) {
+            cancelTimer(pongTimer);
+            pongTimer = null;
+        }
+        missedPong = 0;
+        final long now = System.nanoTime();
+        remCmdWaitSince = now;
+        rttStats.record(rtt);
+        updateState(BRIDGE_CHANNEL_RTT, new DecimalType(rtt));
+        // The histogram is a thing property, don't write it to the thing registry on every pong
+        if (rttHistogramUpdatedAt == 0
+                || now - rttHistogramUpdatedAt >= TimeUnit.MILLISECONDS.toNanos(rttHistogramInterval)) {
+            rttHistogramUpdatedAt = now;
+            updateProperty(BRIDGE_PROPERTY_RTT_HISTOGRAM, rttStats.toString());
+        }
+        if (connectionState == CasambiSimpleBridgeState.DEGRADED) {
+            transition(CasambiSimpleBridgeState.ONLINE, "pong received");
+        } else if (connectionState == CasambiSimpleBridgeState.ONLINE
+                || connectionState == CasambiSimpleBridgeState.RECOVERING) {
+            scheduleKeepAlive(keepAliveInterval - rtt);
+        }
+    }
+
+    /**
+     * onPongTimeout handles a missing pong. Pings are sent at short, growing intervals. After maxMissedPong missing
+     * pongs the socket is considered dead and reopened, so that half-open connections are detected within seconds.
+     * The restart command is only sent if no pong has been received for remCmdAfter, reopening the socket is cheap,
+     * restarting the peer is not.
+     */
+    private void onPongTimeout() {
+        final CasambiSimpleDriverSocket casambiSocketLocal = casambiSocket;
+        if (casambiSocketLocal == null || shutdownInProgress) {
+            return;
+        }
+        final CasambiSimpleBridgeState state = connectionState;
+        if (state != CasambiSimpleBridgeState.ONLINE && state != CasambiSimpleBridgeState.DEGRADED
+                && state != CasambiSimpleBridgeState.RECOVERING) {
+            // Socket is already being reopened (or the bridge stopped), the timer is stale
+            logger.debug("onPongTimeout: ignored in state {}", state);
+            return;
+        }
+        missedPong++;
+        logger.debug("onPongTimeout: no pong received, {} missing", missedPong);
+        if (missedPong >= maxMissedPong) {
+            logger.info("onPongTimeout: {} ping responses missing, socket seems dead. Reopening.", missedPong);
+            updateState(BRIDGE_CHANNEL_RTT, UnDefType.UNDEF);
+            missedPong = 0;
+            casambiSocketLocal.reopen();
+            final long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - remCmdWaitSince);
+            if (config.useRemCmd && waited >= remCmdAfter) {
+                logger.info("onPongTimeout: No pong for {} s. Sending recovery command.", waited / mSec);
+                remCmdWaitSince = System.nanoTime();
+                CasambiSimpleDriverSystem.sendSshRestartCommand(systemCommandExecutor);
+            }
+            transition(CasambiSimpleBridgeState.CONNECTING, "keepalive lost");
+        } else {
+            if (state == CasambiSimpleBridgeState.ONLINE) {
+                transition(CasambiSimpleBridgeState.DEGRADED, "pong missing");
+            }
+            // Probe again soon, the interval doubles with every missing pong
+            scheduleKeepAlive(fastPingInterval << (missedPong - 1));
+        }
+    }
+
+    /**
+     * getPongTimeout derives the time to wait for a pong from the smoothed round trip time
+     *
+     * @return timeout in milliseconds
+     */
+    private long getPongTimeout() {
+        if (rttStats.getCount() == 0) {
+            return 5 * mSec;
+        }
+        return Math.max(2 * mSec, Math.min(10 * mSec, 4 * rttStats.getSmoothed()));
+    }
+
+    /**
+     * startPeerRecovery marks the peer as offline and schedules the first recovery step (on a peerChanged (offline)
+     * message). The recovery runs independently of the socket state, a socket reconnect does not end it.
+     */
+    private synchronized void startPeerRecovery() {
+        peerOffline = true;
+        peerRecoveryStep = 0;
+        peerOfflineSince = System.nanoTime();
+        cancelTimer(peerRecoveryTimer);
+        peerRecoveryTimer = config.useRemCmd
+                ? tasks.schedule(this::doPeerRecovery, peerRecoveryDelays[0], TimeUnit.MINUTES)
+                : null;
+    }
+
+    /**
+     * doPeerRecovery tries to reactivate the casambi app on the mobile phone with the sshCommand (if configured and
+     * enabled). The first step is scheduled by startPeerRecovery.
+     *
+     * The recovery is an escalation of timers: the command is sent three times with increasing intervals. When the
+     * peer comes back online (peerChanged (online) message) or the bridge is disposed, the pending timer is cancelled
+     * immediately by finishPeerRecovery.
+     */
+    private synchronized void doPeerRecovery() {
+        final int step = peerRecoveryStep + 1;
+        if (!peerOffline) {
+            logger.debug("doPeerRecovery: Step {} - peer came back online. Recovery ended.", step);
+        } else if (peerRecoveryStep < peerRecoveryDelays.length - 1) {
+            logger.debug("doPeerRecovery: Step {} - peer still offline. Sending command.", step);
+            CasambiSimpleDriverSystem.sendSshRestartCommand(systemCommandExecutor);
+            peerRecoveryStep++;
+            peerRecoveryTimer = tasks.schedule(this::doPeerRecovery, peerRecoveryDelays[peerRecoveryStep],
+                    TimeUnit.MINUTES);
+        } else {
+            peerRecoveryTimer = null;
+            final String outcome = String.format("not recovered after %d s, %d commands sent, giving up",
+                    TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - peerOfflineSince), peerRecoveryStep);
+            logger.info("doPeerRecovery: Step {} - last try unsuccessful. Giving up.", step);
+            updateProperty(BRIDGE_PROPERTY_PEER_RECOVERY, outcome);
+        }
+    }
+
+    /**
+     * finishPeerRecovery ends the peer recovery when the peer is online again or the bridge is disposed. The pending
+     * recovery step is cancelled, the outcome and the time to recovery are logged and shown as a bridge property.
+     *
+     * @param recovered - true if the peer is online again, false if the bridge is disposed
+     */
+    private synchronized void finishPeerRecovery(boolean recovered) {
+        peerOffline = false;
+        cancelTimer(peerRecoveryTimer);
+        peerRecoveryTimer = null;
+        final long seconds = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - peerOfflineSince);
+        final String outcome;
+        if (recovered) {
+            outcome = String.format("recovered after %d s, %d commands sent", seconds, peerRecoveryStep);
+            updateProperty(BRIDGE_PROPERTY_PEER_RECOVERY, outcome);
+        } else {
+            outcome = String.format("interrupted after %d s, %d commands sent", seconds, peerRecoveryStep);
+        }
+        logger.info("finishPeerRecovery: {}", outcome);
+    }
 }
 
 // End
@@ -0,0 +1,41 @@
+/**
+ * Copyright (c) 2010-2022 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.casambisimple.internal.handler;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+
+/**
+ * The {@link CasambiSimpleBridgeState} lists the states of the connection between the bridge and the Casambi cloud
+ *
+ * <ul>
+ * <li>INIT - bridge created, nothing started yet
+ * <li>AUTH - user and network session are being created (or restored from the session cache)
+ * <li>CONNECTING - websocket is being connected or reopened, wire is being opened
+ * <li>ONLINE - wire open, keepalive answered, gateway online
+ * <li>DEGRADED - wire open, but keepalive responses are missing
+ * <li>RECOVERING - wire open, but the gateway (peer) is offline. Recovery commands are sent until it is online again
+ * <li>STOPPED - bridge disposed
+ * </ul>
+ *
+ * @author Hein Osenberg - Initial contribution
+ */
+@NonNullByDefault
+public enum CasambiSimpleBridgeState {
+    INIT,
+    AUTH,
+    CONNECTING,
+    ONLINE,
+    DEGRADED,
+    RECOVERING,
+    STOPPED
+}
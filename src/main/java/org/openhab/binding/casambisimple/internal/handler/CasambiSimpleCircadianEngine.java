@@ -0,0 +1,323 @@
+/**
+ * Copyright (c) 2010-2022 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.casambisimple.internal.handler;
+
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.binding.casambisimple.internal.driver.CasambiSimpleDriverSocket;
+import org.openhab.binding.casambisimple.internal.driver.CasambiSimpleScheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link CasambiSimpleCircadianEngine} sets the color temperature of subscribed luminaires following the time of
+ * day
+ *
+ * The curve is a half sine between the start and the end of the day: the warmest color temperature (minimum of the
+ * luminaire) before the start and after the end, the coolest (maximum of the luminaire) in the middle of the day. The
+ * position on the curve is computed once per step and mapped to the range of each luminaire. Luminaires that are off
+ * or already at their value are skipped; the others are sent one controlUnits frame per color temperature, so
+ * luminaires with the same range share a frame. A luminaire that is switched on gets its value right away. A manual
+ * color temperature or color command suspends a luminaire until it is switched off, so the next step does not
+ * overwrite it.
+ *
+ * @author Hein Osenberg - Initial contribution
+ */
+@NonNullByDefault
+public class CasambiSimpleCircadianEngine {
+
+    /**
+     * Subscriber is a luminaire following the curve. Read and written by the step, message and handler threads,
+     * check-and-set of lastSent is done while holding the subscriber.
+     */
+    private static class Subscriber {
+        private final float tempMin;
+        private final float tempMax;
+        private volatile int lastSent = 0; // Kelvin, 0 if nothing has been sent (or the luminaire was off)
+        private volatile boolean suspended = false; // manual command, until the luminaire is switched off
+
+        private Subscriber(float tempMin, float tempMax) {
+            this.tempMin = tempMin;
+            this.tempMax = tempMax;
+        }
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(CasambiSimpleCircadianEngine.class);
+
+    private final CasambiSimpleScheduler.TaskGroup tasks;
+    private final Executor sender;
+    private final Supplier<@Nullable CasambiSimpleDriverSocket> socket;
+    private final CasambiSimpleStateStore stateStore;
+
+    private final Map<Integer, Subscriber> subscribers = new ConcurrentHashMap<>();
+    private volatile @Nullable ScheduledFuture<?> stepTimer;
+    private LocalTime dayStart = LocalTime.of(7, 0);
+    private LocalTime dayEnd = LocalTime.of(21, 0);
+    private long steps = 0;
+    private long framesSent = 0;
+    private long framesSkipped = 0;
+
+    /**
+     * Constructor for the circadian engine
+     *
+     * @param tasks - task group of the bridge, for the step timer
+     * @param sender - runs the blocking sending of the frames
+     * @param socket - supplies the current socket of the bridge
+     * @param stateStore - last known on/off state of the luminaires
+     */
+    public CasambiSimpleCircadianEngine(CasambiSimpleScheduler.TaskGroup tasks, Executor sender,
+            Supplier<@Nullable CasambiSimpleDriverSocket> socket, CasambiSimpleStateStore stateStore) {
+        this.tasks = tasks;
+        this.sender = sender;
+        this.socket = socket;
+        this.stateStore = stateStore;
+    }
+
+    /**
+     * start runs the engine. A running engine is restarted with the new settings.
+     *
+     * @param interval - minutes between two steps
+     * @param start - start of the day (color temperature starts rising)
+     * @param end - end of the day (color temperature is back at the minimum)
+     */
+    public synchronized void start(int interval, LocalTime start, LocalTime end) {
+        stop();
+        if (!end.isAfter(start)) {
+            logger.warn("start: day end {} is not after day start {}, circadian mode disabled", end, start);
+            return;
+        }
+        dayStart = start;
+        dayEnd = end;
+        logger.debug("start: every {} min, day {} - {}", interval, start, end);
+        stepTimer = tasks.scheduleWithFixedDelay(() -> {
+            try {
+                sender.execute(this::step);
+            } catch (RuntimeException e) {
+                logger.debug("start: cannot run step - {}", e.getMessage());
+            }
+        }, 1, TimeUnit.MINUTES.toSeconds(interval), TimeUnit.SECONDS);
+    }
+
+    /**
+     * stop stops the engine, subscriptions are kept
+     */
+    public synchronized void stop() {
+        final ScheduledFuture<?> stepTimerLocal = stepTimer;
+        if (stepTimerLocal != null) {
+            stepTimerLocal.cancel(false);
+            stepTimer = null;
+        }
+    }
+
+    /**
+     * subscribe lets a luminaire follow the curve
+     *
+     * @param unitId - Casambi id of the luminaire
+     * @param tempMin - minimum color temperature of the luminaire
+     * @param tempMax - maximum color temperature of the luminaire
+     */
+    public void subscribe(int unitId, float tempMin, float tempMax) {
+        if (tempMax <= tempMin) {
+            logger.info("subscribe: unit {} has no color temperature range ({} - {})", unitId, tempMin, tempMax);
+            return;
+        }
+        subscribers.put(unitId, new Subscriber(tempMin, tempMax));
+    }
+
+    /**
+     * unsubscribe stops a luminaire from following the curve
+     *
+     * @param unitId - Casambi id of the luminaire
+     */
+    public void unsubscribe(int unitId) {
+        subscribers.remove(unitId);
+    }
+
+    /**
+     * unitOn sends the current value to a subscribed luminaire that has just been switched on
+     *
+     * @param unitId - Casambi id of the luminaire
+     */
+    public void unitOn(int unitId) {
+        final Subscriber subscriber = subscribers.get(unitId);
+        if (stepTimer == null || subscriber == null) {
+            return;
+        }
+        final int temp;
+        synchronized (subscriber) {
+            if (subscriber.lastSent != 0 || subscriber.suspended) {
+                return;
+            }
+            temp = getTemperature(subscriber, getPosition(LocalTime.now()));
+            subscriber.lastSent = temp;
+        }
+        final Map<Integer, List<Integer>> frame = Map.of(temp, List.of(unitId));
+        try {
+            sender.execute(() -> send(frame));
+        } catch (RuntimeException e) {
+            logger.debug("unitOn: cannot send frame - {}", e.getMessage());
+        }
+    }
+
+    /**
+     * unitOff resumes a luminaire that has been switched off, it gets the current value when it is switched on again
+     *
+     * @param unitId - Casambi id of the luminaire
+     */
+    public void unitOff(int unitId) {
+        final Subscriber subscriber = subscribers.get(unitId);
+        if (subscriber != null) {
+            synchronized (subscriber) {
+                subscriber.lastSent = 0;
+                subscriber.suspended = false;
+            }
+        }
+    }
+
+    /**
+     * suspend stops a luminaire from following the curve until it is switched off, after a manual color temperature
+     * or color command
+     *
+     * @param unitId - Casambi id of the luminaire
+     */
+    public void suspend(int unitId) {
+        final Subscriber subscriber = subscribers.get(unitId);
+        if (subscriber == null) {
+            return;
+        }
+        synchronized (subscriber) {
+            if (!subscriber.suspended) {
+                logger.debug("suspend: unit {} set manually, suspended until switched off", unitId);
+                subscriber.suspended = true;
+            }
+        }
+    }
+
+    /**
+     * getStats returns the number of subscribers and frame counts
+     *
+     * @return statistics
+     */
+    public synchronized String getStats() {
+        return String.format("luminaires %d, steps %d, frames sent %d, skipped %d", subscribers.size(), steps,
+                framesSent, framesSkipped);
+    }
+
+    /**
+     * getPosition returns the position on the curve for a time of day
+     *
+     * @param time - time of day
+     * @return 0 (warmest) to 1 (coolest)
+     */
+    private float getPosition(LocalTime time) {
+        if (time.isBefore(dayStart) || !time.isBefore(dayEnd)) {
+            return 0;
+        }
+        final double day = dayEnd.toSecondOfDay() - dayStart.toSecondOfDay();
+        return (float) Math.sin(Math.PI * (time.toSecondOfDay() - dayStart.toSecondOfDay()) / day);
+    }
+
+    private int getTemperature(Subscriber subscriber, float position) {
+        return Math.round(subscriber.tempMin + (subscriber.tempMax - subscriber.tempMin) * position);
+    }
+
+    /**
+     * step computes the curve position and sends the changed values of all luminaires that are on
+     */
+    private void step() {
+        final float position = getPosition(LocalTime.now());
+        // Units per color temperature, one frame per color temperature
+        final Map<Integer, List<Integer>> frames = new LinkedHashMap<>();
+        int skipped = 0;
+        for (Map.Entry<Integer, Subscriber> entry : subscribers.entrySet()) {
+            final Subscriber subscriber = entry.getValue();
+            final CasambiSimpleStateStore.Unit known = stateStore.get(entry.getKey());
+            final Float dimLevel = (known != null) ? known.dimLevel : null;
+            if (known == null || Boolean.FALSE.equals(known.on) || Boolean.FALSE.equals(known.online)
+                    || (dimLevel != null && dimLevel <= 0)) {
+                // Off: update as soon as it is switched on
+                unitOff(entry.getKey());
+                skipped++;
+                continue;
+            }
+            final int temp = getTemperature(subscriber, position);
+            synchronized (subscriber) {
+                if (subscriber.suspended || temp == subscriber.lastSent) {
+                    skipped++;
+                    continue;
+                }
+                subscriber.lastSent = temp;
+            }
+            frames.computeIfAbsent(temp, k -> new ArrayList<>()).add(entry.getKey());
+        }
+        synchronized (this) {
+            steps++;
+            framesSkipped += skipped;
+        }
+        logger.debug("step: position {}, {} frames, {} skipped", position, frames.size(), skipped);
+        send(frames);
+    }
+
+    /**
+     * send sends the color temperatures of a step, one frame per color temperature
+     *
+     * @param frames - units per color temperature (Kelvin)
+     */
+    private void send(Map<Integer, List<Integer>> frames) {
+        final CasambiSimpleDriverSocket socketLocal = socket.get();
+        if (socketLocal == null || frames.isEmpty()) {
+            return;
+        }
+        int sent = 0;
+        for (Map.Entry<Integer, List<Integer>> frame : frames.entrySet()) {
+            final int temp = frame.getKey();
+            try {
+                socketLocal.setUnitsCCT(frame.getValue().stream().mapToInt(Integer::intValue).toArray(), temp);
+                sent++;
+                for (int unitId : frame.getValue()) {
+                    final Subscriber subscriber = subscribers.get(unitId);
+                    if (subscriber != null) {
+                        stateStore.updateCct(unitId, Math.round(
+                                (temp - subscriber.tempMin) / (subscriber.tempMax - subscriber.tempMin) * 100));
+                    }
+                }
+            } catch (Exception e) {
+                logger.debug("send: units {} frame failed - {}", frame.getValue(), e.getMessage());
+                for (int unitId : frame.getValue()) {
+                    final Subscriber subscriber = subscribers.get(unitId);
+                    if (subscriber != null) {
+                        synchronized (subscriber) {
+                            if (subscriber.lastSent == temp) {
+                                subscriber.lastSent = 0; // Retry on the next step
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        synchronized (this) {
+            framesSent += sent;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright (c) 2010-2022 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.casambisimple.internal.handler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * The {@link CasambiSimpleConvergenceTracker} checks that commands to luminaires actually take effect
+ *
+ * For every on/off or dim command the target state of the unit is recorded. unitChanged messages (and targeted unit
+ * state queries) are compared with the target. A unit that has not reached its target state before the deadline is
+ * reported as overdue, so that its state can be queried and the command sent again. After maxAttempts the target is
+ * dropped and counted as a convergence failure for the unit.
+ *
+ * Only on/off and the dim level are tracked, these are the values reported reliably by unitChanged messages.
+ *
+ * @author Hein Osenberg - Initial contribution
+ */
+@NonNullByDefault
+public class CasambiSimpleConvergenceTracker {
+
+    /**
+     * Target is the commanded state of a unit
+     */
+    public static class Target {
+        public final int unitId;
+        public final boolean on;
+        public final @Nullable Float dimLevel;
+        private long deadline;
+        private int attempts = 0;
+        private boolean failed = false;
+
+        Target(int unitId, boolean on, @Nullable Float dimLevel, long deadline) {
+            this.unitId = unitId;
+            this.on = on;
+            this.dimLevel = dimLevel;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return number of times the target was overdue
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * @return true if the unit did not converge after the maximum number of attempts
+         */
+        public boolean isFailed() {
+            return failed;
+        }
+    }
+
+    private static final float tolerance = 0.02f;
+
+    private final Map<Integer, Target> targets = new HashMap<>();
+    private final Map<Integer, Integer> failures = new HashMap<>();
+    private final long timeout;
+    private final int maxAttempts;
+
+    /**
+     * Constructor for the convergence tracker
+     *
+     * @param timeout - time in milliseconds for a unit to reach its target state
+     * @param maxAttempts - number of checks (and re-sends) before giving up
+     */
+    public CasambiSimpleConvergenceTracker(long timeout, int maxAttempts) {
+        this.timeout = timeout;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * expectOnOff records an on/off command for a unit
+     *
+     * @param unitId - unit that was switched
+     * @param on - commanded state
+     */
+    public synchronized void expectOnOff(int unitId, boolean on) {
+        targets.put(unitId, new Target(unitId, on, null, System.currentTimeMillis() + timeout));
+    }
+
+    /**
+     * expectDimLevel records a dim command for a unit
+     *
+     * @param unitId - unit that was dimmed
+     * @param dimLevel - commanded dim level (0-1)
+     */
+    public synchronized void expectDimLevel(int unitId, float dimLevel) {
+        targets.put(unitId, new Target(unitId, dimLevel > 0, dimLevel, System.currentTimeMillis() + timeout));
+    }
+
+    /**
+     * observe compares a reported unit state with the target state. The target is removed, if it has been reached.
+     *
+     * @param unitId - unit the state is for
+     * @param on - reported on state (may be null)
+     * @param dimLevel - reported dim level (may be null)
+     * @return true if the unit has reached its target state (or there is no target)
+     */
+    public synchronized boolean observe(int unitId, @Nullable Boolean on, @Nullable Float dimLevel) {
+        final Target target = targets.get(unitId);
+        if (target == null) {
+            return true;
+        }
+        final Float targetDim = target.dimLevel;
+        final boolean converged;
+        if (targetDim != null) {
+            converged = dimLevel != null && Math.abs(dimLevel - targetDim) <= tolerance;
+        } else {
+            converged = (on != null) ? on == target.on : (dimLevel != null && (dimLevel > 0) == target.on);
+        }
+        if (converged) {
+            targets.remove(unitId);
+        }
+        return converged;
+    }
+
+    /**
+     * overdue returns the targets that have passed their deadline. The deadline of each returned target is extended.
+     * Targets that have used up their attempts are removed, marked as failed and counted.
+     *
+     * @return overdue targets
+     */
+    public synchronized List<Target> overdue() {
+        final long now = System.currentTimeMillis();
+        final List<Target> result = new ArrayList<>();
+        final Iterator<Target> it = targets.values().iterator();
+        while (it.hasNext()) {
+            final Target target = it.next();
+            if (target.deadline <= now) {
+                target.attempts++;
+                target.deadline = now + timeout;
+                if (target.attempts > maxAttempts) {
+                    target.failed = true;
+                    failures.merge(target.unitId, 1, Integer::sum);
+                    it.remove();
+                }
+                result.add(target);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * getFailures returns the number of convergence failures of a unit
+     *
+     * @param unitId - unit
+     * @return number of failures
+     */
+    public synchronized int getFailures(int unitId) {
+        return failures.getOrDefault(unitId, 0);
+    }
+
+    /**
+     * clear removes all targets, e.g. when the session is restarted
+     */
+    public synchronized void clear() {
+        targets.clear();
+    }
+}
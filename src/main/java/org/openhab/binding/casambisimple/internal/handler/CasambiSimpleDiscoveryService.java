@@ -15,14 +15,17 @@ package org.openhab.binding.casambisimple.internal.handler;
 import static org.openhab.binding.casambisimple.internal.CasambiSimpleBindingConstants.*;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.binding.casambisimple.internal.driver.CasambiSimpleCapabilities;
 import org.openhab.binding.casambisimple.internal.driver.CasambiSimpleDriverRest;
-import org.openhab.binding.casambisimple.internal.driver.messages.CasambiSimpleMessageControl;
 import org.openhab.binding.casambisimple.internal.driver.messages.CasambiSimpleMessageGroup;
 import org.openhab.binding.casambisimple.internal.driver.messages.CasambiSimpleMessageNetworkState;
 import org.openhab.binding.casambisimple.internal.driver.messages.CasambiSimpleMessageScene;
@@ -52,10 +55,15 @@ public class CasambiSimpleDiscoveryService extends AbstractDiscoveryService impl
     public static final Set<ThingTypeUID> SUPPORTED_THING_TYPES = Set.of(THING_TYPE_LUMINAIRE, THING_TYPE_SCENE,
             THING_TYPE_GROUP);
     private static final int SEARCH_TIME = 10;
+    private static final int INCREMENTAL_SCAN_DELAY = 5; // seconds, bursts of networkUpdated lead to one pass
 
     private @Nullable CasambiSimpleBridgeHandler bridgeHandler;
     private @Nullable ThingUID bridgeUID;
 
+    // Name of every unit, scene and group (by discovery set key) as seen by the last scan, used to find changes
+    private volatile Map<Long, String> lastSeen = new HashMap<>();
+    private volatile @Nullable ScheduledFuture<?> incrementalScanJob;
+
     // --- Constructor ---------------------------------------------------------------------------------------------
 
     public CasambiSimpleDiscoveryService() {
@@ -93,6 +101,20 @@ public class CasambiSimpleDiscoveryService extends AbstractDiscoveryService impl
         });
     }
 
+    /**
+     * scheduleIncrementalScan schedules an incremental discovery pass after a networkUpdated message. A pass that is
+     * already scheduled is postponed, so that a burst of updates leads to one pass. Called by the bridge's worker
+     * thread only.
+     */
+    public void scheduleIncrementalScan() {
+        final ScheduledFuture<?> pending = incrementalScanJob;
+        if (pending != null) {
+            pending.cancel(false);
+        }
+        logger.debug("scheduleIncrementalScan: pass in {} s", INCREMENTAL_SCAN_DELAY);
+        incrementalScanJob = scheduler.schedule(this::doIncrementalScan, INCREMENTAL_SCAN_DELAY, TimeUnit.SECONDS);
+    }
+
     private void doDiscoveryScan() {
         logger.trace("doDiscoveryScan: starting runnable.");
         try {
@@ -100,104 +122,73 @@ public class CasambiSimpleDiscoveryService extends AbstractDiscoveryService impl
             if (bridgeHandlerLocal != null) {
                 final CasambiSimpleDriverRest casambiRestLocal = bridgeHandlerLocal.casambiRest;
                 if (casambiRestLocal != null) {
-                    final CasambiSimpleMessageNetworkState networkState = casambiRestLocal.getNetworkState();
+                    final CasambiSimpleMessageNetworkState networkState = bridgeHandlerLocal.getNetworkState();
                     if (networkState != null) {
+                        lastSeen = getSnapshot(networkState);
 
                         // Initialize list of existing things and new units
-                        CasambiSimpleDiscoverySet knownAndNewThings = new CasambiSimpleDiscoverySet(
+                        final CasambiSimpleDiscoverySet knownAndNewThings = new CasambiSimpleDiscoverySet(
                                 bridgeHandlerLocal.thingsById);
-                        Set<String> knownThings = knownAndNewThings.getKnown();
-                        logger.debug("doDiscoveryScan: knownThings before scan {}", knownThings);
 
+                        // Mark rediscovered known things, collect new units, scenes and groups
                         if (networkState.units != null) {
-                            // Loop through luminaires removing from existing things and adding to new units
-                            for (Entry<Integer, CasambiSimpleMessageUnit> unit : networkState.units.entrySet()) {
-                                Integer id = unit.getValue().id;
-                                Integer fixtureId = unit.getValue().fixtureId;
-                                String uid = CasambiSimpleLuminaireHandler.getUidFromFixtureId(fixtureId);
-                                logger.trace("doDiscoveryScan: got unit id {}, uid {}, name {}", id, uid,
-                                        unit.getValue().name);
-                                knownAndNewThings.update(uid, id);
+                            for (CasambiSimpleMessageUnit unit : networkState.units.values()) {
+                                logger.trace("doDiscoveryScan: got unit id {}, fixture {}, name {}", unit.id,
+                                        unit.fixtureId, unit.name);
+                                knownAndNewThings.update(unit);
                             }
                         }
                         if (networkState.scenes != null) {
-                            // Loop through scenes removing from existing things and adding to new units
-                            for (Entry<Integer, CasambiSimpleMessageScene> scene : networkState.scenes.entrySet()) {
-                                Integer id = scene.getValue().id;
-                                String uid = CasambiSimpleSceneHandler.getUidFromId(id);
-                                logger.trace("doDiscoveryScan: got scene id {}, uid {}, name {}", id, uid,
-                                        scene.getValue().name);
-                                knownAndNewThings.update(uid, id);
+                            for (CasambiSimpleMessageScene scene : networkState.scenes.values()) {
+                                logger.trace("doDiscoveryScan: got scene id {}, name {}", scene.id, scene.name);
+                                knownAndNewThings.update(scene);
                             }
                         }
-
                         if (networkState.groups != null) {
-                            // Loop through scenes removing from existing things and adding to new units
-                            for (Entry<Integer, CasambiSimpleMessageGroup> group : networkState.groups.entrySet()) {
-                                Integer id = group.getValue().id;
-                                String uid = CasambiSimpleGroupHandler.getUidFromId(id);
-                                logger.trace("doDiscoveryScan: got group id {}, uid {}, name {}", id, uid,
-                                        group.getValue().name);
-                                knownAndNewThings.update(uid, id);
+                            for (CasambiSimpleMessageGroup group : networkState.groups.values()) {
+                                logger.trace("doDiscoveryScan: got group id {}, name {}", group.id, group.name);
+                                knownAndNewThings.update(group);
                             }
                         }
 
-                        // Add new units to things (using newThings)
-                        Set<String> newThings = knownAndNewThings.getNew();
-                        logger.debug("doDiscoveryScan: adding new things {}", newThings);
-
-                        for (String uidId : newThings) {
-                            Integer id = bridgeHandlerLocal.thingsById.getId(uidId);
-                            ThingTypeUID type = bridgeHandlerLocal.thingsById.getType(uidId);
-                            CasambiSimpleMessageNetworkState networkStateLocal = networkState;
-                            if (networkStateLocal != null) {
-                                if (THING_TYPE_LUMINAIRE.equals(type) && networkStateLocal.units != null) {
-                                    CasambiSimpleMessageUnit unit = networkStateLocal.units.get(id);
-                                    if (unit != null) {
-                                        addDiscoveredLuminaire(unit);
-                                    }
-                                } else if (THING_TYPE_SCENE.equals(type) && networkStateLocal.scenes != null) {
-                                    CasambiSimpleMessageScene scene = networkStateLocal.scenes.get(id);
-                                    if (scene != null) {
-                                        addDiscoveredScene(scene);
-                                    }
-                                } else if (THING_TYPE_GROUP.equals(type) && networkStateLocal.groups != null) {
-                                    CasambiSimpleMessageGroup scene = networkStateLocal.groups.get(id);
-                                    if (scene != null) {
-                                        addDiscoveredGroup(scene);
-                                    }
-                                }
-                            }
+                        // Add new units to things
+                        logger.debug("doDiscoveryScan: adding {} new luminaires, {} scenes, {} groups",
+                                knownAndNewThings.getNewUnits().size(), knownAndNewThings.getNewScenes().size(),
+                                knownAndNewThings.getNewGroups().size());
+                        for (CasambiSimpleMessageUnit unit : knownAndNewThings.getNewUnits()) {
+                            addDiscoveredLuminaire(unit);
+                        }
+                        logger.debug("doDiscoveryScan: fixture cache {}", bridgeHandlerLocal.fixtureCache.getStats());
+                        for (CasambiSimpleMessageScene scene : knownAndNewThings.getNewScenes()) {
+                            addDiscoveredScene(scene);
+                        }
+                        for (CasambiSimpleMessageGroup group : knownAndNewThings.getNewGroups()) {
+                            addDiscoveredGroup(group);
                         }
 
-                        // Remove things without units (using knownThings)
-                        knownThings = knownAndNewThings.getKnown();
-                        logger.debug("doDiscoveryScan: removing undiscovered known things {}", knownThings);
+                        // Remove things without units
+                        final List<Thing> notRediscovered = knownAndNewThings.getNotRediscovered();
+                        logger.debug("doDiscoveryScan: removing {} undiscovered known things", notRediscovered.size());
 
-                        for (String uidId : knownThings) {
-                            logger.trace("doDiscoveryScan: removing undiscovered known thing uidId {}", uidId);
-                            Thing thing = bridgeHandlerLocal.thingsById.getThing(uidId);
-                            if (thing != null) {
-                                ThingTypeUID type = bridgeHandlerLocal.thingsById.getType(uidId);
-                                if (THING_TYPE_LUMINAIRE.equals(type)) {
-                                    CasambiSimpleLuminaireHandler handler = (CasambiSimpleLuminaireHandler) thing
-                                            .getHandler();
-                                    if (handler != null) {
-                                        handler.dispose();
-                                    }
-                                } else if (THING_TYPE_SCENE.equals(type)) {
-                                    CasambiSimpleSceneHandler handler = (CasambiSimpleSceneHandler) thing.getHandler();
-                                    if (handler != null) {
-                                        handler.dispose();
-                                    }
-                                } else if (THING_TYPE_GROUP.equals(type)) {
-                                    CasambiSimpleGroupHandler handler = (CasambiSimpleGroupHandler) thing.getHandler();
-                                    if (handler != null) {
-                                        handler.dispose();
-                                    }
+                        for (Thing thing : notRediscovered) {
+                            logger.trace("doDiscoveryScan: removing undiscovered known thing {}", thing.getUID());
+                            final ThingTypeUID type = thing.getThingTypeUID();
+                            if (THING_TYPE_LUMINAIRE.equals(type)) {
+                                CasambiSimpleLuminaireHandler handler = (CasambiSimpleLuminaireHandler) thing
+                                        .getHandler();
+                                if (handler != null) {
+                                    handler.dispose();
+                                }
+                            } else if (THING_TYPE_SCENE.equals(type)) {
+                                CasambiSimpleSceneHandler handler = (CasambiSimpleSceneHandler) thing.getHandler();
+                                if (handler != null) {
+                                    handler.dispose();
+                                }
+                            } else if (THING_TYPE_GROUP.equals(type)) {
+                                CasambiSimpleGroupHandler handler = (CasambiSimpleGroupHandler) thing.getHandler();
+                                if (handler != null) {
+                                    handler.dispose();
                                 }
-                            } else {
-                                logger.debug("doDiscoveryScan: thing not found, cannot remove for uidId {}", uidId);
                             }
                         }
                     } else {
@@ -213,6 +204,100 @@ public class CasambiSimpleDiscoveryService extends AbstractDiscoveryService impl
         logger.trace("doDiscoveryScan: done.");
     }
 
+    /**
+     * doIncrementalScan compares the network state with the state seen by the last scan. Discovery results are
+     * emitted only for units, scenes and groups that are new or have been changed, and removed for those that are gone.
+     * Without a previous scan, a full scan is done.
+     */
+    private void doIncrementalScan() {
+        logger.trace("doIncrementalScan: starting.");
+        if (lastSeen.isEmpty()) {
+            doDiscoveryScan();
+            return;
+        }
+        try {
+            final CasambiSimpleBridgeHandler bridgeHandlerLocal = bridgeHandler;
+            final ThingUID localBridgeUID = bridgeUID;
+            if (bridgeHandlerLocal == null || localBridgeUID == null) {
+                return;
+            }
+            final CasambiSimpleMessageNetworkState networkState = bridgeHandlerLocal.getNetworkState();
+            if (networkState == null) {
+                logger.info("doIncrementalScan: got null network state message.");
+                return;
+            }
+            final Map<Long, String> current = getSnapshot(networkState);
+            int changed = 0;
+            if (networkState.units != null) {
+                for (CasambiSimpleMessageUnit unit : networkState.units.values()) {
+                    final long key = CasambiSimpleDiscoverySet.getUnitKey(unit.fixtureId, unit.id);
+                    if (!Objects.equals(current.get(key), lastSeen.get(key))) {
+                        addDiscoveredLuminaire(unit);
+                        changed++;
+                    }
+                }
+            }
+            if (networkState.scenes != null) {
+                for (CasambiSimpleMessageScene scene : networkState.scenes.values()) {
+                    final long key = CasambiSimpleDiscoverySet.getSceneKey(scene.id);
+                    if (!Objects.equals(current.get(key), lastSeen.get(key))) {
+                        addDiscoveredScene(scene);
+                        changed++;
+                    }
+                }
+            }
+            if (networkState.groups != null) {
+                for (CasambiSimpleMessageGroup group : networkState.groups.values()) {
+                    final long key = CasambiSimpleDiscoverySet.getGroupKey(group.id);
+                    if (!Objects.equals(current.get(key), lastSeen.get(key))) {
+                        addDiscoveredGroup(group);
+                        changed++;
+                    }
+                }
+            }
+            for (Long key : lastSeen.keySet()) {
+                if (!current.containsKey(key)) {
+                    final String uid = CasambiSimpleDiscoverySet.getUidFromKey(key);
+                    logger.debug("doIncrementalScan: {} is gone, removing discovery result", uid);
+                    thingRemoved(new ThingUID(THING_TYPE_LUMINAIRE, localBridgeUID, uid));
+                    changed++;
+                }
+            }
+            lastSeen = current;
+            logger.debug("doIncrementalScan: done, {} changes.", changed);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.error("doIncrementalScan: exception {}. Exiting.", e.getMessage());
+        }
+    }
+
+    /**
+     * getSnapshot returns the names of all units, scenes and groups of a network state
+     *
+     * @param networkState - network state as returned by the Casambi cloud service
+     * @return map from discovery set key to name
+     */
+    private Map<Long, String> getSnapshot(CasambiSimpleMessageNetworkState networkState) {
+        final Map<Long, String> snapshot = new HashMap<>();
+        if (networkState.units != null) {
+            for (CasambiSimpleMessageUnit unit : networkState.units.values()) {
+                snapshot.put(CasambiSimpleDiscoverySet.getUnitKey(unit.fixtureId, unit.id), unit.name);
+            }
+        }
+        if (networkState.scenes != null) {
+            for (CasambiSimpleMessageScene scene : networkState.scenes.values()) {
+                snapshot.put(CasambiSimpleDiscoverySet.getSceneKey(scene.id), scene.name);
+            }
+        }
+        if (networkState.groups != null) {
+            for (CasambiSimpleMessageGroup group : networkState.groups.values()) {
+                snapshot.put(CasambiSimpleDiscoverySet.getGroupKey(group.id), group.name);
+            }
+        }
+        return snapshot;
+    }
+
     private void addDiscoveredLuminaire(CasambiSimpleMessageUnit unit) {
         try {
             final String uniqueID = CasambiSimpleLuminaireHandler.getUidFromFixtureId(unit.fixtureId);
@@ -225,21 +310,24 @@ public class CasambiSimpleDiscoveryService extends AbstractDiscoveryService impl
                 properties.put(LUMINAIRE_NAME, unit.name);
                 properties.put(LUMINAIRE_ID, unit.id);
                 properties.put(LUMINAIRE_UID, uniqueID);
-                if (unit.controls != null) {
-                    for (CasambiSimpleMessageControl control : unit.controls[0]) {
-                        if (control != null) {
-                            if (control.isDimmer()) {
-                                properties.put(LUMINAIRE_HAS_DIMMER, true);
-                            }
-                            if (control.isColor()) {
-                                properties.put(LUMINAIRE_HAS_COLOR, true);
-                            }
-                            if (control.isCCT()) {
-                                properties.put(LUMINAIRE_HAS_CCT, true);
-                                properties.put(LUMINAIRE_TEMPERATURE_MIN, control.getMin());
-                                properties.put(LUMINAIRE_TEMPERATURE_MAX, control.getMax());
-                            }
-                        }
+                final CasambiSimpleBridgeHandler bridgeHandlerLocal = bridgeHandler;
+                if (bridgeHandlerLocal != null) {
+                    // Identical fixtures are analysed only once
+                    final CasambiSimpleCapabilities capabilities = bridgeHandlerLocal.fixtureCache
+                            .getCapabilities(unit, bridgeHandlerLocal.casambiRest);
+                    if (capabilities.has(CasambiSimpleCapabilities.DIMMER)) {
+                        properties.put(LUMINAIRE_HAS_DIMMER, true);
+                    }
+                    if (capabilities.has(CasambiSimpleCapabilities.COLOR)) {
+                        properties.put(LUMINAIRE_HAS_COLOR, true);
+                    }
+                    if (capabilities.has(CasambiSimpleCapabilities.CCT)) {
+                        properties.put(LUMINAIRE_HAS_CCT, true);
+                        properties.put(LUMINAIRE_TEMPERATURE_MIN, capabilities.getTempMin());
+                        properties.put(LUMINAIRE_TEMPERATURE_MAX, capabilities.getTempMax());
+                    }
+                    if (capabilities.has(CasambiSimpleCapabilities.WHITE_LEVEL)) {
+                        properties.put(LUMINAIRE_HAS_WHITELEVEL, true);
                     }
                 }
                 logger.debug("addDiscoveredLuminaire: ttUID: {}, bUID {}, label: {}", THING_TYPE_LUMINAIRE, bridgeUID,
@@ -336,6 +424,10 @@ public class CasambiSimpleDiscoveryService extends AbstractDiscoveryService impl
 
     @Override
     public void deactivate() {
+        final ScheduledFuture<?> pending = incrementalScanJob;
+        if (pending != null) {
+            pending.cancel(false);
+        }
         if (bridgeHandler != null) {
             bridgeHandler.unregisterDiscoveryListener();
         } else {
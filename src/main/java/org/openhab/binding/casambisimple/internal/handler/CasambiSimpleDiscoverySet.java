@@ -12,18 +12,31 @@
  */
 package org.openhab.binding.casambisimple.internal.handler;
 
-import java.util.HashSet;
+import static org.openhab.binding.casambisimple.internal.CasambiSimpleBindingConstants.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 import java.util.Map.Entry;
-import java.util.Set;
 
 import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.binding.casambisimple.internal.driver.messages.CasambiSimpleMessageGroup;
+import org.openhab.binding.casambisimple.internal.driver.messages.CasambiSimpleMessageScene;
+import org.openhab.binding.casambisimple.internal.driver.messages.CasambiSimpleMessageUnit;
 import org.openhab.core.thing.Thing;
+import org.openhab.core.thing.ThingTypeUID;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * The {@link CasambiSimpleDiscoverySet} keeps count of new things discovered and known things rediscovered
  *
+ * Known things are identified by a numeric key (thing type, fixture id for luminaires and Casambi id). The keys are
+ * kept in a sorted array, rediscovered things are marked in a bit set. New units, scenes and groups are returned
+ * together with their message object, so no uid strings have to be built or parsed during the scan.
+ *
  * @author Hein Osenberg - Initial contribution
  */
 @NonNullByDefault
@@ -31,37 +44,175 @@ public class CasambiSimpleDiscoverySet {
 
     final Logger logger = LoggerFactory.getLogger(CasambiSimpleDiscoverySet.class);
 
+    // Key layout: type (bits 60-61), fixture id (bits 24-59, luminaires only), Casambi id (bits 0-23)
+    private static final long typeLuminaire = 1L << 60;
+    private static final long typeScene = 2L << 60;
+    private static final long typeGroup = 3L << 60;
+    private static final long idMask = (1L << 24) - 1;
+    private static final long fixtureMask = (1L << 36) - 1;
+
     // Instance stuff
 
-    private Set<String> knownThings = new HashSet<>();
-    private Set<String> newThings = new HashSet<>();
+    private final long[] knownKeys;
+    private final Thing[] knownThings;
+    private final BitSet rediscovered;
 
-    private CasambiSimpleThingsById thingMap;
+    private final List<CasambiSimpleMessageUnit> newUnits = new ArrayList<>();
+    private final List<CasambiSimpleMessageScene> newScenes = new ArrayList<>();
+    private final List<CasambiSimpleMessageGroup> newGroups = new ArrayList<>();
 
     CasambiSimpleDiscoverySet(CasambiSimpleThingsById thingsById) {
-        thingMap = thingsById;
-        for (Entry<String, Thing> mapping : thingMap.map.entrySet()) {
-            knownThings.add(mapping.getKey());
+        // The uidIds of the known things are parsed once
+        final long[] keys = new long[thingsById.map.size()];
+        final Thing[] things = new Thing[keys.length];
+        int n = 0;
+        for (Entry<String, Thing> mapping : thingsById.map.entrySet()) {
+            final long key = getKey(thingsById, mapping.getKey());
+            if (key != 0) {
+                keys[n] = key;
+                things[n] = mapping.getValue();
+                n++;
+            }
+        }
+        knownKeys = Arrays.copyOf(keys, n);
+        Arrays.sort(knownKeys);
+        knownThings = new Thing[n];
+        for (int i = 0; i < n; i++) {
+            knownThings[Arrays.binarySearch(knownKeys, keys[i])] = things[i];
         }
-        logger.trace("CasambiSimpleThingsById: constructor knownThings {}", knownThings);
+        rediscovered = new BitSet(n);
+        logger.trace("CasambiSimpleDiscoverySet: constructor {} known things", n);
     }
 
-    public Set<String> getKnown() {
-        return knownThings;
+    /**
+     * getKey parses a uidId from the thing registry into a numeric key
+     *
+     * @param thingsById - for parsing the uidId
+     * @param uidId - combination of uid and id
+     * @return key, 0 if the uidId cannot be parsed
+     */
+    private long getKey(CasambiSimpleThingsById thingsById, String uidId) {
+        try {
+            final String uid = thingsById.getUid(uidId);
+            final int id = thingsById.getId(uidId);
+            final ThingTypeUID type = thingsById.getType(uid);
+            if (THING_TYPE_LUMINAIRE.equals(type)) {
+                return getUnitKey(Integer.parseInt(uid.substring(3)), id);
+            } else if (THING_TYPE_SCENE.equals(type)) {
+                return typeScene | (id & idMask);
+            } else if (THING_TYPE_GROUP.equals(type)) {
+                return typeGroup | (id & idMask);
+            }
+        } catch (RuntimeException e) {
+            logger.debug("CasambiSimpleDiscoverySet: cannot parse uidId {}", uidId);
+        }
+        return 0;
+    }
+
+    /**
+     * getUnitKey returns the key of a luminaire
+     *
+     * @param fixtureId - fixture id of the unit
+     * @param id - Casambi id of the unit
+     * @return key
+     */
+    public static long getUnitKey(int fixtureId, int id) {
+        return typeLuminaire | ((fixtureId & fixtureMask) << 24) | (id & idMask);
     }
 
-    public Set<String> getNew() {
-        return newThings;
+    /**
+     * getSceneKey returns the key of a scene
+     *
+     * @param id - Casambi id of the scene
+     * @return key
+     */
+    public static long getSceneKey(int id) {
+        return typeScene | (id & idMask);
     }
 
-    public void update(String uid, Integer id) {
-        final String uidId = thingMap.uidIdCombine(uid, id);
-        if (knownThings.contains(uidId)) {
-            logger.trace("updateKnownAndNewThings: uid {} matches, removing from knownThings", uidId);
-            knownThings.remove(uidId);
+    /**
+     * getGroupKey returns the key of a group
+     *
+     * @param id - Casambi id of the group
+     * @return key
+     */
+    public static long getGroupKey(int id) {
+        return typeGroup | (id & idMask);
+    }
+
+    /**
+     * getUidFromKey returns the uid (as used for thing UIDs) belonging to a key
+     *
+     * @param key - key of a luminaire, scene or group
+     * @return uid
+     */
+    public static String getUidFromKey(long key) {
+        final int id = (int) (key & idMask);
+        final long type = key & (3L << 60);
+        if (type == typeLuminaire) {
+            return CasambiSimpleLuminaireHandler.getUidFromFixtureId((int) ((key >>> 24) & fixtureMask));
+        } else if (type == typeScene) {
+            return CasambiSimpleSceneHandler.getUidFromId(id);
         } else {
-            logger.trace("updateKnownAndNewThings: uid {} does not match, adding to newThings", uidId);
-            newThings.add(uidId);
+            return CasambiSimpleGroupHandler.getUidFromId(id);
+        }
+    }
+
+    private boolean rediscover(long key) {
+        final int i = Arrays.binarySearch(knownKeys, key);
+        if (i >= 0) {
+            rediscovered.set(i);
+            return true;
+        }
+        return false;
+    }
+
+    public void update(CasambiSimpleMessageUnit unit) {
+        if (!rediscover(getUnitKey(unit.fixtureId, unit.id))) {
+            logger.trace("update: unit {} is new", unit.id);
+            newUnits.add(unit);
+        }
+    }
+
+    public void update(CasambiSimpleMessageScene scene) {
+        if (!rediscover(getSceneKey(scene.id))) {
+            logger.trace("update: scene {} is new", scene.id);
+            newScenes.add(scene);
+        }
+    }
+
+    public void update(CasambiSimpleMessageGroup group) {
+        if (!rediscover(getGroupKey(group.id))) {
+            logger.trace("update: group {} is new", group.id);
+            newGroups.add(group);
+        }
+    }
+
+    public List<CasambiSimpleMessageUnit> getNewUnits() {
+        return newUnits;
+    }
+
+    public List<CasambiSimpleMessageScene> getNewScenes() {
+        return newScenes;
+    }
+
+    public List<CasambiSimpleMessageGroup> getNewGroups() {
+        return newGroups;
+    }
+
+    /**
+     * getNotRediscovered returns the known things that were not found in the network
+     *
+     * @return things
+     */
+    public List<Thing> getNotRediscovered() {
+        final List<Thing> result = new ArrayList<>();
+        for (int i = rediscovered.nextClearBit(0); i < knownKeys.length; i = rediscovered.nextClearBit(i + 1)) {
+            final @Nullable Thing thing = knownThings[i];
+            if (thing != null) {
+                result.add(thing);
+            }
         }
+        return result;
     }
 }
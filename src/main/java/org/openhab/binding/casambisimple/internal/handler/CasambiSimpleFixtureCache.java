@@ -0,0 +1,242 @@
+/**
+ * Copyright (c) 2010-2022 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.casambisimple.internal.handler;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.binding.casambisimple.internal.driver.CasambiSimpleCapabilities;
+import org.openhab.binding.casambisimple.internal.driver.CasambiSimpleDriverRest;
+import org.openhab.binding.casambisimple.internal.driver.messages.CasambiSimpleMessageControl;
+import org.openhab.binding.casambisimple.internal.driver.messages.CasambiSimpleMessageUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+
+/**
+ * The {@link CasambiSimpleFixtureCache} keeps the capabilities (controls) of fixtures, so that units of the same
+ * fixture are analysed only once
+ *
+ * Capabilities are decoded from the controls of a unit in the network state and the shared descriptor is attached
+ * to all units of the fixture, their control objects are dropped. Units without controls are looked up with
+ * getFixtureInfo. The cache is kept in memory with LRU eviction and stored on disk (only if it has changed),
+ * so that it survives restarts. Decodes without any control (a unit that reported no controls) are not cached, and
+ * the cache is cleared when the network is changed with the Casambi app.
+ *
+ * @author Hein Osenberg - Initial contribution
+ */
+@NonNullByDefault
+public class CasambiSimpleFixtureCache {
+
+    /**
+     * CacheFile is the content of the cache file
+     */
+    private static class CacheFile {
+        public int version = FORMAT_VERSION;
+        public List<CasambiSimpleCapabilities> fixtures = new ArrayList<>();
+    }
+
+    private static final int FORMAT_VERSION = 2;
+
+    private final Logger logger = LoggerFactory.getLogger(CasambiSimpleFixtureCache.class);
+
+    private final Path cacheFile;
+    private final Map<Integer, CasambiSimpleCapabilities> fixtures;
+    private boolean changed = false;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Constructor for the fixture cache
+     *
+     * @param file - path of the cache file (directories are created as needed)
+     * @param maxEntries - number of fixtures kept, the least recently used fixture is dropped first
+     */
+    public CasambiSimpleFixtureCache(Path file, int maxEntries) {
+        cacheFile = file;
+        fixtures = new LinkedHashMap<>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.@Nullable Entry<Integer, CasambiSimpleCapabilities> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * load reads the cache file. A missing or unreadable file leaves the cache empty.
+     */
+    public synchronized void load() {
+        try {
+            if (Files.isReadable(cacheFile)) {
+                final CacheFile loaded = new Gson().fromJson(Files.readString(cacheFile, StandardCharsets.UTF_8),
+                        CacheFile.class);
+                if (loaded != null && loaded.version == FORMAT_VERSION && loaded.fixtures != null) {
+                    fixtures.clear();
+                    for (CasambiSimpleCapabilities capabilities : loaded.fixtures) {
+                        if (capabilities.getFlags() != 0) {
+                            fixtures.put(capabilities.getFixtureId(), capabilities);
+                        }
+                    }
+                    changed = false;
+                    logger.debug("fixtureCache.load: {} fixtures from {}", fixtures.size(), cacheFile);
+                } else {
+                    logger.debug("fixtureCache.load: ignoring {}, unknown format", cacheFile);
+                }
+            }
+        } catch (Exception e) {
+            logger.info("fixtureCache.load: cannot read {} - {}", cacheFile, e.getMessage());
+        }
+    }
+
+    /**
+     * saveIfChanged writes the cache file, if fixtures have been added since the last save
+     */
+    public synchronized void saveIfChanged() {
+        if (!changed) {
+            return;
+        }
+        try {
+            final Path dir = cacheFile.toAbsolutePath().getParent();
+            if (dir != null) {
+                Files.createDirectories(dir);
+            }
+            final Path tmpFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+            final CacheFile content = new CacheFile();
+            content.fixtures.addAll(fixtures.values());
+            Files.writeString(tmpFile, new Gson().toJson(content), StandardCharsets.UTF_8);
+            Files.move(tmpFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            changed = false;
+            logger.trace("fixtureCache.saveIfChanged: {} fixtures stored in {}", fixtures.size(), cacheFile);
+        } catch (Exception e) {
+            logger.info("fixtureCache.saveIfChanged: cannot write {} - {}", cacheFile, e.getMessage());
+        }
+    }
+
+    /**
+     * get returns the cached capabilities of a fixture
+     *
+     * @param fixtureId - fixture id as defined by the Casambi system
+     * @return capabilities, null if the fixture is not cached
+     */
+    public synchronized @Nullable CasambiSimpleCapabilities get(int fixtureId) {
+        return fixtures.get(fixtureId);
+    }
+
+    /**
+     * intern attaches the shared capability descriptor of its fixture to a unit and drops the unit's controls. On a
+     * cache miss the descriptor is decoded from the controls. Units without (known) controls get no descriptor. Does
+     * not block.
+     *
+     * @param unit - unit from the network state
+     */
+    public void intern(CasambiSimpleMessageUnit unit) {
+        if (unit.capabilities != null) {
+            return;
+        }
+        final @Nullable CasambiSimpleMessageControl @Nullable [][] controls = unit.controls;
+        synchronized (this) {
+            CasambiSimpleCapabilities capabilities = fixtures.get(unit.fixtureId);
+            if (capabilities != null) {
+                hits++;
+            } else if (controls != null && controls.length > 0) {
+                misses++;
+                capabilities = CasambiSimpleCapabilities.decode(unit.fixtureId, controls[0]);
+                logger.debug("intern: {}", capabilities);
+                if (capabilities.getFlags() != 0) {
+                    fixtures.put(unit.fixtureId, capabilities);
+                    changed = true;
+                } else {
+                    // Controls missing in this report, don't let it hide the fixture's controls for good
+                    capabilities = null;
+                }
+            }
+            unit.capabilities = capabilities;
+        }
+        unit.controls = null;
+    }
+
+    /**
+     * getCapabilities returns the capabilities of the fixture of a unit. If the unit has no controls, they are
+     * fetched with getFixtureInfo. Blocks while fetching.
+     *
+     * @param unit - unit from the network state
+     * @param casambiRest - REST interface for getFixtureInfo, may be null
+     * @return capabilities (without any controls if they could not be determined)
+     */
+    public CasambiSimpleCapabilities getCapabilities(CasambiSimpleMessageUnit unit,
+            @Nullable CasambiSimpleDriverRest casambiRest) {
+        intern(unit);
+        final CasambiSimpleCapabilities interned = unit.capabilities;
+        if (interned != null) {
+            return interned;
+        }
+        if (casambiRest != null) {
+            try {
+                final JsonElement controls = casambiRest.getFixtureInfo(unit.fixtureId).get("controls");
+                if (controls != null && controls.isJsonArray()) {
+                    final CasambiSimpleCapabilities capabilities = CasambiSimpleCapabilities.decode(unit.fixtureId,
+                            new Gson().fromJson(controls, CasambiSimpleMessageControl[].class));
+                    logger.debug("getCapabilities: from fixture info {}", capabilities);
+                    if (capabilities.getFlags() != 0) {
+                        synchronized (this) {
+                            fixtures.put(unit.fixtureId, capabilities);
+                            changed = true;
+                        }
+                        unit.capabilities = capabilities;
+                    }
+                    return capabilities;
+                }
+                logger.debug("getCapabilities: no controls in info for fixture {}", unit.fixtureId);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                logger.info("getCapabilities: cannot get info for fixture {} - {}", unit.fixtureId, e.getMessage());
+            }
+        }
+        // Not cached, next scan tries again
+        return CasambiSimpleCapabilities.none(unit.fixtureId);
+    }
+
+    /**
+     * invalidate drops all cached fixtures. Called when the network has been changed, fixtures are decoded again
+     * from the next network state.
+     */
+    public synchronized void invalidate() {
+        if (!fixtures.isEmpty()) {
+            logger.debug("fixtureCache.invalidate: dropping {} fixtures", fixtures.size());
+            fixtures.clear();
+            changed = true;
+        }
+    }
+
+    /**
+     * getStats returns the number of cached fixtures and cache hits/misses
+     *
+     * @return statistics
+     */
+    public synchronized String getStats() {
+        return String.format("fixtures %d, hits %d, misses %d", fixtures.size(), hits, misses);
+    }
+}
@@ -80,7 +80,9 @@ public class CasambiSimpleGroupHandler extends BaseThingHandler {
                         if (command instanceof RefreshType) {
                             doRefresh = true;
                         } else if (command instanceof OnOffType) {
+                            bridgeHandler.cancelGroupFades(groupId);
                             casambiSocketLocal.setGroupOnOff(groupId, command == OnOffType.ON);
+                            bridgeHandler.propagateGroupState(groupId, command == OnOffType.ON, null);
                             // } else if (command instanceof PercentType) {
                             // bridgeHandler.casambiSocket.setGroupLevel(groupId, ((PercentType) command).floatValue() /
                             // 100);
@@ -96,7 +98,10 @@ public class CasambiSimpleGroupHandler extends BaseThingHandler {
                         if (command instanceof RefreshType) {
                             doRefresh = true;
                         } else if (command instanceof PercentType) {
-                            casambiSocketLocal.setGroupLevel(groupId, ((PercentType) command).floatValue() / 100);
+                            final float level = ((PercentType) command).floatValue() / 100;
+                            bridgeHandler.cancelGroupFades(groupId);
+                            casambiSocketLocal.setGroupLevel(groupId, level);
+                            bridgeHandler.propagateGroupState(groupId, level > 0, level);
                         } else {
                             logger.warn("handleCommand: unexpected command type {}", command.getClass());
                         }
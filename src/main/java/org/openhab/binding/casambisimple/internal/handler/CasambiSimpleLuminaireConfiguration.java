@@ -24,6 +24,9 @@ public class CasambiSimpleLuminaireConfiguration {
     public Boolean hasDimmer = false;
     public Boolean hasColor = false;
     public Boolean hasCCT = false;
+    public Boolean hasWhitelevel = false;
     public Float tempMin = (float) 0;
     public Float tempMax = (float) 0;
+    public Boolean circadian = false;
+    public Integer autoOff = 0;
 }
@@ -15,11 +15,15 @@ package org.openhab.binding.casambisimple.internal.handler;
 import static org.openhab.binding.casambisimple.internal.CasambiSimpleBindingConstants.*;
 
 import java.math.BigDecimal;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.binding.casambisimple.internal.driver.CasambiSimpleCapabilities;
 import org.openhab.binding.casambisimple.internal.driver.CasambiSimpleDriverRest;
 import org.openhab.binding.casambisimple.internal.driver.CasambiSimpleDriverSocket;
+import org.openhab.binding.casambisimple.internal.driver.messages.CasambiSimpleMessageControl;
 import org.openhab.binding.casambisimple.internal.driver.messages.CasambiSimpleMessageUnit;
 import org.openhab.core.library.types.DecimalType;
 import org.openhab.core.library.types.HSBType;
@@ -34,7 +38,9 @@ import org.openhab.core.thing.ThingStatusDetail;
 import org.openhab.core.thing.ThingStatusInfo;
 import org.openhab.core.thing.binding.BaseThingHandler;
 import org.openhab.core.thing.binding.BridgeHandler;
+import org.openhab.core.thing.binding.builder.ChannelBuilder;
 import org.openhab.core.thing.binding.builder.ThingBuilder;
+import org.openhab.core.thing.type.ChannelTypeUID;
 import org.openhab.core.types.Command;
 import org.openhab.core.types.RefreshType;
 import org.openhab.core.types.State;
@@ -62,6 +68,9 @@ public class CasambiSimpleLuminaireHandler extends BaseThingHandler {
     private Integer deviceId = 0;
     private String deviceUid = "";
 
+    // Last state sent for each channel, to suppress unchanged updates
+    private final Map<String, State> channelStates = new ConcurrentHashMap<>();
+
     // --- Constructor ---------------------------------------------------------------------------------------------
 
     /**
@@ -108,6 +117,9 @@ public class CasambiSimpleLuminaireHandler extends BaseThingHandler {
     public void handleCommand(ChannelUID channelUID, Command command) {
         boolean commandHandled = false;
         logger.debug("handleCommand: channel uid {}, command {}", channelUID, command);
+        // The item state follows the command (or is asked for by a refresh), the next reported state must not be
+        // suppressed
+        channelStates.remove(channelUID.getId());
         final CasambiSimpleBridgeHandler bridgeHandler = getBridgeHandler();
         if (bridgeHandler != null) {
             final CasambiSimpleDriverRest casambiRestCopy = bridgeHandler.casambiRest;
@@ -115,18 +127,27 @@ public class CasambiSimpleLuminaireHandler extends BaseThingHandler {
             if (casambiSocketCopy != null && casambiRestCopy != null) {
                 try {
                     if (!(command instanceof RefreshType)) {
+                        if (!LUMINAIRE_CHANNEL_CCT.equals(channelUID.getId())) {
+                            // A manual command wins over a running fade, its next frame would undo the command
+                            bridgeHandler.cancelFades(new int[] { deviceId });
+                        }
                         if (LUMINAIRE_CHANNEL_ONOFF.equals(channelUID.getId())) {
                             logger.trace("handleCommand: got ONOFF channel command {}", command);
                             // Set dim level (0-100)
                             if (command instanceof OnOffType) {
                                 casambiSocketCopy.setUnitOnOff(deviceId, command.equals(OnOffType.ON));
+                                bridgeHandler.convergenceTracker.expectOnOff(deviceId, command.equals(OnOffType.ON));
+                                bridgeHandler.unitTimers.activity(deviceId, command.equals(OnOffType.ON));
                                 commandHandled = true;
                             }
                         } else if (LUMINAIRE_CHANNEL_DIMMER.equals(channelUID.getId())) {
                             logger.trace("handleCommand: got DIMMER channel command {}", command);
                             // Set dim level (0-100)
                             if (command instanceof PercentType) {
-                                casambiSocketCopy.setUnitDimmer(deviceId, ((PercentType) command).floatValue() / 100);
+                                final float dim = ((PercentType) command).floatValue() / 100;
+                                casambiSocketCopy.setUnitDimmer(deviceId, dim);
+                                bridgeHandler.convergenceTracker.expectDimLevel(deviceId, dim);
+                                bridgeHandler.unitTimers.activity(deviceId, dim > 0);
                                 commandHandled = true;
                             }
                         } else if (LUMINAIRE_CHANNEL_COLOR.equals(channelUID.getId())) {
@@ -138,13 +159,19 @@ public class CasambiSimpleLuminaireHandler extends BaseThingHandler {
                                     Float h = Float.valueOf(hsb[0]) / 360;
                                     Float s = Float.valueOf(hsb[1]) / 100;
                                     Float b = Float.valueOf(hsb[2]) / 100;
+                                    bridgeHandler.circadian.suspend(deviceId); // Manual color wins
                                     casambiSocketCopy.setUnitHSB(deviceId, h, s, b);
+                                    bridgeHandler.convergenceTracker.expectDimLevel(deviceId, b);
+                                    bridgeHandler.unitTimers.activity(deviceId, b > 0);
+                                    bridgeHandler.stateStore.updateColor(deviceId, command.toString());
                                 } else {
                                     logger.info("handleCommand: illegal hsb value {}", command.toString());
                                 }
                                 commandHandled = true;
                             } else if (command instanceof OnOffType) {
                                 casambiSocketCopy.setUnitOnOff(deviceId, command.equals(OnOffType.ON));
+                                bridgeHandler.convergenceTracker.expectOnOff(deviceId, command.equals(OnOffType.ON));
+                                bridgeHandler.unitTimers.activity(deviceId, command.equals(OnOffType.ON));
                                 commandHandled = true;
                             }
                         } else if (LUMINAIRE_CHANNEL_CCT.equals(channelUID.getId())) {
@@ -155,7 +182,9 @@ public class CasambiSimpleLuminaireHandler extends BaseThingHandler {
                                 final Float tMin = config.tempMin;
                                 final Float tMax = config.tempMax;
                                 final Float temp = tMin + (tMax - tMin) * slider;
+                                bridgeHandler.circadian.suspend(deviceId); // Manual value wins
                                 casambiSocketCopy.setUnitCCT(deviceId, temp);
+                                bridgeHandler.stateStore.updateCct(deviceId, ((PercentType) command).intValue());
                                 commandHandled = true;
                             }
                         } else {
@@ -209,53 +238,107 @@ public class CasambiSimpleLuminaireHandler extends BaseThingHandler {
         deviceId = ((BigDecimal) this.thing.getConfiguration().get(LUMINAIRE_ID)).intValueExact();
         deviceUid = this.thing.getConfiguration().get(LUMINAIRE_UID).toString();
 
+        channelStates.clear();
+        config = getConfigAs(CasambiSimpleLuminaireConfiguration.class);
         final CasambiSimpleBridgeHandler bridgeHandler = getBridgeHandler();
         if (bridgeHandler != null) {
 
             bridgeHandler.thingsById.put(bridgeHandler.thingsById.uidIdCombine(deviceUid, deviceId), this.thing);
             logger.debug("initialize: uid {}, id {}, thingUid {}", deviceUid, deviceId, this.thing.getUID());
 
-            // FIXME: This shouldn't be done on every initialization but once after as scan.
-
             // Get properties of the device
-            final boolean hasBri = ((Boolean) true).equals(this.thing.getConfiguration().get(LUMINAIRE_HAS_DIMMER));
-            final boolean hasCo = ((Boolean) true).equals(this.thing.getConfiguration().get(LUMINAIRE_HAS_COLOR));
-            final boolean hasCoTe = ((Boolean) true).equals(this.thing.getConfiguration().get(LUMINAIRE_HAS_CCT));
-
-            logger.trace("initialize: thing {}: hasBri {}, hasCo {}, hasCoTe {}", deviceUid, hasBri, hasCo, hasCoTe);
-
-            // Remove channels that have no corresponding control in the device
-            final ThingBuilder thingBuilder = editThing();
-            for (Channel ch : this.thing.getChannels()) {
-                logger.trace("Thing {} has channel: uid {}, label {} type {}", deviceUid, ch.getUID(), ch.getLabel(),
-                        ch.getChannelTypeUID());
-                if (LUMINAIRE_CHANNEL_DIMMER.equals(ch.getUID().getId())) {
-                    if (!hasBri) {
-                        logger.trace("Thing: {} removing DIMMER channel {}", deviceUid, ch.getUID());
-                        thingBuilder.withoutChannel(ch.getUID());
-                    }
-                }
-                if (LUMINAIRE_CHANNEL_COLOR.equals(ch.getUID().getId())) {
-                    if (!hasCo) {
-                        logger.trace("Thing: {} removing COLOR channel {}", deviceUid, ch.getUID());
-                        thingBuilder.withoutChannel(ch.getUID());
-                    }
-                }
-                if (LUMINAIRE_CHANNEL_CCT.equals(ch.getUID().getId())) {
-                    if (!hasCoTe) {
-                        logger.trace("Thing: {} Removing CCT channel {}", deviceUid, ch.getUID());
-                        thingBuilder.withoutChannel(ch.getUID());
-                    }
-                }
-            }
-            updateThing(thingBuilder.build());
+            final int capabilities = getCapabilities(bridgeHandler);
+            logger.trace("initialize: thing {}: capabilities {}", deviceUid, capabilities);
+            updateChannels(capabilities);
 
             updateStatus(ThingStatus.ONLINE);
+            restoreLuminaireState();
+
+            if (config.circadian && (capabilities & CasambiSimpleCapabilities.CCT) != 0) {
+                bridgeHandler.circadian.subscribe(deviceId, config.tempMin, config.tempMax);
+            } else {
+                bridgeHandler.circadian.unsubscribe(deviceId);
+            }
+            bridgeHandler.unitTimers.setAutoOff(deviceId, config.autoOff);
         } else {
             logger.error("initialize: bridge handler is null");
         }
     }
 
+    /**
+     * getCapabilities returns the controls of the device as a bit mask. They are taken from the bridge's fixture cache,
+     * the thing configuration (as set up by discovery or manually) is only used if the fixture is not cached (yet).
+     *
+     * @param bridgeHandler - bridge of the luminaire
+     * @return bit mask of the device's controls (see {@link CasambiSimpleCapabilities})
+     */
+    private int getCapabilities(CasambiSimpleBridgeHandler bridgeHandler) {
+        final Integer fixtureId = getFixtureIdFromUid(deviceUid);
+        final CasambiSimpleCapabilities cached = (fixtureId != null) ? bridgeHandler.fixtureCache.get(fixtureId)
+                : null;
+        if (cached != null) {
+            return cached.getFlags();
+        }
+        logger.debug("getCapabilities: thing {} fixture not cached, using configuration", deviceUid);
+        return (config.hasDimmer ? CasambiSimpleCapabilities.DIMMER : 0)
+                | (config.hasColor ? CasambiSimpleCapabilities.COLOR : 0)
+                | (config.hasCCT ? CasambiSimpleCapabilities.CCT : 0)
+                | (config.hasWhitelevel ? CasambiSimpleCapabilities.WHITE_LEVEL : 0);
+    }
+
+    /**
+     * updateChannels adds the channels for the controls of the device and removes channels without a corresponding
+     * control. Every luminaire can be switched, so the onoff channel is always present. The thing is only updated if
+     * the channels do not match the controls, so that an unchanged luminaire does not cause a write to the thing
+     * registry on every initialization.
+     *
+     * @param capabilities - bit mask of the device's controls (see {@link CasambiSimpleCapabilities})
+     */
+    private void updateChannels(int capabilities) {
+        final boolean hasBri = (capabilities & CasambiSimpleCapabilities.DIMMER) != 0;
+        final boolean hasCo = (capabilities & CasambiSimpleCapabilities.COLOR) != 0;
+        final boolean hasCoTe = (capabilities & CasambiSimpleCapabilities.CCT) != 0;
+        final boolean hasWhLe = (capabilities & CasambiSimpleCapabilities.WHITE_LEVEL) != 0;
+        if (this.thing.getChannel(LUMINAIRE_CHANNEL_ONOFF) != null
+                && (this.thing.getChannel(LUMINAIRE_CHANNEL_DIMMER) != null) == hasBri
+                && (this.thing.getChannel(LUMINAIRE_CHANNEL_COLOR) != null) == hasCo
+                && (this.thing.getChannel(LUMINAIRE_CHANNEL_CCT) != null) == hasCoTe
+                && (this.thing.getChannel(LUMINAIRE_CHANNEL_WHITELEVEL) != null) == hasWhLe) {
+            logger.trace("updateChannels: thing {} channels match capabilities {}", deviceUid, capabilities);
+            return;
+        }
+        logger.debug("updateChannels: thing {} capabilities {}, updating channels", deviceUid, capabilities);
+        final ThingBuilder thingBuilder = editThing();
+        updateChannel(thingBuilder, LUMINAIRE_CHANNEL_ONOFF, true, "Switch", CHANNEL_TYPE_ONOFF);
+        updateChannel(thingBuilder, LUMINAIRE_CHANNEL_DIMMER, hasBri, "Dimmer", CHANNEL_TYPE_DIM);
+        updateChannel(thingBuilder, LUMINAIRE_CHANNEL_COLOR, hasCo, "Color", CHANNEL_TYPE_COLOR);
+        updateChannel(thingBuilder, LUMINAIRE_CHANNEL_CCT, hasCoTe, "Dimmer", CHANNEL_TYPE_CCT);
+        updateChannel(thingBuilder, LUMINAIRE_CHANNEL_WHITELEVEL, hasWhLe, "Dimmer", CHANNEL_TYPE_WHITELEVEL);
+        updateThing(thingBuilder.build());
+    }
+
+    /**
+     * updateChannel adds or removes a single channel
+     *
+     * @param thingBuilder - builder for the updated thing
+     * @param channelId - id of the channel
+     * @param wanted - true if the device has the control for the channel
+     * @param itemType - item type of the channel
+     * @param channelTypeUID - channel type
+     */
+    private void updateChannel(ThingBuilder thingBuilder, String channelId, boolean wanted, String itemType,
+            ChannelTypeUID channelTypeUID) {
+        final Channel channel = this.thing.getChannel(channelId);
+        if (channel != null && !wanted) {
+            logger.trace("updateChannel: thing {} removing channel {}", deviceUid, channel.getUID());
+            thingBuilder.withoutChannel(channel.getUID());
+        } else if (channel == null && wanted) {
+            final ChannelUID channelUID = new ChannelUID(this.thing.getUID(), channelId);
+            logger.trace("updateChannel: thing {} adding channel {}", deviceUid, channelUID);
+            thingBuilder.withChannel(ChannelBuilder.create(channelUID, itemType).withType(channelTypeUID).build());
+        }
+    }
+
     @Override
     public void handleRemoval() {
         logger.debug("handleRemoval: removing luminaireid {}, uid {} from thingsById", this.deviceId, this.deviceUid);
@@ -270,6 +353,11 @@ public class CasambiSimpleLuminaireHandler extends BaseThingHandler {
     @Override
     public void dispose() {
         logger.trace("dispose: dispose luminaire handler id {}, uid {}.", this.deviceId, this.deviceUid);
+        final CasambiSimpleBridgeHandler bridgeHandler = getBridgeHandler();
+        if (bridgeHandler != null) {
+            bridgeHandler.circadian.unsubscribe(deviceId);
+            bridgeHandler.unitTimers.setAutoOff(deviceId, 0);
+        }
         super.dispose();
     }
 
@@ -330,7 +418,8 @@ public class CasambiSimpleLuminaireHandler extends BaseThingHandler {
     }
 
     /**
-     * updateLuminaireState updates the state of a luminaire and its dimmer channel
+     * updateLuminaireState updates the state of a luminaire and its on/off and dimmer channels. Used for polled and
+     * refreshed states, so it also corrects an optimistic on/off state shown after a group or scene command.
      *
      * @param state unit structure with state information
      *            FIXME: update other channels as well
@@ -350,8 +439,14 @@ public class CasambiSimpleLuminaireHandler extends BaseThingHandler {
                     String.format("Unit %d state.online is null", deviceId));
 
         }
+        final Boolean reportedOn = state.on;
+        final Float reportedDim = state.dimLevel;
+        final Boolean on = (reportedOn != null) ? reportedOn : (reportedDim != null) ? reportedDim > 0 : null;
+        if (on != null) {
+            updateChannelState(LUMINAIRE_CHANNEL_ONOFF, OnOffType.from(on));
+        }
         if (state.dimLevel != null) {
-            updateState(LUMINAIRE_CHANNEL_DIMMER, new PercentType(Math.round(state.dimLevel * 100)));
+            updateChannelState(LUMINAIRE_CHANNEL_DIMMER, new PercentType(Math.round(state.dimLevel * 100)));
             logger.trace("updateLuminaireState: id {} dimLevel {}", deviceId, state.dimLevel);
         } else {
             updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.COMMUNICATION_ERROR,
@@ -359,6 +454,157 @@ public class CasambiSimpleLuminaireHandler extends BaseThingHandler {
         }
     }
 
+    /**
+     * updateLuminaireControls updates the channels from the controls of a unitChanged message. Channels are only
+     * updated if their state has changed.
+     *
+     * @param dimLevel - dim level of the unit (0-1), null if not reported
+     * @param controls - controls reported by the unit, may be null
+     */
+    public void updateLuminaireControls(@Nullable Float dimLevel,
+            @Nullable CasambiSimpleMessageControl @Nullable [] controls) {
+        final float dim = (dimLevel != null) ? dimLevel : 0;
+        updateChannelState(LUMINAIRE_CHANNEL_DIMMER, new PercentType(Math.round(dim * 100)));
+        if (controls == null) {
+            return;
+        }
+        final CasambiSimpleBridgeHandler bridgeHandler = getBridgeHandler();
+        for (CasambiSimpleMessageControl control : controls) {
+            if (control == null) {
+                continue;
+            }
+            if (control.isColor()) {
+                final Float hue = control.hue;
+                final Float sat = control.sat;
+                if (hue != null && sat != null) {
+                    final HSBType hsb = new HSBType(new DecimalType(Math.round(hue * 360) % 360),
+                            new PercentType(clampPercent(sat * 100)), new PercentType(clampPercent(dim * 100)));
+                    if (updateChannelState(LUMINAIRE_CHANNEL_COLOR, hsb) && bridgeHandler != null) {
+                        bridgeHandler.stateStore.updateColor(deviceId, hsb.toString());
+                    }
+                }
+            } else if (control.isCCT()) {
+                final Float value = control.value;
+                if (value != null) {
+                    // Use the range reported by the unit, fall back to the range from the thing configuration
+                    final float tMin = (control.min != null) ? control.getMin() : config.tempMin;
+                    final float tMax = (control.max != null) ? control.getMax() : config.tempMax;
+                    if (tMax > tMin) {
+                        final int cct = clampPercent((value - tMin) / (tMax - tMin) * 100);
+                        if (updateChannelState(LUMINAIRE_CHANNEL_CCT, new PercentType(cct)) && bridgeHandler != null) {
+                            bridgeHandler.stateStore.updateCct(deviceId, cct);
+                        }
+                    }
+                }
+            } else if (control.isWhiteLevel()) {
+                final Float value = control.value;
+                if (value != null) {
+                    updateChannelState(LUMINAIRE_CHANNEL_WHITELEVEL, new PercentType(clampPercent(value * 100)));
+                }
+            }
+        }
+    }
+
+    /**
+     * updateLuminaireOnOff updates the on/off channel from a unitChanged message
+     *
+     * @param on - on state reported by the unit
+     */
+    public void updateLuminaireOnOff(boolean on) {
+        updateChannelState(LUMINAIRE_CHANNEL_ONOFF, OnOffType.from(on));
+    }
+
+    /**
+     * updateLuminaireOptimistic shows the state commanded to a group or scene of the luminaire before the unit reports
+     * it. The next unitChanged message overwrites it.
+     *
+     * @param on - commanded on/off state
+     * @param dimLevel - commanded dim level (0-1), null if only on/off was commanded
+     */
+    public void updateLuminaireOptimistic(boolean on, @Nullable Float dimLevel) {
+        logger.trace("updateLuminaireOptimistic: id {} on {}, dim {}", deviceId, on, dimLevel);
+        updateChannelState(LUMINAIRE_CHANNEL_ONOFF, OnOffType.from(on));
+        if (dimLevel != null) {
+            updateChannelState(LUMINAIRE_CHANNEL_DIMMER, new PercentType(clampPercent(dimLevel * 100)));
+        } else if (!on) {
+            updateChannelState(LUMINAIRE_CHANNEL_DIMMER, PercentType.ZERO);
+        }
+    }
+
+    /**
+     * updateChannelState updates the state of a channel, if the channel exists and the state has changed
+     *
+     * @param channelId - id of the channel
+     * @param state - new state
+     * @return true if the state was updated
+     */
+    private boolean updateChannelState(String channelId, State state) {
+        if (this.thing.getChannel(channelId) == null) {
+            return false;
+        }
+        if (state.equals(channelStates.put(channelId, state))) {
+            logger.trace("updateChannelState: id {} channel {} unchanged", deviceId, channelId);
+            return false;
+        }
+        updateState(channelId, state);
+        return true;
+    }
+
+    private static int clampPercent(float value) {
+        return Math.max(0, Math.min(100, Math.round(value)));
+    }
+
+    /**
+     * restoreLuminaireState shows the last known state of the luminaire (from the bridge's state store) until live
+     * state arrives from the Casambi cloud
+     */
+    public void restoreLuminaireState() {
+        final CasambiSimpleBridgeHandler bridgeHandler = getBridgeHandler();
+        if (bridgeHandler == null) {
+            return;
+        }
+        final CasambiSimpleStateStore.Unit unit = bridgeHandler.stateStore.get(deviceId);
+        if (unit == null) {
+            logger.trace("restoreLuminaireState: no last known state for id {}", deviceId);
+            return;
+        }
+        logger.debug("restoreLuminaireState: id {} online {}, on {}, dim {}", deviceId, unit.online, unit.on,
+                unit.dimLevel);
+        if (Boolean.FALSE.equals(unit.online)) {
+            updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.COMMUNICATION_ERROR,
+                    String.format("Unit %d last known status offline", deviceId));
+        }
+        final Boolean on = unit.on;
+        if (on != null) {
+            updateChannelState(LUMINAIRE_CHANNEL_ONOFF, OnOffType.from(on));
+        }
+        final Float dimLevel = unit.dimLevel;
+        if (dimLevel != null) {
+            updateChannelState(LUMINAIRE_CHANNEL_DIMMER, new PercentType(Math.round(dimLevel * 100)));
+        }
+        final String color = unit.color;
+        if (color != null) {
+            try {
+                updateChannelState(LUMINAIRE_CHANNEL_COLOR, new HSBType(color));
+            } catch (IllegalArgumentException e) {
+                logger.debug("restoreLuminaireState: id {} illegal color {}", deviceId, color);
+            }
+        }
+        final Integer cct = unit.cct;
+        if (cct != null) {
+            updateChannelState(LUMINAIRE_CHANNEL_CCT, new PercentType(clampPercent(cct)));
+        }
+    }
+
+    /**
+     * updateConvergenceFailures shows the number of commands that did not take effect as a property
+     *
+     * @param failures - number of convergence failures of the luminaire
+     */
+    public void updateConvergenceFailures(int failures) {
+        updateProperty(LUMINAIRE_PROPERTY_CONVERGENCE_FAILURES, Integer.toString(failures));
+    }
+
     /**
      * updateLuminaireStatus makes updateState public
      *
@@ -394,4 +640,18 @@ public class CasambiSimpleLuminaireHandler extends BaseThingHandler {
     public static String getUidFromFixtureId(Integer fixtureId) {
         return "lum" + fixtureId.toString();
     }
+
+    /**
+     * getFixtureIdFromUid gets the fixtureId back from the luminaires uid
+     *
+     * @param uid - luminaire uid (e.g. "lum1234")
+     * @return fixtureId, null if the uid does not contain one
+     */
+    public static @Nullable Integer getFixtureIdFromUid(String uid) {
+        try {
+            return uid.startsWith("lum") ? Integer.valueOf(uid.substring(3)) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
 }
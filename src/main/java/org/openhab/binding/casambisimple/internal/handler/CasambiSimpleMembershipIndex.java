@@ -0,0 +1,127 @@
+/**
+ * Copyright (c) 2010-2022 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.casambisimple.internal.handler;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.binding.casambisimple.internal.driver.messages.CasambiSimpleMessageGroup;
+import org.openhab.binding.casambisimple.internal.driver.messages.CasambiSimpleMessageNetworkState;
+import org.openhab.binding.casambisimple.internal.driver.messages.CasambiSimpleMessageScene;
+import org.openhab.binding.casambisimple.internal.driver.messages.CasambiSimpleMessageUnit;
+import org.openhab.binding.casambisimple.internal.driver.messages.CasambiSimpleMessageUnitShort;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link CasambiSimpleMembershipIndex} maps groups and scenes to their member units
+ *
+ * The index is rebuilt from every network state fetched from the Casambi cloud. Group members are taken from the
+ * group's unit list and from the groupId of the units, scene members from the scene's unit list together with the dim
+ * level of the unit in the scene (if the network state has it). The maps are replaced as a whole, so lookups never see
+ * a half built index.
+ *
+ * @author Hein Osenberg - Initial contribution
+ */
+@NonNullByDefault
+public class CasambiSimpleMembershipIndex {
+
+    private final Logger logger = LoggerFactory.getLogger(CasambiSimpleMembershipIndex.class);
+
+    private volatile Map<Integer, int[]> groupMembers = Map.of();
+    // Scene id -> unit id -> dim level of the unit in the scene (null if unknown)
+    private volatile Map<Integer, Map<Integer, @Nullable Float>> sceneMembers = Map.of();
+
+    /**
+     * rebuild replaces the index with the memberships from a network state
+     *
+     * @param networkState - network state as returned by the Casambi cloud service
+     */
+    public void rebuild(CasambiSimpleMessageNetworkState networkState) {
+        final Map<Integer, Set<Integer>> groups = new HashMap<>();
+        final Map<Integer, CasambiSimpleMessageGroup> networkGroups = networkState.groups;
+        if (networkGroups != null) {
+            for (CasambiSimpleMessageGroup group : networkGroups.values()) {
+                final Set<Integer> members = groups.computeIfAbsent(group.id, k -> new LinkedHashSet<>());
+                final @Nullable CasambiSimpleMessageUnitShort @Nullable [] units = group.units;
+                if (units != null) {
+                    for (CasambiSimpleMessageUnitShort unit : units) {
+                        if (unit != null) {
+                            members.add(unit.id);
+                        }
+                    }
+                }
+            }
+        }
+        final Map<Integer, CasambiSimpleMessageUnit> networkUnits = networkState.units;
+        if (networkUnits != null) {
+            for (CasambiSimpleMessageUnit unit : networkUnits.values()) {
+                final Integer groupId = unit.groupId;
+                if (groupId != null && groupId != 0) {
+                    groups.computeIfAbsent(groupId, k -> new LinkedHashSet<>()).add(unit.id);
+                }
+            }
+        }
+        final Map<Integer, int[]> newGroupMembers = new HashMap<>();
+        for (Map.Entry<Integer, Set<Integer>> group : groups.entrySet()) {
+            newGroupMembers.put(group.getKey(), group.getValue().stream().mapToInt(Integer::intValue).toArray());
+        }
+
+        final Map<Integer, Map<Integer, @Nullable Float>> newSceneMembers = new HashMap<>();
+        final Map<Integer, CasambiSimpleMessageScene> networkScenes = networkState.scenes;
+        if (networkScenes != null) {
+            for (CasambiSimpleMessageScene scene : networkScenes.values()) {
+                final Map<Integer, @Nullable Float> members = new LinkedHashMap<>();
+                final Map<Integer, CasambiSimpleMessageUnit> units = scene.units;
+                if (units != null) {
+                    for (Map.Entry<Integer, CasambiSimpleMessageUnit> unit : units.entrySet()) {
+                        final CasambiSimpleMessageUnit sceneUnit = unit.getValue();
+                        members.put(unit.getKey(), (sceneUnit != null) ? sceneUnit.dimLevel : null);
+                    }
+                }
+                newSceneMembers.put(scene.id, members);
+            }
+        }
+
+        groupMembers = newGroupMembers;
+        sceneMembers = newSceneMembers;
+        logger.debug("rebuild: {} groups, {} scenes", newGroupMembers.size(), newSceneMembers.size());
+    }
+
+    /**
+     * getGroupMembers returns the units of a group
+     *
+     * @param groupId - Casambi id of the group
+     * @return ids of the member units, empty if the group is not known
+     */
+    public int[] getGroupMembers(int groupId) {
+        final int[] members = groupMembers.get(groupId);
+        return (members != null) ? members : new int[0];
+    }
+
+    /**
+     * getSceneMembers returns the units of a scene with their dim levels in the scene
+     *
+     * @param sceneId - Casambi id of the scene
+     * @return dim level (0-1, null if unknown) per member unit, empty if the scene is not known
+     */
+    public Map<Integer, @Nullable Float> getSceneMembers(int sceneId) {
+        final Map<Integer, @Nullable Float> members = sceneMembers.get(sceneId);
+        return (members != null) ? members : Map.of();
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright (c) 2010-2022 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.casambisimple.internal.handler;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.binding.casambisimple.internal.driver.messages.CasambiSimpleMessageNetworkState;
+
+/**
+ * The {@link CasambiSimpleNetworkStateCache} keeps the latest network state fetched from the Casambi cloud, so that
+ * discovery scans shortly after a poll do not query the network state again
+ *
+ * The cache is invalidated by networkUpdated messages (units, scenes or groups have been changed with the Casambi
+ * app).
+ *
+ * @author Hein Osenberg - Initial contribution
+ */
+@NonNullByDefault
+public class CasambiSimpleNetworkStateCache {
+
+    private @Nullable CasambiSimpleMessageNetworkState networkState;
+    private long fetchedAt = 0;
+    private final long maxAge;
+
+    /**
+     * Constructor for the network state cache
+     *
+     * @param maxAge - time in milliseconds a network state is valid
+     */
+    public CasambiSimpleNetworkStateCache(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * put stores a freshly fetched network state
+     *
+     * @param networkState - network state as returned by the Casambi cloud service
+     */
+    public synchronized void put(CasambiSimpleMessageNetworkState networkState) {
+        this.networkState = networkState;
+        fetchedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * get returns the cached network state, if it is still valid
+     *
+     * @return network state, null if there is none or it is too old
+     */
+    public synchronized @Nullable CasambiSimpleMessageNetworkState get() {
+        if (networkState != null && System.currentTimeMillis() - fetchedAt <= maxAge) {
+            return networkState;
+        }
+        return null;
+    }
+
+    /**
+     * invalidate drops the cached network state
+     */
+    public synchronized void invalidate() {
+        networkState = null;
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2010-2022 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.casambisimple.internal.handler;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+
+/**
+ * The {@link CasambiSimpleRttStats} keeps the round trip times of the ping/pong messages on the web socket
+ *
+ * The times are kept in a histogram with exponentially growing buckets. Additionally a smoothed round trip time is
+ * kept (moving average with a weight of 1/8 for the latest value, as for TCP), which is used to derive the pong
+ * timeout.
+ *
+ * @author Hein Osenberg - Initial contribution
+ */
+@NonNullByDefault
+public class CasambiSimpleRttStats {
+
+    // Upper bounds of the histogram buckets in milliseconds, the last bucket takes everything above
+    private static final long[] bucketBounds = { 25, 50, 100, 200, 400, 800, 1600, 3200 };
+
+    private final long[] buckets = new long[bucketBounds.length + 1];
+    private long count = 0;
+    private long last = 0;
+    private long max = 0;
+    private double smoothed = 0;
+
+    /**
+     * record adds a round trip time
+     *
+     * @param rtt - round trip time in milliseconds
+     */
+    public synchronized void record(long rtt) {
+        int i = 0;
+        while (i < bucketBounds.length && rtt > bucketBounds[i]) {
+            i++;
+        }
+        buckets[i]++;
+        smoothed = (count == 0) ? rtt : smoothed + (rtt - smoothed) / 8;
+        count++;
+        last = rtt;
+        max = Math.max(max, rtt);
+    }
+
+    /**
+     * @return the latest round trip time in milliseconds
+     */
+    public synchronized long getLast() {
+        return last;
+    }
+
+    /**
+     * @return the smoothed round trip time in milliseconds, 0 if nothing has been recorded
+     */
+    public synchronized long getSmoothed() {
+        return Math.round(smoothed);
+    }
+
+    /**
+     * @return the number of recorded round trip times
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * percentile returns the upper bound of the bucket that contains the percentile
+     *
+     * @param p - percentile (0-1)
+     * @return upper bound in milliseconds (max for the last bucket), 0 if nothing has been recorded
+     */
+    public synchronized long percentile(double p) {
+        final long rank = (long) Math.ceil(p * count);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank && seen > 0) {
+                return (i < bucketBounds.length) ? Math.min(bucketBounds[i], max) : max;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format("n %d, srtt %d ms, p50 %d ms, p95 %d ms, max %d ms |", count, getSmoothed(),
+                percentile(0.5), percentile(0.95), max));
+        for (int i = 0; i < buckets.length; i++) {
+            sb.append(String.format(" %s%d:%d", (i < bucketBounds.length) ? "<=" : ">",
+                    bucketBounds[Math.min(i, bucketBounds.length - 1)], buckets[i]));
+        }
+        return sb.toString();
+    }
+}
@@ -14,6 +14,9 @@ package org.openhab.binding.casambisimple.internal.handler;
 
 import static org.openhab.binding.casambisimple.internal.CasambiSimpleBindingConstants.*;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.jdt.annotation.Nullable;
 import org.openhab.binding.casambisimple.internal.driver.CasambiSimpleDriverSocket;
@@ -37,8 +40,9 @@ import org.slf4j.LoggerFactory;
  * The {@link CasambiSimpleSceneHandler} allows to control groups of scenes
  *
  * Scenes as defined by the Casambi system can be controlled through OpenHAB
- * things. Only one dimmer channel is supported which controls the dim level
- * of the scene. The channel is write only (that is, the dim level cannot be read back).
+ * things. The onoff and dimmer channels control the scene. Their state follows the
+ * active scenes tracked by the bridge: off (0) when the scene is not active, on (the
+ * level last set, 100 if unknown) when it is.
  *
  * @author Hein Osenberg - Initial contribution
  */
@@ -49,6 +53,8 @@ public class CasambiSimpleSceneHandler extends BaseThingHandler {
 
     private Integer sceneId = 0;
     private String sceneUid = "";
+    private float lastLevel = 1; // Level last set through the dim channel
+    private final Map<String, State> channelStates = new ConcurrentHashMap<>();
 
     // private @Nullable CasambiTestConfiguration config;
 
@@ -72,7 +78,9 @@ public class CasambiSimpleSceneHandler extends BaseThingHandler {
                         if (command instanceof RefreshType) {
                             doRefresh = true;
                         } else if (command instanceof OnOffType) {
+                            bridgeHandler.cancelSceneFades(sceneId);
                             casambiSocketLocal.setSceneOnOff(sceneId, command == OnOffType.ON);
+                            bridgeHandler.propagateSceneState(sceneId, command == OnOffType.ON, null);
                             // } else if (command instanceof PercentType) {
                             // bridgeHandler.casambiSocket.setSceneLevel(sceneId, ((PercentType) command).floatValue() /
                             // 100);
@@ -88,7 +96,13 @@ public class CasambiSimpleSceneHandler extends BaseThingHandler {
                         if (command instanceof RefreshType) {
                             doRefresh = true;
                         } else if (command instanceof PercentType) {
-                            casambiSocketLocal.setSceneLevel(sceneId, ((PercentType) command).floatValue() / 100);
+                            final float level = ((PercentType) command).floatValue() / 100;
+                            bridgeHandler.cancelSceneFades(sceneId);
+                            casambiSocketLocal.setSceneLevel(sceneId, level);
+                            if (level > 0) {
+                                lastLevel = level;
+                            }
+                            bridgeHandler.propagateSceneState(sceneId, level > 0, level);
                         } else {
                             logger.warn("handleCommand: unexpected command type {}", command.getClass());
                         }
@@ -100,8 +114,9 @@ public class CasambiSimpleSceneHandler extends BaseThingHandler {
                     logger.warn("handleCommand: unexpected channel id {}", channelUID.getId());
                 }
                 if (doRefresh) {
-                    logger.trace("handleCommand: (Scene) doRefresh NOP");
-                    // Send refresh command here
+                    logger.trace("handleCommand: (Scene) refresh from active scenes");
+                    channelStates.remove(channelUID.getId());
+                    updateSceneActive(bridgeHandler.activeScenes.isActive(sceneId));
                 }
             }
         } else {
@@ -121,7 +136,11 @@ public class CasambiSimpleSceneHandler extends BaseThingHandler {
             updateStatus(ThingStatus.ONLINE);
         }
         // sceneId = ((BigDecimal) this.thing.getConfiguration().get(SCENE_ID)).intValueExact();
-        // putSceneById(sceneId);
+        final CasambiSimpleBridgeHandler bridgeHandler = getBridgeHandler();
+        if (bridgeHandler != null) {
+            bridgeHandler.thingsById.put(bridgeHandler.thingsById.uidIdCombine(sceneUid, sceneId), this.thing);
+            updateSceneActive(bridgeHandler.activeScenes.isActive(sceneId));
+        }
         logger.debug("initialize: uid {}, id {}", this.thing.getUID(), sceneId);
     }
 
@@ -179,6 +198,24 @@ public class CasambiSimpleSceneHandler extends BaseThingHandler {
         super.updateState(chan, state);
     }
 
+    /**
+     * updateSceneActive updates the channels from the active state of the scene. Channels are only updated if their
+     * state has changed.
+     *
+     * @param active - true if the scene is active
+     */
+    public void updateSceneActive(boolean active) {
+        updateChannelState(SCENE_CHANNEL_ONOFF, OnOffType.from(active));
+        updateChannelState(SCENE_CHANNEL_DIM,
+                active ? new PercentType(Math.max(1, Math.min(100, Math.round(lastLevel * 100)))) : PercentType.ZERO);
+    }
+
+    private void updateChannelState(String channelId, State state) {
+        if (this.thing.getChannel(channelId) != null && !state.equals(channelStates.put(channelId, state))) {
+            updateState(channelId, state);
+        }
+    }
+
     public static String getUidFromId(Integer id) {
         return "scn" + id.toString();
     }
@@ -0,0 +1,214 @@
+/**
+ * Copyright (c) 2010-2022 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.casambisimple.internal.handler;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+
+/**
+ * The {@link CasambiSimpleStateStore} keeps the last known state of all units of a network on disk, so that the
+ * luminaire channels show sensible values right after a restart, before the Casambi cloud has been contacted
+ *
+ * The state is updated from network state polls, unitChanged messages and (for color and color temperature, which
+ * are not reported by the Casambi cloud) from the commands sent. The file is written periodically, only if the state
+ * has changed, and is replaced atomically. Restored values are overwritten as soon as live state arrives. The active
+ * scenes are restored the same way, the scene things show them until the first network state has been fetched.
+ *
+ * @author Hein Osenberg - Initial contribution
+ */
+@NonNullByDefault
+public class CasambiSimpleStateStore {
+
+    /**
+     * Unit is the last known state of a unit, used to (de)serialize the state file with gson
+     */
+    public static class Unit {
+        public @Nullable Boolean online;
+        public @Nullable Boolean on;
+        public @Nullable Float dimLevel;
+        public @Nullable String color; // HSB as "h,s,b"
+        public @Nullable Integer cct; // 0-100 (between min and max temperature)
+    }
+
+    /**
+     * Snapshot is the content of the state file
+     */
+    private static class Snapshot {
+        public long saved;
+        public Map<Integer, Unit> units = new HashMap<>();
+        public Integer[] activeScenes = new Integer[0];
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(CasambiSimpleStateStore.class);
+
+    private final Path stateFile;
+    private Snapshot snapshot = new Snapshot();
+    private boolean changed = false;
+
+    /**
+     * Constructor for the state store
+     *
+     * @param file - path of the state file (directories are created as needed)
+     */
+    public CasambiSimpleStateStore(Path file) {
+        stateFile = file;
+    }
+
+    /**
+     * load reads the state file. A missing or unreadable file leaves the store empty.
+     *
+     * @return number of units restored
+     */
+    public synchronized int load() {
+        try {
+            if (Files.isReadable(stateFile)) {
+                final Snapshot loaded = new Gson().fromJson(Files.readString(stateFile, StandardCharsets.UTF_8),
+                        Snapshot.class);
+                if (loaded != null && loaded.units != null) {
+                    if (loaded.activeScenes == null) {
+                        loaded.activeScenes = new Integer[0];
+                    }
+                    snapshot = loaded;
+                    changed = false;
+                    logger.debug("stateStore.load: {} units from {}", snapshot.units.size(), stateFile);
+                    return snapshot.units.size();
+                }
+            }
+        } catch (Exception e) {
+            logger.info("stateStore.load: cannot read {} - {}", stateFile, e.getMessage());
+        }
+        return 0;
+    }
+
+    /**
+     * saveIfChanged writes the state file, if the state has changed since the last save
+     */
+    public synchronized void saveIfChanged() {
+        if (!changed) {
+            return;
+        }
+        snapshot.saved = System.currentTimeMillis();
+        try {
+            final Path dir = stateFile.toAbsolutePath().getParent();
+            if (dir != null) {
+                Files.createDirectories(dir);
+            }
+            final Path tmpFile = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+            Files.writeString(tmpFile, new Gson().toJson(snapshot), StandardCharsets.UTF_8);
+            Files.move(tmpFile, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            changed = false;
+            logger.trace("stateStore.saveIfChanged: {} units stored in {}", snapshot.units.size(), stateFile);
+        } catch (Exception e) {
+            logger.info("stateStore.saveIfChanged: cannot write {} - {}", stateFile, e.getMessage());
+        }
+    }
+
+    /**
+     * get returns the last known state of a unit
+     *
+     * @param id - Casambi id of the unit
+     * @return state, null if the unit is not known
+     */
+    public synchronized @Nullable Unit get(int id) {
+        return snapshot.units.get(id);
+    }
+
+    /**
+     * updateUnit records the reported state of a unit. Null values leave the recorded value unchanged.
+     *
+     * @param id - Casambi id of the unit
+     * @param online - unit online
+     * @param on - unit on
+     * @param dimLevel - dim level (0-1)
+     */
+    public synchronized void updateUnit(int id, @Nullable Boolean online, @Nullable Boolean on,
+            @Nullable Float dimLevel) {
+        final Unit unit = snapshot.units.computeIfAbsent(id, k -> new Unit());
+        if (online != null && !online.equals(unit.online)) {
+            unit.online = online;
+            changed = true;
+        }
+        if (on != null && !on.equals(unit.on)) {
+            unit.on = on;
+            changed = true;
+        }
+        if (dimLevel != null && !dimLevel.equals(unit.dimLevel)) {
+            unit.dimLevel = dimLevel;
+            changed = true;
+        }
+    }
+
+    /**
+     * updateColor records the color last sent to a unit
+     *
+     * @param id - Casambi id of the unit
+     * @param hsb - color as "h,s,b"
+     */
+    public synchronized void updateColor(int id, String hsb) {
+        final Unit unit = snapshot.units.computeIfAbsent(id, k -> new Unit());
+        if (!hsb.equals(unit.color)) {
+            unit.color = hsb;
+            changed = true;
+        }
+    }
+
+    /**
+     * updateCct records the color temperature last sent to a unit
+     *
+     * @param id - Casambi id of the unit
+     * @param cct - color temperature slider position (0-100)
+     */
+    public synchronized void updateCct(int id, int cct) {
+        final Unit unit = snapshot.units.computeIfAbsent(id, k -> new Unit());
+        if (unit.cct == null || unit.cct != cct) {
+            unit.cct = cct;
+            changed = true;
+        }
+    }
+
+    /**
+     * setActiveScenes records the scenes reported active by the Casambi cloud
+     *
+     * @param activeScenes - ids of the active scenes, null entries are ignored
+     */
+    public synchronized void setActiveScenes(@Nullable Integer @Nullable [] activeScenes) {
+        final Integer[] scenes = (activeScenes != null)
+                ? Arrays.stream(activeScenes).filter(s -> s != null).sorted().toArray(Integer[]::new)
+                : new Integer[0];
+        if (!Arrays.equals(scenes, snapshot.activeScenes)) {
+            snapshot.activeScenes = scenes;
+            changed = true;
+        }
+    }
+
+    /**
+     * getActiveScenes returns the scenes that were active when last reported
+     *
+     * @return ids of the active scenes
+     */
+    public synchronized Integer[] getActiveScenes() {
+        return snapshot.activeScenes.clone();
+    }
+}
@@ -113,14 +113,12 @@ public class CasambiSimpleThingsById {
     }
 
     /**
-     * getFirstLuninary returns a thing based on the id only (without) uid. There may be more than one thing
+     * getFirstLuninary returns a luminaire based on the id only (without) uid. There may be more than one thing
      * corresponding
-     * to an id.
+     * to an id. Scenes and groups with the same id are skipped.
      *
      * @param id - id as specified by the casambi system
      * @return thing - first match in the mapping
-     *
-     *         FIXME: is this needed? See getFirstThing()
      */
 
     public @Nullable Thing getFirstLuminaire(@Nullable Integer id) {
@@ -128,7 +126,7 @@ public class CasambiSimpleThingsById {
             for (Entry<String, Thing> uidIdThing : map.entrySet()) {
                 String uid = uidIdThing.getKey();
                 // UnitUidIdSet.logger.debug("getFirstThingById: looking for {}, got {}", id, uid);
-                if (getId(uid).equals(id)) {
+                if (uid.startsWith("lum") && getId(uid).equals(id)) {
                     return uidIdThing.getValue();
                 }
             }
@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2010-2022 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.casambisimple.internal.handler;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link CasambiSimpleThreads} creates the executors for the blocking work of a bridge
+ *
+ * Virtual threads are used if requested and the runtime supports them (JDK 21 or later). They are looked up by
+ * reflection, as the binding is compiled for Java 17. On older runtimes platform threads are used instead.
+ *
+ * @author Hein Osenberg - Initial contribution
+ */
+@NonNullByDefault
+public class CasambiSimpleThreads {
+
+    private static final Logger logger = LoggerFactory.getLogger(CasambiSimpleThreads.class);
+
+    /**
+     * virtualThreadFactory returns a factory for named virtual threads
+     *
+     * @param name - prefix for the thread names
+     * @return thread factory, null if virtual threads are not supported by the runtime
+     */
+    private static @Nullable ThreadFactory virtualThreadFactory(String name) {
+        try {
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.debug("virtualThreadFactory: virtual threads not available - {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * isVirtualAvailable checks if the runtime supports virtual threads
+     *
+     * @return true if virtual threads can be created
+     */
+    public static boolean isVirtualAvailable() {
+        return virtualThreadFactory("probe") != null;
+    }
+
+    /**
+     * newSerialExecutor creates an executor that runs its tasks one after the other, in the order submitted
+     *
+     * @param virtual - run the tasks on a virtual thread (if available)
+     * @param name - thread name
+     * @return executor with a single worker thread
+     */
+    public static ExecutorService newSerialExecutor(boolean virtual, String name) {
+        final ThreadFactory factory = virtual ? virtualThreadFactory(name) : null;
+        if (factory != null) {
+            return Executors.newSingleThreadExecutor(factory);
+        }
+        return Executors.newSingleThreadExecutor(r -> new Thread(r, name));
+    }
+
+    /**
+     * newPerTaskExecutor creates an executor that starts a new virtual thread for every task, so that independent
+     * blocking tasks do not wait for each other
+     *
+     * @param name - prefix for the thread names
+     * @return executor, null if virtual threads are not supported by the runtime
+     */
+    public static @Nullable ExecutorService newPerTaskExecutor(String name) {
+        final ThreadFactory factory = virtualThreadFactory(name);
+        if (factory == null) {
+            return null;
+        }
+        try {
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.debug("newPerTaskExecutor: not available - {}", e.getMessage());
+            return null;
+        }
+    }
+}
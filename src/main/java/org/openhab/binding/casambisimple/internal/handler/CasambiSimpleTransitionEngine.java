@@ -0,0 +1,305 @@
+/**
+ * Copyright (c) 2010-2022 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.casambisimple.internal.handler;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.binding.casambisimple.internal.driver.CasambiSimpleDriverSocket;
+import org.openhab.binding.casambisimple.internal.driver.CasambiSimpleScheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link CasambiSimpleTransitionEngine} runs client side fades (ramps of the dim level) for many units at once
+ *
+ * A ramp is given by its target level, duration and easing. On every tick the engine computes the current level of
+ * all running ramps, rounded to the resolution, and sends the levels that have changed. Units at the same level share
+ * one controlUnits frame, so a group fading together costs one frame per tick. At most frameBudget frames are sent
+ * per tick for the whole network; units that did not get a frame are served first on the next tick with their then
+ * current level, so frames are dropped rather than queued. A tick is skipped while the frames of the previous tick
+ * are still being sent. The last frame of a ramp (the exact target level) is always sent.
+ *
+ * A new ramp for a unit replaces the running one, starting from the level reached so far.
+ *
+ * @author Hein Osenberg - Initial contribution
+ */
+@NonNullByDefault
+public class CasambiSimpleTransitionEngine {
+
+    /**
+     * Easing functions, mapping the elapsed fraction of the duration (0-1) to the fraction of the level change
+     */
+    public enum Easing {
+        LINEAR,
+        EASE_IN,
+        EASE_OUT,
+        EASE_IN_OUT;
+
+        float apply(float t) {
+            switch (this) {
+                case EASE_IN:
+                    return t * t;
+                case EASE_OUT:
+                    return t * (2 - t);
+                case EASE_IN_OUT:
+                    return (t < 0.5f) ? 2 * t * t : -1 + (4 - 2 * t) * t;
+                default:
+                    return t;
+            }
+        }
+    }
+
+    /**
+     * Ramp is a running fade of one unit
+     */
+    private static class Ramp {
+        private final float from;
+        private final float to;
+        private final long start; // System.nanoTime()
+        private final long duration; // nanoseconds
+        private final Easing easing;
+        private float lastSent = Float.NaN;
+
+        private Ramp(float from, float to, long durationMs, Easing easing) {
+            this.from = from;
+            this.to = to;
+            this.start = System.nanoTime();
+            this.duration = TimeUnit.MILLISECONDS.toNanos(Math.max(0, durationMs));
+            this.easing = easing;
+        }
+
+        private boolean isDone(long now) {
+            return now - start >= duration;
+        }
+
+        private float levelAt(long now) {
+            if (isDone(now)) {
+                return to;
+            }
+            final float t = (float) (now - start) / duration;
+            return from + (to - from) * easing.apply(t);
+        }
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(CasambiSimpleTransitionEngine.class);
+
+    private static final float resolution = 0.005f; // smallest level change that is sent
+
+    private final CasambiSimpleScheduler.TaskGroup tasks;
+    private final Executor sender;
+    private final Supplier<@Nullable CasambiSimpleDriverSocket> socket;
+    private final CasambiSimpleStateStore stateStore;
+    private final long tickInterval;
+    private final int frameBudget;
+
+    // Insertion order is the service order, units served on a tick move to the end
+    private final LinkedHashMap<Integer, Ramp> ramps = new LinkedHashMap<>();
+    private final AtomicBoolean sending = new AtomicBoolean(false);
+    private @Nullable ScheduledFuture<?> tickTimer;
+    private long framesSent = 0;
+    private long framesDropped = 0;
+    private long ticksSkipped = 0;
+
+    /**
+     * Constructor for the transition engine
+     *
+     * @param tasks - task group of the bridge, for the tick timer
+     * @param sender - runs the blocking sending of the frames
+     * @param socket - supplies the current socket of the bridge
+     * @param stateStore - last known levels, used as the start level of ramps
+     * @param tickInterval - time between two frames in milliseconds
+     * @param frameBudget - maximum number of frames (distinct levels) sent per tick
+     */
+    public CasambiSimpleTransitionEngine(CasambiSimpleScheduler.TaskGroup tasks, Executor sender,
+            Supplier<@Nullable CasambiSimpleDriverSocket> socket, CasambiSimpleStateStore stateStore, long tickInterval,
+            int frameBudget) {
+        this.tasks = tasks;
+        this.sender = sender;
+        this.socket = socket;
+        this.stateStore = stateStore;
+        this.tickInterval = tickInterval;
+        this.frameBudget = frameBudget;
+    }
+
+    /**
+     * fade starts ramps for a number of units. Running ramps of these units are retargeted.
+     *
+     * @param unitIds - Casambi ids of the units
+     * @param level - target dim level (0-1)
+     * @param durationMs - duration of the ramp in milliseconds
+     * @param easing - easing function
+     */
+    public synchronized void fade(int[] unitIds, float level, long durationMs, Easing easing) {
+        final float to = Math.max(0, Math.min(1, level));
+        final long now = System.nanoTime();
+        for (int unitId : unitIds) {
+            final Ramp running = ramps.remove(unitId);
+            final float from;
+            if (running != null) {
+                from = running.levelAt(now);
+            } else {
+                final CasambiSimpleStateStore.Unit known = stateStore.get(unitId);
+                final Float dimLevel = (known != null) ? known.dimLevel : null;
+                from = (dimLevel != null) ? dimLevel : to;
+            }
+            ramps.put(unitId, new Ramp(from, to, durationMs, easing));
+        }
+        logger.debug("fade: {} units to {} in {} ms ({}), {} ramps running", unitIds.length, to, durationMs, easing,
+                ramps.size());
+        if (tickTimer == null && !ramps.isEmpty()) {
+            tickTimer = tasks.scheduleWithFixedDelay(this::tick, 0, tickInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * cancel stops the ramps of some units at the level reached so far
+     *
+     * @param unitIds - Casambi ids of the units
+     */
+    public synchronized void cancel(int[] unitIds) {
+        for (int unitId : unitIds) {
+            ramps.remove(unitId);
+        }
+        stopTimerIfIdle();
+    }
+
+    /**
+     * stop stops all ramps, e.g. when the bridge is disposed. Frames handed over to the sender may have been dropped
+     * without being sent, so the engine no longer waits for them.
+     */
+    public synchronized void stop() {
+        ramps.clear();
+        stopTimerIfIdle();
+        sending.set(false);
+    }
+
+    /**
+     * getStats returns the number of running ramps and frame counts
+     *
+     * @return statistics
+     */
+    public synchronized String getStats() {
+        return String.format("ramps %d, frames sent %d, dropped %d, ticks skipped %d", ramps.size(), framesSent,
+                framesDropped, ticksSkipped);
+    }
+
+    private void stopTimerIfIdle() {
+        final ScheduledFuture<?> tickTimerLocal = tickTimer;
+        if (ramps.isEmpty() && tickTimerLocal != null) {
+            tickTimerLocal.cancel(false);
+            tickTimer = null;
+        }
+    }
+
+    /**
+     * tick computes the frames for the current time and hands them over to the sender. Runs on the shared scheduler.
+     */
+    private void tick() {
+        if (!sending.compareAndSet(false, true)) {
+            synchronized (this) {
+                ticksSkipped++;
+            }
+            return;
+        }
+        // Units per level, one frame per level
+        final Map<Float, List<Integer>> frames = new LinkedHashMap<>();
+        int units = 0;
+        synchronized (this) {
+            final long now = System.nanoTime();
+            final List<Integer> served = new ArrayList<>();
+            final Iterator<Map.Entry<Integer, Ramp>> it = ramps.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<Integer, Ramp> entry = it.next();
+                final Ramp ramp = entry.getValue();
+                final boolean done = ramp.isDone(now);
+                final float level = done ? ramp.to : Math.round(ramp.levelAt(now) / resolution) * resolution;
+                if (!done && Math.abs(level - ramp.lastSent) < resolution) {
+                    continue; // No visible change
+                }
+                List<Integer> frame = frames.get(level);
+                if (frame == null) {
+                    if (frames.size() >= frameBudget) {
+                        framesDropped++;
+                        continue;
+                    }
+                    frame = new ArrayList<>();
+                    frames.put(level, frame);
+                }
+                frame.add(entry.getKey());
+                units++;
+                ramp.lastSent = level;
+                if (done) {
+                    it.remove();
+                } else {
+                    served.add(entry.getKey());
+                }
+            }
+            // Units served on this tick go to the end of the line
+            for (Integer unitId : served) {
+                final Ramp ramp = ramps.remove(unitId);
+                if (ramp != null) {
+                    ramps.put(unitId, ramp);
+                }
+            }
+            framesSent += frames.size();
+            stopTimerIfIdle();
+        }
+        logger.trace("tick: {} units in {} frames", units, frames.size());
+        if (frames.isEmpty()) {
+            sending.set(false);
+            return;
+        }
+        try {
+            sender.execute(() -> send(frames));
+        } catch (RuntimeException e) {
+            sending.set(false);
+            logger.debug("tick: cannot send frames - {}", e.getMessage());
+        }
+    }
+
+    /**
+     * send sends the frames of a tick, one after the other
+     *
+     * @param frames - units per dim level
+     */
+    private void send(Map<Float, List<Integer>> frames) {
+        try {
+            final CasambiSimpleDriverSocket socketLocal = socket.get();
+            if (socketLocal == null) {
+                logger.debug("send: no socket, dropping {} frames", frames.size());
+                return;
+            }
+            for (Map.Entry<Float, List<Integer>> frame : frames.entrySet()) {
+                try {
+                    socketLocal.setUnitsDimmer(frame.getValue().stream().mapToInt(Integer::intValue).toArray(),
+                            frame.getKey());
+                } catch (Exception e) {
+                    logger.debug("send: units {} frame failed - {}", frame.getValue(), e.getMessage());
+                }
+            }
+        } finally {
+            sending.set(false);
+        }
+    }
+}
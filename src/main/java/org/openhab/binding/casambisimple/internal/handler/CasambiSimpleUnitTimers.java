@@ -0,0 +1,282 @@
+/**
+ * Copyright (c) 2010-2022 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.casambisimple.internal.handler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.binding.casambisimple.internal.driver.CasambiSimpleDriverSocket;
+import org.openhab.binding.casambisimple.internal.driver.CasambiSimpleScheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link CasambiSimpleUnitTimers} runs per unit timers (auto-off after inactivity, delayed on/off, pulse) on a
+ * hashed timing wheel
+ *
+ * The wheel has a fixed number of slots, one per tick. A timer is put into the slot of its deadline (modulo the wheel
+ * size), so scheduling and cancelling cost O(1) regardless of the number of timers. On each tick only the timers of one
+ * slot are looked at; timers more than one revolution ahead stay in their slot. Each unit has at most one timer, a new
+ * one replaces the old one. The units of all timers expiring on the same tick are switched with at most two
+ * controlUnits frames, one for the units to be switched on and one for those to be switched off.
+ *
+ * Auto-off timers are restarted by commands from users and rules (luminaire, group and scene commands, fades). A
+ * unitChanged message only starts the timer of a unit reported on that has none, and cancels it when the unit is
+ * reported off, so the echoes of the binding's own frames (fades, circadian steps) do not keep a luminaire on.
+ * Explicit timers (delayed on/off, end of a pulse) are not affected by either.
+ *
+ * @author Hein Osenberg - Initial contribution
+ */
+@NonNullByDefault
+public class CasambiSimpleUnitTimers {
+
+    /**
+     * Timer is a pending on/off command for a unit
+     */
+    private static class Timer {
+        private final int unitId;
+        private final boolean on;
+        private final long deadline; // tick number
+        private final boolean explicit;
+        private boolean cancelled = false;
+
+        private Timer(int unitId, boolean on, long deadline, boolean explicit) {
+            this.unitId = unitId;
+            this.on = on;
+            this.deadline = deadline;
+            this.explicit = explicit;
+        }
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(CasambiSimpleUnitTimers.class);
+
+    private static final int wheelSize = 512; // slots, must be a power of 2
+    private static final long tickInterval = 1000; // milliseconds
+
+    private final CasambiSimpleScheduler.TaskGroup tasks;
+    private final Executor sender;
+    private final Supplier<@Nullable CasambiSimpleDriverSocket> socket;
+    private final Consumer<int[]> cancelFades;
+
+    private final List<List<Timer>> wheel = new ArrayList<>(wheelSize);
+    private final Map<Integer, Timer> timers = new HashMap<>();
+    private final Map<Integer, Integer> autoOffDelays = new HashMap<>(); // seconds
+    private long currentTick = 0;
+    private @Nullable ScheduledFuture<?> tickTimer;
+    private long expired = 0;
+    private long batches = 0;
+
+    /**
+     * Constructor for the unit timers
+     *
+     * @param tasks - task group of the bridge, for the tick timer
+     * @param sender - runs the blocking sending of the commands
+     * @param socket - supplies the current socket of the bridge
+     * @param cancelFades - stops running fades of units whose timers expire, so that a fade does not switch them back
+     */
+    public CasambiSimpleUnitTimers(CasambiSimpleScheduler.TaskGroup tasks, Executor sender,
+            Supplier<@Nullable CasambiSimpleDriverSocket> socket, Consumer<int[]> cancelFades) {
+        this.tasks = tasks;
+        this.sender = sender;
+        this.socket = socket;
+        this.cancelFades = cancelFades;
+        for (int i = 0; i < wheelSize; i++) {
+            wheel.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * setAutoOff sets the auto-off delay of a unit
+     *
+     * @param unitId - Casambi id of the unit
+     * @param seconds - delay after the last activity, 0 disables auto-off
+     */
+    public synchronized void setAutoOff(int unitId, int seconds) {
+        if (seconds > 0) {
+            autoOffDelays.put(unitId, seconds);
+        } else {
+            autoOffDelays.remove(unitId);
+            final Timer timer = timers.get(unitId);
+            if (timer != null && !timer.explicit) {
+                cancel(unitId);
+            }
+        }
+    }
+
+    /**
+     * activity restarts or cancels the auto-off timer of a unit. Called for commands from users and rules.
+     *
+     * @param unitId - Casambi id of the unit
+     * @param on - unit commanded on
+     */
+    public synchronized void activity(int unitId, boolean on) {
+        final Timer timer = timers.get(unitId);
+        if (timer != null && timer.explicit) {
+            return;
+        }
+        final Integer delay = autoOffDelays.get(unitId);
+        if (on && delay != null) {
+            schedule(unitId, false, TimeUnit.SECONDS.toMillis(delay), false);
+        } else if (!on && timer != null) {
+            cancel(unitId);
+        }
+    }
+
+    /**
+     * reported starts the auto-off timer of a unit reported on, if it has none (e.g. switched on with the Casambi
+     * app), and cancels it if the unit is reported off. A running timer is not restarted. Called for unitChanged
+     * messages.
+     *
+     * @param unitId - Casambi id of the unit
+     * @param on - unit reported on
+     */
+    public synchronized void reported(int unitId, boolean on) {
+        if (!on || !timers.containsKey(unitId)) {
+            activity(unitId, on);
+        }
+    }
+
+    /**
+     * schedule sets the timer of a unit, replacing a pending one
+     *
+     * @param unitId - Casambi id of the unit
+     * @param on - switch the unit on (true) or off (false) on expiry
+     * @param delay - delay in milliseconds (rounded up to full ticks)
+     * @param explicit - true for delayed actions and pulses, false for auto-off
+     */
+    public synchronized void schedule(int unitId, boolean on, long delay, boolean explicit) {
+        final long ticks = Math.max(1, (delay + tickInterval - 1) / tickInterval);
+        final Timer timer = new Timer(unitId, on, currentTick + ticks, explicit);
+        wheel.get((int) (timer.deadline & (wheelSize - 1))).add(timer);
+        final Timer replaced = timers.put(unitId, timer);
+        if (replaced != null) {
+            replaced.cancelled = true;
+        }
+        logger.trace("schedule: unit {} {} in {} ticks", unitId, on ? "on" : "off", ticks);
+        if (tickTimer == null) {
+            tickTimer = tasks.scheduleWithFixedDelay(this::tick, tickInterval, tickInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * cancel cancels the timer of a unit
+     *
+     * @param unitId - Casambi id of the unit
+     */
+    public synchronized void cancel(int unitId) {
+        final Timer timer = timers.remove(unitId);
+        if (timer != null) {
+            timer.cancelled = true; // Removed from its slot when the slot comes round
+        }
+    }
+
+    /**
+     * stop cancels all timers, e.g. when the bridge is disposed. Auto-off settings are kept.
+     */
+    public synchronized void stop() {
+        timers.clear();
+        for (List<Timer> slot : wheel) {
+            slot.clear();
+        }
+        final ScheduledFuture<?> tickTimerLocal = tickTimer;
+        if (tickTimerLocal != null) {
+            tickTimerLocal.cancel(false);
+            tickTimer = null;
+        }
+    }
+
+    /**
+     * getStats returns the number of pending timers and expiry counts
+     *
+     * @return statistics
+     */
+    public synchronized String getStats() {
+        return String.format("timers %d, auto-off units %d, expired %d, batches %d", timers.size(),
+                autoOffDelays.size(), expired, batches);
+    }
+
+    /**
+     * tick advances the wheel by one slot and sends the commands of the expired timers as one batch
+     */
+    private void tick() {
+        final List<Integer> onUnits = new ArrayList<>();
+        final List<Integer> offUnits = new ArrayList<>();
+        synchronized (this) {
+            currentTick++;
+            final Iterator<Timer> it = wheel.get((int) (currentTick & (wheelSize - 1))).iterator();
+            while (it.hasNext()) {
+                final Timer timer = it.next();
+                if (timer.cancelled) {
+                    it.remove();
+                } else if (timer.deadline <= currentTick) {
+                    it.remove();
+                    timers.remove(timer.unitId);
+                    (timer.on ? onUnits : offUnits).add(timer.unitId);
+                }
+            }
+            expired += onUnits.size() + offUnits.size();
+            if (timers.isEmpty()) {
+                stop();
+            }
+            if (onUnits.isEmpty() && offUnits.isEmpty()) {
+                return;
+            }
+            batches++;
+        }
+        logger.debug("tick: switching on {}, off {}", onUnits, offUnits);
+        cancelFades.accept(Stream.concat(onUnits.stream(), offUnits.stream()).mapToInt(Integer::intValue).toArray());
+        try {
+            sender.execute(() -> send(onUnits, offUnits));
+        } catch (RuntimeException e) {
+            logger.debug("tick: cannot send commands - {}", e.getMessage());
+        }
+    }
+
+    /**
+     * send switches units on and off, one frame for each direction
+     *
+     * @param onUnits - units to be switched on
+     * @param offUnits - units to be switched off
+     */
+    private void send(List<Integer> onUnits, List<Integer> offUnits) {
+        final CasambiSimpleDriverSocket socketLocal = socket.get();
+        if (socketLocal == null) {
+            logger.debug("send: no socket, dropping commands for {} units", onUnits.size() + offUnits.size());
+            return;
+        }
+        sendOnOff(socketLocal, onUnits, true);
+        sendOnOff(socketLocal, offUnits, false);
+    }
+
+    private void sendOnOff(CasambiSimpleDriverSocket socketLocal, List<Integer> unitIds, boolean on) {
+        if (unitIds.isEmpty()) {
+            return;
+        }
+        try {
+            socketLocal.setUnitsOnOff(unitIds.stream().mapToInt(Integer::intValue).toArray(), on);
+        } catch (Exception e) {
+            logger.debug("send: units {} command failed - {}", unitIds, e.getMessage());
+        }
+    }
+}